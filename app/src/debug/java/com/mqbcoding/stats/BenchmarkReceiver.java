@@ -0,0 +1,86 @@
+package com.mqbcoding.stats;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import com.github.martoreto.aauto.vex.FieldSchema;
+
+/**
+ * Runs the ingestion benchmarks in debug builds and logs the results under the "Benchmark" tag:
+ *
+ * <pre>
+ * adb shell am broadcast -n com.mqbcoding.stats/.BenchmarkReceiver \
+ *     --ei keys 200 --ef hz 50 --es types float,int,bool,string --ei ops 10000
+ * </pre>
+ */
+public class BenchmarkReceiver extends BroadcastReceiver {
+    private static final String TAG = "Benchmark";
+
+    public static final String EXTRA_KEYS = "keys";
+    public static final String EXTRA_RATE_HZ = "hz";
+    public static final String EXTRA_TYPES = "types";
+    public static final String EXTRA_OPS = "ops";
+
+    private static Thread sThread;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final Context appContext = context.getApplicationContext();
+        final int keys = intent.getIntExtra(EXTRA_KEYS, 200);
+        final float rateHz = intent.getFloatExtra(EXTRA_RATE_HZ, 50);
+        final int[] types = parseTypes(intent.getStringExtra(EXTRA_TYPES));
+        final int ops = intent.getIntExtra(EXTRA_OPS, 10000);
+
+        synchronized (BenchmarkReceiver.class) {
+            if (sThread != null && sThread.isAlive()) {
+                Log.w(TAG, "Benchmarks already running");
+                return;
+            }
+            sThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Log.i(TAG, "Running benchmarks: " + keys + " keys, " + rateHz + " Hz, "
+                            + types.length + " types, " + ops + " ops");
+                    try {
+                        for (BenchmarkRunner.Result result :
+                                new IngestionBenchmarks(appContext, keys, rateHz, types, ops).runAll()) {
+                            Log.i(TAG, result.toString());
+                        }
+                    } catch (Exception e) {
+                        Log.e(TAG, "Benchmark failed", e);
+                    }
+                }
+            }, "Benchmark");
+            sThread.start();
+        }
+    }
+
+    private static int[] parseTypes(String types) {
+        if (types == null || types.isEmpty()) {
+            return SyntheticCarStatsProvider.TYPES_ALL;
+        }
+        String[] names = types.split(",");
+        int[] result = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            switch (names[i].trim()) {
+                case "int":
+                    result[i] = FieldSchema.TYPE_INTEGER;
+                    break;
+                case "bool":
+                    result[i] = FieldSchema.TYPE_BOOLEAN;
+                    break;
+                case "string":
+                    result[i] = FieldSchema.TYPE_STRING;
+                    break;
+                case "float":
+                    result[i] = FieldSchema.TYPE_FLOAT;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown type: " + names[i]);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,82 @@
+package com.mqbcoding.stats;
+
+import android.os.Debug;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal micro-benchmark harness for on-device runs.
+ *
+ * Every operation is timed on its own, which adds the cost of two {@code System.nanoTime()} calls
+ * to the reported latencies but gives real percentiles. Allocations are counted over all threads
+ * with {@link Debug#startAllocCounting()}, so benchmarks that involve the dispatch thread include
+ * its allocations as well.
+ */
+class BenchmarkRunner {
+    interface Operation {
+        void run(int i) throws Exception;
+    }
+
+    static class Result {
+        final String name;
+        final int ops;
+        final double opsPerSecond;
+        final double allocationsPerOp;
+        final long p50Nanos;
+        final long p99Nanos;
+
+        Result(String name, int ops, double opsPerSecond, double allocationsPerOp,
+               long p50Nanos, long p99Nanos) {
+            this.name = name;
+            this.ops = ops;
+            this.opsPerSecond = opsPerSecond;
+            this.allocationsPerOp = allocationsPerOp;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-32s %10.0f ops/s %8.2f allocs/op p50 %7.2f us p99 %7.2f us",
+                    name, opsPerSecond, allocationsPerOp, p50Nanos / 1000.0, p99Nanos / 1000.0);
+        }
+    }
+
+    private final int mWarmupOps;
+    private final int mOps;
+
+    BenchmarkRunner(int warmupOps, int ops) {
+        mWarmupOps = warmupOps;
+        mOps = ops;
+    }
+
+    @SuppressWarnings("deprecation")
+    Result measure(String name, Operation operation) throws Exception {
+        for (int i = 0; i < mWarmupOps; i++) {
+            operation.run(i);
+        }
+        long[] latencies = new long[mOps];
+        Runtime.getRuntime().gc();
+
+        Debug.resetGlobalAllocCount();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < mOps; i++) {
+            long opStart = System.nanoTime();
+            operation.run(mWarmupOps + i);
+            latencies[i] = System.nanoTime() - opStart;
+        }
+        long elapsed = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        int allocations = Debug.getGlobalAllocCount();
+
+        Arrays.sort(latencies);
+        return new Result(name, mOps,
+                mOps / (elapsed / (double) TimeUnit.SECONDS.toNanos(1)),
+                allocations / (double) mOps,
+                latencies[mOps / 2],
+                latencies[Math.min(mOps - 1, (int) (mOps * 0.99))]);
+    }
+}
@@ -0,0 +1,329 @@
+package com.mqbcoding.stats;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.TextView;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the measurement hot path: dispatch through {@link CarStatsClientTweaked},
+ * provider value filtering, log row writing, key and timestamp encoding and dashboard value
+ * formatting, fed by a {@link SyntheticCarStatsProvider}.
+ */
+class IngestionBenchmarks {
+    private static final String TAG = "Benchmark";
+    private static final String PROVIDER = "synthetic";
+
+    private final Context mContext;
+    private final int mKeyCount;
+    private final float mRateHz;
+    private final int[] mTypes;
+    private final BenchmarkRunner mRunner;
+
+    IngestionBenchmarks(Context context, int keyCount, float rateHz, int[] types, int ops) {
+        mContext = context;
+        mKeyCount = keyCount;
+        mRateHz = rateHz;
+        mTypes = types;
+        mRunner = new BenchmarkRunner(Math.max(100, ops / 10), ops);
+    }
+
+    List<BenchmarkRunner.Result> runAll() throws Exception {
+        List<BenchmarkRunner.Result> results = new ArrayList<>();
+        results.add(benchmarkFrameDispatch());
+        results.add(benchmarkListenerDispatch());
+        results.add(benchmarkFilterValues());
+        results.add(benchmarkLogger());
+        results.addAll(benchmarkJsonKeys());
+        results.addAll(benchmarkTimestamps());
+        results.add(benchmarkDashboardFormat());
+        results.add(benchmarkSustainedLoad(10));
+        return results;
+    }
+
+    private CarStatsClientTweaked createClient(SyntheticCarStatsProvider provider) {
+        CarStatsClientTweaked client = new CarStatsClientTweaked(mContext);
+        client.setDeltaDispatch(true);
+        client.addProvider(PROVIDER, provider);
+        return client;
+    }
+
+    private static class FrameCounter implements CarStatsClientTweaked.FrameListener,
+            CarStatsClientTweaked.Listener {
+        volatile long frames = 0;
+
+        @Override
+        public void onNewFrame(long elapsedRealtimeNanos, long timestamp, MeasurementFrame frame) {
+            frames++;
+        }
+
+        @Override
+        public void onNewMeasurements(String provider, Date timestamp, Map<String, Object> values) {
+            frames++;
+        }
+
+        @Override
+        public void onSchemaChanged(SchemaDelta delta) {
+        }
+
+        @Override
+        public void onSchemaChanged() {
+        }
+
+        void awaitFrame(long previous) {
+            // Spin instead of blocking so waiting does not allocate.
+            while (frames == previous) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private BenchmarkRunner.Result benchmarkFrameDispatch() throws Exception {
+        final SyntheticCarStatsProvider provider = new SyntheticCarStatsProvider(mKeyCount, mRateHz, mTypes);
+        final CarStatsClientTweaked client = createClient(provider);
+        final FrameCounter counter = new FrameCounter();
+        client.registerFrameListener(counter, null);
+        try {
+            return mRunner.measure("dispatch (FrameListener)", new BenchmarkRunner.Operation() {
+                @Override
+                public void run(int i) {
+                    long frames = counter.frames;
+                    provider.emit(i);
+                    counter.awaitFrame(frames);
+                }
+            });
+        } finally {
+            client.stop();
+        }
+    }
+
+    private BenchmarkRunner.Result benchmarkListenerDispatch() throws Exception {
+        final SyntheticCarStatsProvider provider = new SyntheticCarStatsProvider(mKeyCount, mRateHz, mTypes);
+        final CarStatsClientTweaked client = createClient(provider);
+        final FrameCounter counter = new FrameCounter();
+        client.registerListener(counter);
+        try {
+            return mRunner.measure("dispatch (Listener)", new BenchmarkRunner.Operation() {
+                @Override
+                public void run(int i) {
+                    long frames = counter.frames;
+                    provider.emit(i);
+                    counter.awaitFrame(frames);
+                }
+            });
+        } finally {
+            client.stop();
+        }
+    }
+
+    private BenchmarkRunner.Result benchmarkFilterValues() throws Exception {
+        SyntheticCarStatsProvider provider = new SyntheticCarStatsProvider(mKeyCount, mRateHz, mTypes);
+        final CarStatsClientTweaked client = createClient(provider);
+        final Map<String, Object> values = provider.nextValues();
+        try {
+            return mRunner.measure("filterValues", new BenchmarkRunner.Operation() {
+                @Override
+                public void run(int i) {
+                    client.filterValues(PROVIDER, values);
+                }
+            });
+        } finally {
+            client.stop();
+        }
+    }
+
+    private BenchmarkRunner.Result benchmarkLogger() throws Exception {
+        // A client without providers, so the synthetic keys don't end up in schema.json.
+        CarStatsClientTweaked client = new CarStatsClientTweaked(mContext);
+        SyntheticCarStatsProvider provider = new SyntheticCarStatsProvider(mKeyCount, mRateHz, mTypes);
+        // Its own directory, so nothing ends up in the real manifest or schema.json.
+        File logsDir = new File(mContext.getCacheDir(), "benchmark-logs");
+        deleteRecursively(logsDir);
+        if (!logsDir.mkdirs()) {
+            throw new IOException("Failed to create " + logsDir);
+        }
+        final CarStatsLogger logger = new CarStatsLogger(mContext, client,
+                new Handler(Looper.getMainLooper()), "benchmark",
+                CarStatsLogger.DEFAULT_QUEUE_CAPACITY, logsDir);
+        logger.registerListener(new CarStatsLogger.Listener() {
+            @Override
+            public void onLogFileComplete(File logFile) {
+                if (!logFile.delete()) {
+                    Log.w(TAG, "Failed to delete " + logFile);
+                }
+                LogIndex.getIndexFile(logFile).delete();
+            }
+        });
+        logger.setLoggerValues(provider.nextValues());
+        // Wait for the writer instead of dropping, so the writing cost shows up in the result.
+        logger.setQueuePolicy(CarStatsLogger.POLICY_BLOCK);
+        logger.setIsEnabled(true);
+        final long start = System.currentTimeMillis();
+        try {
+            return mRunner.measure("CarStatsLogger.logRow", new BenchmarkRunner.Operation() {
+                @Override
+                public void run(int i) {
+                    logger.logRow(start + i * CarStatsLogger.ROW_INTERVAL_MS);
+                }
+            });
+        } finally {
+            logger.shutdown();
+            logger.awaitShutdown(TimeUnit.SECONDS.toMillis(10));
+            Log.i(TAG, "CarStatsLogger: " + logger.getWrittenCount() + " rows written, "
+                    + logger.getDroppedCount() + " dropped, max queue depth "
+                    + logger.getMaxQueueDepth());
+            deleteRecursively(logsDir);
+            client.stop();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        for (File child : children != null ? children : new File[0]) {
+            deleteRecursively(child);
+        }
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed to delete " + file);
+        }
+    }
+
+    /**
+     * Column names of one row: the regex CarStatsLogger used to run per key against the cache.
+     */
+    private List<BenchmarkRunner.Result> benchmarkJsonKeys() throws Exception {
+        SyntheticCarStatsProvider provider = new SyntheticCarStatsProvider(mKeyCount, mRateHz, mTypes);
+        final String[] keys = provider.nextValues().keySet().toArray(new String[0]);
+        final JsonKeyCache cache = new JsonKeyCache();
+        cache.addAll(Arrays.asList(keys));
+        List<BenchmarkRunner.Result> results = new ArrayList<>();
+        results.add(mRunner.measure("row keys (String.replaceAll)", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int i) {
+                for (String key : keys) {
+                    key.replaceAll("[^a-zA-Z0-9.]", "_");
+                }
+            }
+        }));
+        results.add(mRunner.measure("row keys (JsonKeyCache)", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int i) {
+                for (String key : keys) {
+                    cache.get(key);
+                }
+            }
+        }));
+        return results;
+    }
+
+    private List<BenchmarkRunner.Result> benchmarkTimestamps() throws Exception {
+        final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSSSS", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final Date date = new Date();
+        final char[] buffer = new char[LogTimestampFormat.LENGTH];
+        final long start = System.currentTimeMillis();
+        List<BenchmarkRunner.Result> results = new ArrayList<>();
+        results.add(mRunner.measure("row timestamp (SimpleDateFormat)", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int i) {
+                date.setTime(start + i * 250L);
+                dateFormat.format(date);
+            }
+        }));
+        results.add(mRunner.measure("row timestamp (LogTimestampFormat)", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int i) {
+                LogTimestampFormat.format(start + i * 250L, buffer, 0);
+            }
+        }));
+        return results;
+    }
+
+    /**
+     * The dashboard's per-element update: query dispatch, unit conversion, formatting and setText
+     * on a detached view, over a mix of queries with and without units.
+     */
+    private BenchmarkRunner.Result benchmarkDashboardFormat() throws Exception {
+        final String[] queries = {"vehicleSpeed", "currentTorque", "batteryVoltage", "oilTemperature",
+                "longitudinalAcceleration", "tyrePressures.pressureFrontLeft", "Radio_Text"};
+        final Map<String, Object> values = new HashMap<>();
+        values.put("vehicleSpeed", 87.3f);
+        values.put("currentTorque", 212.5f);
+        values.put("batteryVoltage", 14.2f);
+        values.put("oilTemperature", 96.4f);
+        values.put("longitudinalAcceleration", 2.1f);
+        values.put("tyrePressures.pressureFrontLeft", 24f);
+        values.put("Radio_Text", "Benchmark FM");
+        final TextView view = new TextView(mContext);
+        return mRunner.measure("DashboardFragment.formatMeasurement", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int i) {
+                view.setText(DashboardFragment.formatMeasurement(queries[i % queries.length], values,
+                        14.5037738f, "psi"));
+            }
+        });
+    }
+
+    /**
+     * Lets the provider tick at the configured rate and measures how long values take from
+     * arriving at the client to reaching a listener.
+     */
+    @SuppressWarnings("deprecation")
+    private BenchmarkRunner.Result benchmarkSustainedLoad(int seconds) throws Exception {
+        SyntheticCarStatsProvider provider = new SyntheticCarStatsProvider(mKeyCount, mRateHz, mTypes);
+        CarStatsClientTweaked client = createClient(provider);
+        final long[] latencies = new long[(int) Math.ceil(mRateHz * seconds) + 1];
+        final int[] count = new int[1];
+        client.registerFrameListener(new CarStatsClientTweaked.FrameListener() {
+            @Override
+            public void onNewFrame(long elapsedRealtimeNanos, long timestamp, MeasurementFrame frame) {
+                if (count[0] < latencies.length) {
+                    latencies[count[0]++] = SystemClock.elapsedRealtimeNanos() - elapsedRealtimeNanos;
+                }
+            }
+
+            @Override
+            public void onSchemaChanged(SchemaDelta delta) {
+            }
+        }, null);
+
+        Debug.resetGlobalAllocCount();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        provider.start();
+        try {
+            TimeUnit.SECONDS.sleep(seconds);
+        } finally {
+            provider.stop();
+            client.stop();
+        }
+        long elapsed = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+
+        int frames = Math.max(1, count[0]);
+        long[] measured = Arrays.copyOf(latencies, frames);
+        Arrays.sort(measured);
+        String name = String.format(Locale.US, "sustained %d keys @ %.0f Hz", mKeyCount, mRateHz);
+        return new BenchmarkRunner.Result(name, frames,
+                frames / (elapsed / (double) TimeUnit.SECONDS.toNanos(1)),
+                Debug.getGlobalAllocCount() / (double) frames,
+                measured[frames / 2],
+                measured[Math.min(frames - 1, (int) (frames * 0.99))]);
+    }
+}
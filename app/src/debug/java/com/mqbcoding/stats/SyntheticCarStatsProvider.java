@@ -0,0 +1,154 @@
+package com.mqbcoding.stats;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.github.martoreto.aauto.vex.FieldSchema;
+import com.github.martoreto.aauto.vex.ICarStats;
+import com.github.martoreto.aauto.vex.ICarStatsListener;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provider that generates {@code keyCount} measurements named {@code synthetic.<n>} at a fixed
+ * rate, cycling through the given {@code FieldSchema.TYPE_*} constants for their types.
+ *
+ * Every tick sends all keys with a new value, like a provider under full load. Benchmarks call
+ * {@link #emit(long)} directly, {@link #start()} ticks on its own thread at the configured rate.
+ */
+public class SyntheticCarStatsProvider extends ICarStats.Stub {
+    private static final String TAG = "SyntheticCarStats";
+    private static final String[] STRING_VALUES = {"P", "R", "N", "D", "S"};
+
+    public static final int[] TYPES_ALL = {FieldSchema.TYPE_FLOAT, FieldSchema.TYPE_INTEGER,
+            FieldSchema.TYPE_BOOLEAN, FieldSchema.TYPE_STRING};
+
+    private final String[] mKeys;
+    private final int[] mTypes;
+    private final float mRateHz;
+    private final Map<String, FieldSchema> mSchema = new HashMap<>();
+    private final List<ICarStatsListener> mListeners = new CopyOnWriteArrayList<>();
+    private volatile Map<String, Object> mLastValues = Collections.emptyMap();
+    private long mTick = 0;
+    private Thread mThread;
+
+    public SyntheticCarStatsProvider(int keyCount, float rateHz, int[] types) {
+        mKeys = new String[keyCount];
+        mTypes = new int[keyCount];
+        mRateHz = rateHz;
+        for (int i = 0; i < keyCount; i++) {
+            mKeys[i] = "synthetic." + i;
+            mTypes[i] = types[i % types.length];
+            mSchema.put(mKeys[i], new FieldSchema(mTypes[i], "Synthetic value " + i, "",
+                    0, 100, 0.1f));
+        }
+    }
+
+    public String[] getKeys() {
+        return mKeys;
+    }
+
+    /**
+     * @return the values of the next tick, as a provider would send them.
+     */
+    public synchronized Map<String, Object> nextValues() {
+        long tick = mTick++;
+        Map<String, Object> values = new HashMap<>(mKeys.length * 2);
+        for (int i = 0; i < mKeys.length; i++) {
+            values.put(mKeys[i], makeValue(mTypes[i], tick + i));
+        }
+        return values;
+    }
+
+    private static Object makeValue(int type, long n) {
+        switch (type) {
+            case FieldSchema.TYPE_INTEGER:
+                return (int) (n % 8000);
+            case FieldSchema.TYPE_BOOLEAN:
+                return (n & 1) == 0;
+            case FieldSchema.TYPE_STRING:
+                return STRING_VALUES[(int) (n % STRING_VALUES.length)];
+            default:
+                return 50.0f + 50.0f * (float) Math.sin(n * 0.01);
+        }
+    }
+
+    public void emit(long timestamp) {
+        Map<String, Object> values = nextValues();
+        mLastValues = values;
+        for (ICarStatsListener listener : mListeners) {
+            try {
+                listener.onNewMeasurements(timestamp, values);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Error calling listener", e);
+            }
+        }
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        final long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / mRateHz);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long next = System.nanoTime();
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        emit(System.currentTimeMillis());
+                        next += periodNanos;
+                        long wait = next - System.nanoTime();
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        }, "SyntheticCarStats");
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    @Override
+    public boolean needsPermissions() {
+        return false;
+    }
+
+    @Override
+    public void requestPermissions() {
+    }
+
+    @Override
+    public void registerListener(ICarStatsListener listener) {
+        mListeners.add(listener);
+    }
+
+    @Override
+    public void unregisterListener(ICarStatsListener listener) {
+        mListeners.remove(listener);
+    }
+
+    @Override
+    public Map getMergedMeasurements() {
+        return new HashMap<>(mLastValues);
+    }
+
+    @Override
+    public Map getSchema() {
+        return mSchema;
+    }
+}
@@ -0,0 +1,280 @@
+package com.mqbcoding.stats;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import com.google.android.apps.auto.sdk.notification.CarNotificationExtender;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IllegalFormatException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Evaluates {@link AlertRule}s against the measurement stream.
+ *
+ * The rules are compiled into a table indexed by store id, so a frame only evaluates the rules of
+ * the keys that changed and costs nothing for all other keys. Values that don't come through the
+ * client, like Torque PIDs, can be fed in with {@link #putValue(String, float)}.
+ *
+ * Rules are evaluated on the thread that delivers the value; their actions run on the handler.
+ */
+public class AlertEngine implements CarStatsClientTweaked.FrameListener {
+    private static final String TAG = "AlertEngine";
+
+    public static final String EXTRA_RULE = "alertRule";
+    public static final String EXTRA_KEY = "alertKey";
+    public static final String EXTRA_VALUE = "alertValue";
+    public static final String EXTRA_ACTIVE = "alertActive";
+
+    private static final int NOTIFICATION_TIMEOUT_MS = 60000;
+
+    private static final int STATE_UNKNOWN = 0;
+    private static final int STATE_CLEAR = 1;
+    private static final int STATE_PENDING = 2;
+    private static final int STATE_ACTIVE = 3;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final MeasurementStore mStore;
+    private final NotificationManager mNotificationManager;
+    // Only touched on the handler.
+    private final Set<Integer> mShownNotifications = new HashSet<>();
+
+    // Indexed by store id, null for keys without rules. Replaced as a whole by setRules().
+    private volatile RuleState[][] mTable = new RuleState[0][];
+
+    public AlertEngine(Context context, Handler handler, MeasurementStore store) {
+        mContext = context;
+        mHandler = handler;
+        mStore = store;
+        mNotificationManager =
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+
+    /**
+     * Replaces all rules. Rules start over in the unknown state.
+     */
+    public synchronized void setRules(List<AlertRule> rules) {
+        RuleState[][] table = new RuleState[0][];
+        for (AlertRule rule : rules) {
+            int id = mStore.getOrCreateId(rule.getKey());
+            if (id >= table.length) {
+                table = Arrays.copyOf(table, id + 1);
+            }
+            RuleState[] states = table[id];
+            states = states == null ? new RuleState[1] : Arrays.copyOf(states, states.length + 1);
+            states[states.length - 1] = new RuleState(rule);
+            table[id] = states;
+            Log.d(TAG, "Rule " + rule);
+        }
+        for (RuleState[] states : mTable) {
+            if (states != null) {
+                for (RuleState state : states) {
+                    mHandler.removeCallbacks(state);
+                }
+            }
+        }
+        mTable = table;
+    }
+
+    @Override
+    public void onNewFrame(long elapsedRealtimeNanos, long timestamp, MeasurementFrame frame) {
+        RuleState[][] table = mTable;
+        long now = elapsedRealtimeNanos / 1000000;
+        for (int id = frame.nextChangedId(0); id >= 0 && id < table.length;
+             id = frame.nextChangedId(id + 1)) {
+            RuleState[] states = table[id];
+            if (states != null) {
+                evaluate(states, frame.getFloat(id), now);
+            }
+        }
+    }
+
+    @Override
+    public void onSchemaChanged(SchemaDelta delta) {
+        // do nothing
+    }
+
+    /**
+     * Evaluates the rules of a key whose value doesn't come from the stats client.
+     */
+    public void putValue(String key, float value) {
+        RuleState[][] table = mTable;
+        int id = mStore.getId(key);
+        if (id >= 0 && id < table.length && table[id] != null) {
+            evaluate(table[id], value, SystemClock.elapsedRealtime());
+        }
+    }
+
+    private synchronized void evaluate(RuleState[] states, float value, long now) {
+        for (RuleState state : states) {
+            state.update(value, now);
+        }
+    }
+
+    public void close() {
+        setRules(Collections.<AlertRule>emptyList());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int notificationId : mShownNotifications) {
+                    mNotificationManager.cancel(TAG, notificationId);
+                }
+                mShownNotifications.clear();
+            }
+        });
+    }
+
+    private class RuleState implements Runnable {
+        final AlertRule rule;
+        int state = STATE_UNKNOWN;
+        long pendingSince;
+        float lastValue;
+
+        RuleState(AlertRule rule) {
+            this.rule = rule;
+        }
+
+        void update(float value, long now) {
+            if (Float.isNaN(value)) {
+                return;
+            }
+            lastValue = value;
+            switch (state) {
+                case STATE_UNKNOWN:
+                    if (!rule.isReached(value)) {
+                        state = STATE_CLEAR;
+                    } else if (rule.isFireOnStart()) {
+                        startPending(now);
+                    } else {
+                        state = STATE_ACTIVE;
+                    }
+                    break;
+                case STATE_CLEAR:
+                    if (rule.isReached(value)) {
+                        startPending(now);
+                    }
+                    break;
+                case STATE_PENDING:
+                    if (!rule.isReached(value)) {
+                        state = STATE_CLEAR;
+                        mHandler.removeCallbacks(this);
+                    } else if (now - pendingSince >= rule.getDebounceMs()) {
+                        activate(value);
+                    }
+                    break;
+                case STATE_ACTIVE:
+                    if (rule.isCleared(value)) {
+                        state = STATE_CLEAR;
+                        if (rule.hasAction(AlertRule.ACTION_BROADCAST)) {
+                            postActions(value, false);
+                        }
+                    }
+                    break;
+            }
+        }
+
+        private void startPending(long now) {
+            state = STATE_PENDING;
+            pendingSince = now;
+            if (rule.getDebounceMs() <= 0) {
+                activate(lastValue);
+            } else {
+                // Values only arrive on change, so check again when the debounce time is over.
+                mHandler.postDelayed(this, rule.getDebounceMs());
+            }
+        }
+
+        private void activate(float value) {
+            state = STATE_ACTIVE;
+            Log.i(TAG, "Rule " + rule.getName() + " triggered at " + value);
+            postActions(value, true);
+        }
+
+        private void postActions(final float value, final boolean active) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    performActions(rule, value, active);
+                }
+            });
+        }
+
+        // Debounce check, runs on the handler.
+        @Override
+        public void run() {
+            synchronized (AlertEngine.this) {
+                if (state == STATE_PENDING) {
+                    update(lastValue, SystemClock.elapsedRealtime());
+                }
+            }
+        }
+    }
+
+    private void performActions(AlertRule rule, float value, boolean active) {
+        if (active && rule.hasAction(AlertRule.ACTION_NOTIFICATION)) {
+            String text;
+            try {
+                text = String.format(Locale.US, rule.getText(), String.valueOf(value));
+            } catch (IllegalFormatException e) {
+                text = rule.getText();
+            }
+            notify(rule, text);
+        }
+        if (active && rule.hasAction(AlertRule.ACTION_SOUND)) {
+            CarNotificationSoundPlayer soundPlayer = new CarNotificationSoundPlayer(mContext, rule.getSound());
+            soundPlayer.play();
+        }
+        if (rule.hasAction(AlertRule.ACTION_BROADCAST)) {
+            String action = rule.getBroadcastAction();
+            Intent intent = new Intent(action != null ? action : mContext.getPackageName());
+            intent.putExtra(EXTRA_RULE, rule.getName());
+            intent.putExtra(EXTRA_KEY, rule.getKey());
+            intent.putExtra(EXTRA_VALUE, value);
+            intent.putExtra(EXTRA_ACTIVE, active);
+            mContext.sendBroadcast(intent);
+        }
+    }
+
+    private void notify(AlertRule rule, String text) {
+        String title = rule.getTitle();
+
+        Notification notification = new NotificationCompat.Builder(mContext, CarStatsService.NOTIFICATION_CHANNEL_ID)
+                .setSmallIcon(rule.getIcon())
+                .setContentTitle(title)
+                .setContentText(text)
+                .setAutoCancel(true)
+                .setSound(Settings.System.DEFAULT_NOTIFICATION_URI)
+                .extend(new CarNotificationExtender.Builder()
+                        .setTitle(title)
+                        .setSubtitle(text)
+                        .setActionIconResId(rule.getActionIcon())
+                        .setThumbnail(CarUtils.getCarBitmap(mContext, rule.getIcon(),
+                                R.color.car_primary, 128))
+                        .setShouldShowAsHeadsUp(true)
+                        .build())
+                .build();
+        final int notificationId = rule.getNotificationId();
+        mNotificationManager.notify(TAG, notificationId, notification);
+        mShownNotifications.add(notificationId);
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "Dismissing notification " + notificationId);
+                mNotificationManager.cancel(TAG, notificationId);
+                mShownNotifications.remove(notificationId);
+            }
+        }, NOTIFICATION_TIMEOUT_MS);
+    }
+}
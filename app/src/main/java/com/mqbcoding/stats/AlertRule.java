@@ -0,0 +1,220 @@
+package com.mqbcoding.stats;
+
+import android.support.annotation.DrawableRes;
+import android.support.annotation.RawRes;
+
+/**
+ * A threshold on one measurement key and what to do when it is crossed. Evaluated by
+ * {@link AlertEngine}.
+ *
+ * A rule becomes active when the value reaches the threshold (at or above, or at or below) and
+ * has stayed there for the debounce time. It is cleared once the value is back on the other side
+ * of the threshold by more than the hysteresis, and can then fire again.
+ */
+public class AlertRule {
+    public static final int ACTION_NOTIFICATION = 1;
+    public static final int ACTION_SOUND = 1 << 1;
+    public static final int ACTION_BROADCAST = 1 << 2;
+
+    private final String mName;
+    private final String mKey;
+    private final boolean mBelow;
+    private final float mThreshold;
+    private final float mHysteresis;
+    private final long mDebounceMs;
+    private final boolean mFireOnStart;
+    private final int mActions;
+    private final String mTitle;
+    private final String mText;
+    private final int mIcon;
+    private final int mActionIcon;
+    private final int mSound;
+    private final int mNotificationId;
+    private final String mBroadcastAction;
+
+    private AlertRule(Builder builder) {
+        mName = builder.mName;
+        mKey = builder.mKey;
+        mBelow = builder.mBelow;
+        mThreshold = builder.mThreshold;
+        mHysteresis = builder.mHysteresis;
+        mDebounceMs = builder.mDebounceMs;
+        mFireOnStart = builder.mFireOnStart;
+        mActions = builder.mActions;
+        mTitle = builder.mTitle;
+        mText = builder.mText;
+        mIcon = builder.mIcon;
+        mActionIcon = builder.mActionIcon;
+        mSound = builder.mSound;
+        mNotificationId = builder.mNotificationId;
+        mBroadcastAction = builder.mBroadcastAction;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getKey() {
+        return mKey;
+    }
+
+    /**
+     * @return true if the rule triggers on low values, false if on high ones.
+     */
+    public boolean isBelow() {
+        return mBelow;
+    }
+
+    public float getThreshold() {
+        return mThreshold;
+    }
+
+    public float getHysteresis() {
+        return mHysteresis;
+    }
+
+    public long getDebounceMs() {
+        return mDebounceMs;
+    }
+
+    /**
+     * @return whether the rule fires if the very first value is already past the threshold.
+     * Otherwise the value has to be on the good side once before the rule can fire, e.g. to not
+     * announce that an engine that is already warm reached its temperature.
+     */
+    public boolean isFireOnStart() {
+        return mFireOnStart;
+    }
+
+    public boolean hasAction(int action) {
+        return (mActions & action) != 0;
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    /**
+     * @return the notification text, formatted with the value as {@code %1$s}.
+     */
+    public String getText() {
+        return mText;
+    }
+
+    public int getIcon() {
+        return mIcon;
+    }
+
+    public int getActionIcon() {
+        return mActionIcon;
+    }
+
+    public int getSound() {
+        return mSound;
+    }
+
+    public int getNotificationId() {
+        return mNotificationId;
+    }
+
+    /**
+     * @return the action of the broadcast intent, or null for the package name.
+     */
+    public String getBroadcastAction() {
+        return mBroadcastAction;
+    }
+
+    boolean isReached(float value) {
+        return mBelow ? value <= mThreshold : value >= mThreshold;
+    }
+
+    boolean isCleared(float value) {
+        return mBelow ? value > mThreshold + mHysteresis : value < mThreshold - mHysteresis;
+    }
+
+    @Override
+    public String toString() {
+        return mName + ": " + mKey + (mBelow ? " <= " : " >= ") + mThreshold;
+    }
+
+    public static class Builder {
+        private final String mName;
+        private final String mKey;
+        private boolean mBelow = false;
+        private float mThreshold;
+        private float mHysteresis = 0;
+        private long mDebounceMs = 0;
+        private boolean mFireOnStart = true;
+        private int mActions = 0;
+        private String mTitle;
+        private String mText;
+        private int mIcon = R.drawable.ic_warning_24dp;
+        private int mActionIcon = R.drawable.ic_warning_24dp;
+        private int mSound = R.raw.light;
+        private int mNotificationId;
+        private String mBroadcastAction;
+
+        public Builder(String name, String key) {
+            mName = name;
+            mKey = key;
+            mNotificationId = name.hashCode();
+        }
+
+        public Builder above(float threshold) {
+            mBelow = false;
+            mThreshold = threshold;
+            return this;
+        }
+
+        public Builder below(float threshold) {
+            mBelow = true;
+            mThreshold = threshold;
+            return this;
+        }
+
+        public Builder hysteresis(float hysteresis) {
+            mHysteresis = hysteresis;
+            return this;
+        }
+
+        public Builder debounce(long debounceMs) {
+            mDebounceMs = debounceMs;
+            return this;
+        }
+
+        public Builder fireOnStart(boolean fireOnStart) {
+            mFireOnStart = fireOnStart;
+            return this;
+        }
+
+        public Builder notification(String title, String text, int notificationId) {
+            mActions |= ACTION_NOTIFICATION;
+            mTitle = title;
+            mText = text;
+            mNotificationId = notificationId;
+            return this;
+        }
+
+        public Builder icons(@DrawableRes int icon, @DrawableRes int actionIcon) {
+            mIcon = icon;
+            mActionIcon = actionIcon;
+            return this;
+        }
+
+        public Builder sound(@RawRes int sound) {
+            mActions |= ACTION_SOUND;
+            mSound = sound;
+            return this;
+        }
+
+        public Builder broadcast(String action) {
+            mActions |= ACTION_BROADCAST;
+            mBroadcastAction = action;
+            return this;
+        }
+
+        public AlertRule build() {
+            return new AlertRule(this);
+        }
+    }
+}
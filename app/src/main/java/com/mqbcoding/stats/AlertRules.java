@@ -0,0 +1,181 @@
+package com.mqbcoding.stats;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the {@link AlertRule}s from the preferences and keeps the {@link AlertEngine} up to date
+ * when they change.
+ *
+ * Besides the built-in engine temperature and boost pressure alerts, custom rules can be given as
+ * a JSON array in the {@link #PREF_CUSTOM_RULES} preference, e.g.
+ * {@code [{"name": "oilPressureLow", "key": "oilPressure", "below": true, "threshold": 1.0,
+ * "hysteresis": 0.2, "debounceMs": 2000, "notification": true, "sound": true,
+ * "title": "Oil pressure", "text": "Oil pressure low: %1$s bar"}]}.
+ */
+public class AlertRules {
+    private static final String TAG = "AlertRules";
+
+    public static final String PREF_ENGINE_TEMP_ENABLED = "engineTempMonitoringActive";
+    public static final String PREF_MIN_ENGINE_TEMP = "minOperationalTempThreshold";
+    public static final String PREF_MAX_ENGINE_TEMP = "maxOperationTempThreshold";
+    public static final String PREF_MAX_BOOST_PRESSURE = "maxBoostPressure";
+    public static final String PREF_CUSTOM_RULES = "customAlertRules";
+
+    public static final String KEY_OIL_TEMP = "oilTemperature";
+    // Torque values, fed to the engine by the dashboard with AlertEngine.putValue().
+    public static final String KEY_TORQUE_COOLANT_TEMP = "torque.coolantTemperature";
+    public static final String KEY_TORQUE_BOOST_PRESSURE = "torque.boostPressure";
+
+    private static final int NOTIFICATION_ID_ENGINE_TEMP = 2;
+    private static final int NOTIFICATION_ID_BOOST_PRESSURE = 3;
+    private static final int NOTIFICATION_ID_CUSTOM = 100;
+
+    private static final float ENGINE_TEMP_HYSTERESIS = 1;
+    private static final float BOOST_PRESSURE_HYSTERESIS = 2;
+
+    private final Context mContext;
+    private final AlertEngine mEngine;
+    private final Gson mGson = new Gson();
+
+    // Gson target for one entry of the custom rules preference.
+    private static class CustomRule {
+        String name;
+        String key;
+        boolean below;
+        float threshold;
+        float hysteresis;
+        long debounceMs;
+        boolean notification;
+        boolean sound;
+        boolean broadcast;
+        String broadcastAction;
+        String title;
+        String text;
+    }
+
+    public AlertRules(Context context, AlertEngine engine) {
+        mContext = context;
+        mEngine = engine;
+
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        sharedPreferences.registerOnSharedPreferenceChangeListener(mPreferencesListener);
+        readPreferences(sharedPreferences);
+    }
+
+    private void readPreferences(SharedPreferences preferences) {
+        List<AlertRule> rules = new ArrayList<>();
+        if (preferences.getBoolean(PREF_ENGINE_TEMP_ENABLED, true)) {
+            addEngineTempRules(rules,
+                    Float.parseFloat(preferences.getString(PREF_MIN_ENGINE_TEMP, "85")),
+                    Float.parseFloat(preferences.getString(PREF_MAX_ENGINE_TEMP, "120")));
+            addBoostPressureRule(rules,
+                    Float.parseFloat(preferences.getString(PREF_MAX_BOOST_PRESSURE, "20")));
+        }
+        addCustomRules(rules, preferences.getString(PREF_CUSTOM_RULES, null));
+        mEngine.setRules(rules);
+    }
+
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPreferencesListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String s) {
+            // Rebuilding resets the rule states, so ignore the unrelated preferences.
+            if (PREF_ENGINE_TEMP_ENABLED.equals(s) || PREF_MIN_ENGINE_TEMP.equals(s)
+                    || PREF_MAX_ENGINE_TEMP.equals(s) || PREF_MAX_BOOST_PRESSURE.equals(s)
+                    || PREF_CUSTOM_RULES.equals(s)) {
+                readPreferences(sharedPreferences);
+            }
+        }
+    };
+
+    private void addEngineTempRules(List<AlertRule> rules, float low, float high) {
+        String title = mContext.getString(R.string.notification_engine_temp_title);
+        // An engine that is already warm when we connect doesn't need to be announced.
+        rules.add(new AlertRule.Builder("engineTempReached", KEY_OIL_TEMP)
+                .above(low)
+                .hysteresis(ENGINE_TEMP_HYSTERESIS)
+                .fireOnStart(false)
+                .notification(title, mContext.getString(R.string.notification_engine_temp_text),
+                        NOTIFICATION_ID_ENGINE_TEMP)
+                .icons(R.drawable.ic_oil, R.drawable.ic_check_white_24dp)
+                .sound(R.raw.light)
+                .build());
+        for (String key : new String[] {KEY_OIL_TEMP, KEY_TORQUE_COOLANT_TEMP}) {
+            rules.add(new AlertRule.Builder("engineTempHigh." + key, key)
+                    .above(high)
+                    .hysteresis(ENGINE_TEMP_HYSTERESIS)
+                    .notification(title, mContext.getString(R.string.notification_high_engine_temp_text),
+                            NOTIFICATION_ID_ENGINE_TEMP)
+                    .icons(R.drawable.ic_oil, R.drawable.ic_warning_24dp)
+                    .sound(R.raw.light)
+                    .build());
+        }
+    }
+
+    private void addBoostPressureRule(List<AlertRule> rules, float max) {
+        rules.add(new AlertRule.Builder("boostPressureExceeded", KEY_TORQUE_BOOST_PRESSURE)
+                .above(max)
+                .hysteresis(BOOST_PRESSURE_HYSTERESIS)
+                .notification(mContext.getString(R.string.notification_boost_pressure_title),
+                        mContext.getString(R.string.notification_exceeded_boost_pressure_text),
+                        NOTIFICATION_ID_BOOST_PRESSURE)
+                .sound(R.raw.light)
+                .build());
+    }
+
+    private void addCustomRules(List<AlertRule> rules, String json) {
+        if (json == null || json.trim().isEmpty()) {
+            return;
+        }
+        CustomRule[] customRules;
+        try {
+            customRules = mGson.fromJson(json, CustomRule[].class);
+        } catch (JsonParseException e) {
+            Log.w(TAG, "Invalid custom alert rules", e);
+            return;
+        }
+        if (customRules == null) {
+            return;
+        }
+        for (int i = 0; i < customRules.length; i++) {
+            CustomRule custom = customRules[i];
+            if (custom == null || custom.name == null || custom.key == null) {
+                Log.w(TAG, "Skipping custom alert rule without name or key");
+                continue;
+            }
+            AlertRule.Builder builder = new AlertRule.Builder(custom.name, custom.key)
+                    .hysteresis(custom.hysteresis)
+                    .debounce(custom.debounceMs);
+            if (custom.below) {
+                builder.below(custom.threshold);
+            } else {
+                builder.above(custom.threshold);
+            }
+            if (custom.notification) {
+                builder.notification(custom.title != null ? custom.title : custom.name,
+                        custom.text != null ? custom.text : custom.key + ": %1$s",
+                        NOTIFICATION_ID_CUSTOM + i);
+            }
+            if (custom.sound) {
+                builder.sound(R.raw.light);
+            }
+            if (custom.broadcast) {
+                builder.broadcast(custom.broadcastAction);
+            }
+            rules.add(builder.build());
+        }
+    }
+
+    public void close() {
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        sharedPreferences.unregisterOnSharedPreferenceChangeListener(mPreferencesListener);
+    }
+}
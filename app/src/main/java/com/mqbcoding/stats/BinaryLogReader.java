@@ -0,0 +1,315 @@
+package com.mqbcoding.stats;
+
+import com.google.common.io.CountingInputStream;
+import com.google.gson.Gson;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads logs written by {@link BinaryLogWriter} row by row:
+ * {@code while (reader.next()) { reader.getTimestamp(); reader.getValues(); }}.
+ *
+ * A log that ends in the middle of a block, e.g. because the app was killed, reads up to the
+ * last complete block.
+ */
+class BinaryLogReader implements Closeable {
+    private final CountingInputStream mCounter;
+    private final DataInputStream mIn;
+    private final String mSchemaJson;
+    private boolean mStarted = false;
+    // The keys declared so far, by id.
+    private final List<String> mKeyTable = new ArrayList<>();
+
+    // The decoded block.
+    private int mBlockRows = 0;
+    private long[] mTimestamps = new long[BinaryLogWriter.ROWS_PER_BLOCK];
+    private int mColumnCount = 0;
+    private String[] mKeys = new String[16];
+    private Object[][] mValues = new Object[16][];
+    private boolean[][] mChanged = new boolean[16][];
+    private int mRow = -1;
+    private boolean mTruncated = false;
+
+    private final Map<String, Object> mRowValues = new LinkedHashMap<>();
+    private final Map<String, Object> mRowValuesView = Collections.unmodifiableMap(mRowValues);
+
+    BinaryLogReader(InputStream in) throws IOException {
+        mCounter = new CountingInputStream(in);
+        mIn = new DataInputStream(mCounter);
+        if (mIn.readInt() != BinaryLogWriter.MAGIC) {
+            throw new IOException("Not a binary log");
+        }
+        int version = mIn.readUnsignedByte();
+        if (version != BinaryLogWriter.VERSION) {
+            throw new IOException("Unsupported binary log version " + version);
+        }
+        byte[] schema = new byte[mIn.readInt()];
+        mIn.readFully(schema);
+        mSchemaJson = new String(schema, StandardCharsets.UTF_8);
+    }
+
+    BinaryLogReader(File file) throws IOException {
+        this(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    static boolean isBinaryLog(File file) {
+        return file.getName().endsWith(CarStatsLogger.BINARY_LOG_SUFFIX);
+    }
+
+    /**
+     * @return the schema JSON the log was written with.
+     */
+    String getSchemaJson() {
+        return mSchemaJson;
+    }
+
+    /**
+     * Moves to the next row.
+     *
+     * @return false at the end of the log.
+     */
+    boolean next() throws IOException {
+        mStarted = true;
+        mRow++;
+        if (mRow >= mBlockRows) {
+            if (!readBlock()) {
+                return false;
+            }
+            mRow = 0;
+            mRowValues.clear();
+        }
+        for (int column = 0; column < mColumnCount; column++) {
+            if (mChanged[column][mRow]) {
+                Object value = mValues[column][mRow];
+                if (value == null) {
+                    mRowValues.remove(mKeys[column]);
+                } else {
+                    mRowValues.put(mKeys[column], value);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the log ended in the middle of a block, only known at its end.
+     */
+    boolean isTruncated() {
+        return mTruncated;
+    }
+
+    /**
+     * Skips to the block starting at {@code offset} in the file, e.g. from a {@link LogIndex}.
+     * Only possible before the first row was read. The blocks before it are skipped without
+     * decoding, only their key declarations are read.
+     */
+    void skipToBlock(long offset) throws IOException {
+        if (mStarted) {
+            throw new IllegalStateException("Rows were already read");
+        }
+        while (mCounter.getCount() < offset) {
+            int marker = mIn.read();
+            if (marker < 0) {
+                throw new EOFException("Block offset " + offset + " past the end of the log");
+            }
+            if (marker != BinaryLogWriter.BLOCK_MARKER) {
+                throw new IOException("Corrupt binary log, bad block marker " + marker);
+            }
+            readKeys();
+            skipFully(readVarLong(mIn));
+        }
+        if (mCounter.getCount() != offset) {
+            throw new IOException("Block offset " + offset + " is not at a block");
+        }
+    }
+
+    private void readKeys() throws IOException {
+        long count = readVarLong(mIn);
+        for (long i = 0; i < count; i++) {
+            mKeyTable.add(mIn.readUTF());
+        }
+    }
+
+    private void skipFully(long length) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            long skipped = mIn.skip(remaining);
+            if (skipped <= 0) {
+                throw new EOFException("Block past the end of the log");
+            }
+            remaining -= skipped;
+        }
+    }
+
+    long getTimestamp() {
+        return mTimestamps[mRow];
+    }
+
+    /**
+     * @return all values of the current row, by original key. Only valid until the next call to
+     * {@link #next()}.
+     */
+    Map<String, Object> getValues() {
+        return mRowValuesView;
+    }
+
+    private boolean readBlock() throws IOException {
+        int marker = mIn.read();
+        if (marker < 0) {
+            return false;
+        }
+        if (marker != BinaryLogWriter.BLOCK_MARKER) {
+            throw new IOException("Corrupt binary log, bad block marker " + marker);
+        }
+        int keyCount = mKeyTable.size();
+        try {
+            readKeys();
+            long length = readVarLong(mIn);
+            if (length <= 0 || length > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt binary log, block of " + length + " bytes");
+            }
+            byte[] block = new byte[(int) length];
+            mIn.readFully(block);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+            int rows = (int) readVarLong(in);
+            if (rows <= 0 || rows > BinaryLogWriter.ROWS_PER_BLOCK) {
+                throw new IOException("Corrupt binary log, " + rows + " rows in block");
+            }
+            mTimestamps[0] = in.readLong();
+            for (int row = 1; row < rows; row++) {
+                mTimestamps[row] = mTimestamps[row - 1] + readVarLong(in);
+            }
+            int columns = (int) readVarLong(in);
+            ensureColumns(columns);
+            byte[] changed = new byte[(rows + 7) / 8];
+            byte[] removed = new byte[(rows + 7) / 8];
+            for (int column = 0; column < columns; column++) {
+                long id = readVarLong(in);
+                if (id < 0 || id >= mKeyTable.size()) {
+                    throw new IOException("Corrupt binary log, undeclared key " + id);
+                }
+                mKeys[column] = mKeyTable.get((int) id);
+                byte type = in.readByte();
+                in.readFully(changed);
+                in.readFully(removed);
+                Object[] values = mValues[column];
+                boolean[] changedRows = mChanged[column];
+                for (int row = 0; row < rows; row++) {
+                    changedRows[row] = (changed[row >> 3] & (1 << (row & 7))) != 0;
+                    values[row] = null;
+                    if (changedRows[row] && (removed[row >> 3] & (1 << (row & 7))) == 0) {
+                        byte valueType = type == BinaryLogWriter.TYPE_MIXED ? in.readByte() : type;
+                        values[row] = readValue(in, valueType);
+                    }
+                }
+            }
+            mBlockRows = rows;
+            mColumnCount = columns;
+            return true;
+        } catch (EOFException e) {
+            // Truncated last block, its keys are not in use.
+            mKeyTable.subList(keyCount, mKeyTable.size()).clear();
+            mTruncated = true;
+            mBlockRows = 0;
+            mColumnCount = 0;
+            return false;
+        }
+    }
+
+    private void ensureColumns(int columns) {
+        if (columns > mKeys.length) {
+            int length = Math.max(columns, mKeys.length * 2);
+            mKeys = Arrays.copyOf(mKeys, length);
+            mValues = Arrays.copyOf(mValues, length);
+            mChanged = Arrays.copyOf(mChanged, length);
+        }
+        for (int column = 0; column < columns; column++) {
+            if (mValues[column] == null) {
+                mValues[column] = new Object[BinaryLogWriter.ROWS_PER_BLOCK];
+                mChanged[column] = new boolean[BinaryLogWriter.ROWS_PER_BLOCK];
+            }
+        }
+    }
+
+    private static Object readValue(DataInput in, byte type) throws IOException {
+        switch (type) {
+            case BinaryLogWriter.TYPE_FLOAT:
+                return in.readFloat();
+            case BinaryLogWriter.TYPE_DOUBLE:
+                return in.readDouble();
+            case BinaryLogWriter.TYPE_LONG:
+                return readVarLong(in);
+            case BinaryLogWriter.TYPE_BOOLEAN:
+                return in.readBoolean();
+            case BinaryLogWriter.TYPE_STRING:
+                return in.readUTF();
+            default:
+                throw new IOException("Corrupt binary log, unknown type " + type);
+        }
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long zigzag = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.readUnsignedByte();
+            zigzag |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new IOException("Corrupt binary log, varint too long");
+            }
+        }
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    /**
+     * Converts a binary log to the JSON lines CarStatsLogger writes in its default format, one
+     * object per row.
+     *
+     * @return the number of rows written.
+     */
+    static long convertToJson(File binaryLog, Writer out) throws IOException {
+        Gson gson = new Gson();
+        JsonKeyCache keyCache = new JsonKeyCache();
+        Map<String, Object> row = new LinkedHashMap<>();
+        long rows = 0;
+        try (BinaryLogReader reader = new BinaryLogReader(binaryLog)) {
+            while (reader.next()) {
+                row.clear();
+                row.put("timestamp", LogTimestampFormat.format(reader.getTimestamp()));
+                for (Map.Entry<String, Object> value : reader.getValues().entrySet()) {
+                    row.put(keyCache.get(value.getKey()), value.getValue());
+                }
+                out.write(gson.toJson(row));
+                out.write('\n');
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+}
@@ -0,0 +1,280 @@
+package com.mqbcoding.stats;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes log rows in a compact binary format, an alternative to the gzipped JSON lines of
+ * {@link CarStatsLogger}. Read back with {@link BinaryLogReader}.
+ *
+ * The file starts with a header: magic {@code "CLOG"}, format version and the schema JSON the log
+ * was written with. Rows follow in blocks of up to {@link #ROWS_PER_BLOCK} rows. Keys are written
+ * once per file: each gets the next id when a block first uses it and is declared in that block,
+ * columns refer to keys by id.
+ * <pre>
+ * byte     'B'
+ * varint   number of keys declared in this block
+ * UTF      key, for each of them, in id order
+ * varint   length of the rest of the block
+ * varint   row count
+ * long     timestamp of the first row, epoch millis
+ * varint   timestamp delta to the previous row, for every further row
+ * varint   column count
+ * column   for every key used in the block:
+ *   varint   key id
+ *   byte     value type
+ *   bitmap   rows in which the value changed, one bit per row
+ *   bitmap   of those rows, the ones where the key was removed
+ *   values   one per changed and not removed row
+ * </pre>
+ * The first row of a block counts every present value as changed. Integers are zigzag varints,
+ * floats 4 bytes and strings UTF; columns mixing types prefix each value with its type. Apart from
+ * the key declarations, which a reader seeking to a block picks up on the way, every block can be
+ * decoded on its own.
+ */
+class BinaryLogWriter implements Closeable {
+    static final int MAGIC = 0x434c4f47; // "CLOG"
+    static final int VERSION = 2;
+    static final byte BLOCK_MARKER = 'B';
+    static final int ROWS_PER_BLOCK = 256;
+
+    static final byte TYPE_FLOAT = 1;
+    static final byte TYPE_DOUBLE = 2;
+    static final byte TYPE_LONG = 3;
+    static final byte TYPE_BOOLEAN = 4;
+    static final byte TYPE_STRING = 5;
+    static final byte TYPE_MIXED = 6;
+
+    private final DataOutputStream mOut;
+    private final long[] mTimestamps = new long[ROWS_PER_BLOCK];
+    private final Map<String, Column> mColumnsByKey = new HashMap<>();
+    private final List<Column> mColumns = new ArrayList<>();
+    private int mKeyCount = 0;
+    // The block after the key declarations, buffered to write its length first.
+    private final ByteArrayOutputStream mBodyBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream mBody = new DataOutputStream(mBodyBuffer);
+    private final byte[] mChanged = new byte[(ROWS_PER_BLOCK + 7) / 8];
+    private final byte[] mRemoved = new byte[(ROWS_PER_BLOCK + 7) / 8];
+    private int mRowCount = 0;
+    private long mBlockCount = 0;
+    private LogIndex.Writer mIndex;
+
+    private static class Column {
+        final String key;
+        final Object[] values = new Object[ROWS_PER_BLOCK];
+        // Assigned when a block first uses the key.
+        int id = -1;
+
+        Column(String key) {
+            this.key = key;
+        }
+    }
+
+    BinaryLogWriter(OutputStream out, String schemaJson) throws IOException {
+        mOut = new DataOutputStream(out);
+        mOut.writeInt(MAGIC);
+        mOut.writeByte(VERSION);
+        byte[] schema = schemaJson.getBytes(StandardCharsets.UTF_8);
+        mOut.writeInt(schema.length);
+        mOut.write(schema);
+    }
+
+    /**
+     * Adds a row with the first {@code size} keys and values; null values are left out.
+     */
+    void writeRow(long timestamp, String[] keys, Object[] values, int size) throws IOException {
+        int row = mRowCount;
+        mTimestamps[row] = timestamp;
+        for (int i = 0; i < size; i++) {
+            Column column = mColumnsByKey.get(keys[i]);
+            if (column == null) {
+                column = new Column(keys[i]);
+                mColumnsByKey.put(keys[i], column);
+                mColumns.add(column);
+            }
+            column.values[row] = values[i];
+        }
+        mRowCount++;
+        if (mRowCount == ROWS_PER_BLOCK) {
+            flushBlock();
+        }
+    }
+
+    /**
+     * Adds an entry for every block to the index from now on.
+     */
+    void setIndex(LogIndex.Writer index) {
+        mIndex = index;
+    }
+
+    long getBlockCount() {
+        return mBlockCount;
+    }
+
+    /**
+     * Writes the rows added so far as a block, even if it isn't full.
+     */
+    void flushBlock() throws IOException {
+        int rows = mRowCount;
+        if (rows == 0) {
+            return;
+        }
+        if (mIndex != null) {
+            mIndex.add(mOut.size(), mTimestamps[0]);
+        }
+        mOut.writeByte(BLOCK_MARKER);
+        int columnCount = 0;
+        int newKeys = 0;
+        for (Column column : mColumns) {
+            if (hasValues(column, rows)) {
+                columnCount++;
+                if (column.id < 0) {
+                    newKeys++;
+                }
+            }
+        }
+        writeVarLong(mOut, newKeys);
+        for (Column column : mColumns) {
+            if (column.id < 0 && hasValues(column, rows)) {
+                column.id = mKeyCount++;
+                mOut.writeUTF(column.key);
+            }
+        }
+
+        mBodyBuffer.reset();
+        writeVarLong(mBody, rows);
+        mBody.writeLong(mTimestamps[0]);
+        for (int row = 1; row < rows; row++) {
+            writeVarLong(mBody, mTimestamps[row] - mTimestamps[row - 1]);
+        }
+        writeVarLong(mBody, columnCount);
+        int bitmapLength = (rows + 7) / 8;
+        for (Column column : mColumns) {
+            if (!hasValues(column, rows)) {
+                continue;
+            }
+            Arrays.fill(mChanged, (byte) 0);
+            Arrays.fill(mRemoved, (byte) 0);
+            byte type = 0;
+            Object previous = null;
+            for (int row = 0; row < rows; row++) {
+                Object value = column.values[row];
+                if (value == null ? previous == null : value.equals(previous)) {
+                    continue;
+                }
+                mChanged[row >> 3] |= 1 << (row & 7);
+                if (value == null) {
+                    mRemoved[row >> 3] |= 1 << (row & 7);
+                } else {
+                    byte valueType = typeOf(value);
+                    type = type == 0 || type == valueType ? valueType : TYPE_MIXED;
+                }
+                previous = value;
+            }
+            writeVarLong(mBody, column.id);
+            mBody.writeByte(type);
+            mBody.write(mChanged, 0, bitmapLength);
+            mBody.write(mRemoved, 0, bitmapLength);
+            previous = null;
+            for (int row = 0; row < rows; row++) {
+                Object value = column.values[row];
+                if (value != null && !value.equals(previous)) {
+                    if (type == TYPE_MIXED) {
+                        mBody.writeByte(typeOf(value));
+                        writeValue(mBody, typeOf(value), value);
+                    } else {
+                        writeValue(mBody, type, value);
+                    }
+                }
+                previous = value;
+            }
+        }
+        writeVarLong(mOut, mBodyBuffer.size());
+        mBodyBuffer.writeTo(mOut);
+
+        for (Column column : mColumns) {
+            Arrays.fill(column.values, 0, rows, null);
+        }
+        mRowCount = 0;
+        mBlockCount++;
+    }
+
+    private static boolean hasValues(Column column, int rows) {
+        for (int row = 0; row < rows; row++) {
+            if (column.values[row] != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static byte typeOf(Object value) {
+        if (value instanceof Float) {
+            return TYPE_FLOAT;
+        } else if (value instanceof Double) {
+            return TYPE_DOUBLE;
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            return TYPE_LONG;
+        } else if (value instanceof Boolean) {
+            return TYPE_BOOLEAN;
+        } else {
+            return TYPE_STRING;
+        }
+    }
+
+    private static void writeValue(DataOutput out, byte type, Object value) throws IOException {
+        switch (type) {
+            case TYPE_FLOAT:
+                out.writeFloat((Float) value);
+                break;
+            case TYPE_DOUBLE:
+                out.writeDouble((Double) value);
+                break;
+            case TYPE_LONG:
+                writeVarLong(out, ((Number) value).longValue());
+                break;
+            case TYPE_BOOLEAN:
+                out.writeBoolean((Boolean) value);
+                break;
+            default:
+                out.writeUTF(String.valueOf(value));
+                break;
+        }
+    }
+
+    /**
+     * Writes a zigzag encoded varint: 7 bits per byte, low bits first.
+     */
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7fL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7f) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBlock();
+        } finally {
+            mOut.close();
+        }
+    }
+}
@@ -6,8 +6,12 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.github.martoreto.aauto.vex.FieldSchema;
@@ -15,6 +19,8 @@ import com.github.martoreto.aauto.vex.ICarStats;
 import com.github.martoreto.aauto.vex.ICarStatsListener;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -22,21 +28,66 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class CarStatsClientTweaked {
     private static final String TAG = "CarStatsClient";
     private static final String ACTION_CAR_STATS_PROVIDER = "com.github.martoreto.aauto.vex.CAR_STATS_PROVIDER";
+    private static final long FETCH_TIMEOUT_MS = 150;
+    private static final long RECONNECT_INITIAL_DELAY_MS = 1000;
+    private static final long RECONNECT_MAX_DELAY_MS = 60000;
     private Context mContext;
-    private Map<String, ServiceConnection> mServiceConnections = new HashMap<String, ServiceConnection>();
-    private Map<String, ICarStats> mProviders = new HashMap<String, ICarStats>();
+    private Map<String, ProviderConnection> mServiceConnections = new ConcurrentHashMap<String, ProviderConnection>();
+    private Map<String, ICarStats> mProviders = new ConcurrentHashMap<String, ICarStats>();
     private List<String> mProvidersByPriority = new ArrayList<String>();
-    private Map<String, String> mProvidersByKey = new HashMap<String, String>();
-    private Map<String, ICarStatsListener> mRemoteListeners = new HashMap<String, ICarStatsListener>();
-    private List<Listener> mListeners = new ArrayList<Listener>();
+    // Ids (from the measurement store) of the keys each provider owns, rebuilt with the schema.
+    private volatile Map<String, BitSet> mOwnedKeys = Collections.emptyMap();
+    private Map<String, ICarStatsListener> mRemoteListeners = new ConcurrentHashMap<String, ICarStatsListener>();
+    // Copy-on-write: dispatch iterates over a snapshot, (un)registering swaps in a new array.
+    private volatile Subscription[] mListeners = new Subscription[0];
+    private final Object mListenersLock = new Object();
     private Map<String, FieldSchema> mSchema = Collections.emptyMap();
+    private final Map<String, Map<String, FieldSchema>> mProviderSchemas = new HashMap<String, Map<String, FieldSchema>>();
+    private final Map<String, Integer> mProviderSchemaHashes = new HashMap<String, Integer>();
+    private long mSchemaVersion = 0;
+    private final MeasurementStore mStore = new MeasurementStore();
+    private volatile boolean mDeltaDispatch = false;
+
+    // All listener callbacks run on this thread; binder and timer threads only enqueue.
+    private final HandlerThread mDispatchThread;
+    private final Handler mDispatchHandler;
+    // Ids changed since the last dispatch, swapped with mFrameIds when dispatching so that
+    // steady-state dispatch does not allocate.
+    private final Object mPendingLock = new Object();
+    private BitSet mPendingIds = new BitSet();
+    private BitSet mFrameIds = new BitSet();
+    private String mPendingProvider;
+    private long mPendingTimestamp;
+    private long mPendingElapsedNanos;
+    private boolean mDispatchPending = false;
+    private final MeasurementFrame mFrame = new MeasurementFrame(mStore);
+
+    // Parallel snapshot fetches, see getMergedMeasurements().
+    private final ExecutorService mFetchExecutor = Executors.newCachedThreadPool();
+    private final Map<String, Future<Map<String, Object>>> mFetches = new HashMap<String, Future<Map<String, Object>>>();
+    private final Map<String, Map<String, Object>> mProviderSnapshots = new ConcurrentHashMap<String, Map<String, Object>>();
+    private final Set<String> mStaleProviders = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final Handler mReconnectHandler = new Handler(Looper.getMainLooper());
 
     public CarStatsClientTweaked(Context context) {
         this.mContext = context;
+        mDispatchThread = new HandlerThread("CarStatsDispatch");
+        mDispatchThread.start();
+        mDispatchHandler = new Handler(mDispatchThread.getLooper());
     }
 
     public void start() {
@@ -45,39 +96,122 @@ public class CarStatsClientTweaked {
         while(var1.hasNext()) {
             Intent i = (Intent)var1.next();
             String provider = i.getComponent().flattenToShortString();
-            ServiceConnection sc = this.createServiceConnection(provider);
+            ProviderConnection sc = new ProviderConnection(provider, i);
             this.mServiceConnections.put(provider, sc);
-            this.mProvidersByPriority.add(provider);
+            // rebuildSchema() iterates the list on binder threads.
+            synchronized (this) {
+                this.mProvidersByPriority.add(provider);
+            }
             Log.d("CarStatsClient", "Binding to " + provider);
             this.mContext.bindService(i, sc, Context.BIND_AUTO_CREATE);
         }
 
     }
 
-    private ServiceConnection createServiceConnection(final String provider) {
-        return new ServiceConnection() {
-            @Override
-            public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
-                Log.v("CarStatsClient", "Connected to " + provider);
-                ICarStats stats = ICarStats.Stub.asInterface(iBinder);
-                mProviders.put(provider, stats);
-                ICarStatsListener listener = createListener(provider);
-                mRemoteListeners.put(provider, listener);
-
-                try {
-                    stats.registerListener(listener);
-                } catch (RemoteException var6) {
-                    Log.w("CarStatsClient", provider + ": Error registering listener", var6);
-                }
+    /**
+     * Keeps a provider bound. When the provider goes away its values, schema and key ownership
+     * are kept (and reported as stale) and the connection is re-established with exponential
+     * backoff, unless Android reconnects on its own first.
+     */
+    private class ProviderConnection implements ServiceConnection, Runnable {
+        private final String mProvider;
+        private final Intent mIntent;
+        private int mAttempt = 0;
+        private boolean mConnected = false;
+
+        ProviderConnection(String provider, Intent intent) {
+            mProvider = provider;
+            mIntent = intent;
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
+            Log.v(TAG, "Connected to " + mProvider);
+            mReconnectHandler.removeCallbacks(this);
+            mConnected = true;
+            mAttempt = 0;
+            attachProvider(mProvider, ICarStats.Stub.asInterface(iBinder));
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            Log.v(TAG, "Disconnected from " + mProvider);
+            onConnectionLost();
+        }
+
+        @Override
+        public void onBindingDied(ComponentName name) {
+            Log.w(TAG, "Binding to " + mProvider + " died");
+            onConnectionLost();
+        }
 
-                updateSchema();
+        private void onConnectionLost() {
+            mConnected = false;
+            mProviders.remove(mProvider);
+            mRemoteListeners.remove(mProvider);
+            mStaleProviders.add(mProvider);
+            scheduleReconnect();
+        }
+
+        private void scheduleReconnect() {
+            if (mServiceConnections.get(mProvider) != this) {
+                return;  // stopped
             }
-            @Override
-            public void onServiceDisconnected(ComponentName componentName) {
-                Log.v("CarStatsClient", "Disconnected from " + provider);
-                mProviders.remove(provider);
+            long delay = Math.min(RECONNECT_MAX_DELAY_MS, RECONNECT_INITIAL_DELAY_MS << Math.min(mAttempt, 16));
+            mAttempt++;
+            Log.d(TAG, mProvider + ": Reconnecting in " + delay + " ms");
+            mReconnectHandler.removeCallbacks(this);
+            mReconnectHandler.postDelayed(this, delay);
+        }
+
+        @Override
+        public void run() {
+            if (mConnected || mServiceConnections.get(mProvider) != this) {
+                return;
             }
-        };
+            Log.d(TAG, "Rebinding to " + mProvider);
+            try {
+                mContext.unbindService(this);
+            } catch (IllegalArgumentException e) {
+                // not bound anymore
+            }
+            if (!mContext.bindService(mIntent, this, Context.BIND_AUTO_CREATE)) {
+                Log.w(TAG, mProvider + ": Rebinding failed");
+            }
+            // Try again later if neither onServiceConnected nor a disconnect happens meanwhile.
+            scheduleReconnect();
+        }
+
+        void cancel() {
+            mReconnectHandler.removeCallbacks(this);
+        }
+    }
+
+    private void attachProvider(String provider, ICarStats stats) {
+        mProviders.put(provider, stats);
+        mStaleProviders.remove(provider);
+        ICarStatsListener listener = createListener(provider);
+        mRemoteListeners.put(provider, listener);
+
+        try {
+            stats.registerListener(listener);
+        } catch (RemoteException e) {
+            Log.w(TAG, provider + ": Error registering listener", e);
+        }
+
+        updateSchema(provider);
+    }
+
+    /**
+     * Attaches a provider that runs in this process instead of being bound through an intent,
+     * e.g. a {@link ReplayCarStatsProvider}. It ranks below the providers found by
+     * {@link #start()} and is not reconnected.
+     */
+    public void addProvider(String provider, ICarStats stats) {
+        synchronized (this) {
+            mProvidersByPriority.add(provider);
+        }
+        attachProvider(provider, stats);
     }
 
     private ICarStatsListener createListener(final String provider) {
@@ -85,99 +219,234 @@ public class CarStatsClientTweaked {
             @SuppressWarnings("unchecked")
             @Override
             public void onNewMeasurements(long timestamp, Map values) throws RemoteException {
-                Iterator var4 = mListeners.iterator();
-
-                while(var4.hasNext()) {
-                    Listener listener = (Listener)var4.next();
-
-                    try {
-                        listener.onNewMeasurements(provider, new Date(timestamp), filterValues(provider, values));
-                    } catch (Exception var7) {
-                        Log.e("CarStatsClient", "Error calling listener", var7);
-                    }
-                }
-
+                ingestValues(provider, timestamp, values);
             }
             @Override
             public void onSchemaChanged() throws RemoteException {
-                updateSchema();
+                updateSchema(provider);
             }
         };
     }
 
-    private Map<String, Object> filterValues(String provider, Map<String, Object> values) {
-        Map<String, String> providersByKey = this.mProvidersByKey;
-        Iterator iter = values.keySet().iterator();
-
-        while(iter.hasNext()) {
-            if (!provider.equals(providersByKey.get(iter.next()))) {
-                iter.remove();
+    /**
+     * Returns the values that belong to the given provider. The map passed in is not modified.
+     */
+    Map<String, Object> filterValues(String provider, Map<String, Object> values) {
+        Map<String, Object> filtered = new HashMap<String, Object>();
+        BitSet owned = mOwnedKeys.get(provider);
+        if (owned == null) {
+            return filtered;
+        }
+        for (Map.Entry<String, Object> e : values.entrySet()) {
+            int id = mStore.getId(e.getKey());
+            if (id != MeasurementStore.NO_ID && owned.get(id)) {
+                filtered.put(e.getKey(), e.getValue());
             }
         }
+        return filtered;
+    }
 
-        return values;
+    /**
+     * Stores the values the given provider owns and queues the ones to dispatch: in delta mode
+     * only those that differ from what was stored before, otherwise all of them.
+     */
+    private void ingestValues(String provider, long timestamp, Map<String, Object> values) {
+        BitSet owned = mOwnedKeys.get(provider);
+        if (owned == null) {
+            return;
+        }
+        boolean deltaDispatch = mDeltaDispatch;
+        boolean queued = false;
+        synchronized (mPendingLock) {
+            for (Map.Entry<String, Object> e : values.entrySet()) {
+                int id = mStore.getId(e.getKey());
+                if (id == MeasurementStore.NO_ID || !owned.get(id)) {
+                    continue;
+                }
+                if (mStore.put(id, e.getValue()) || !deltaDispatch) {
+                    mPendingIds.set(id);
+                    queued = true;
+                }
+            }
+            if (queued) {
+                schedulePendingDispatch(provider, timestamp);
+            }
+        }
     }
 
-    @SuppressWarnings("unchecked")
-    private synchronized void updateSchema() {
-        Map<String, FieldSchema> schema = new HashMap<String, FieldSchema>();
-        Map<String, String> providersByKey = new HashMap<String, String>();
-        Iterator var3 = this.mProvidersByPriority.iterator();
+    /**
+     * Hands the queued ids over to the dispatch thread. Ids that change while a dispatch is
+     * still pending are merged into it and listeners read the newest values from the store,
+     * so the queue never holds more than one entry per key no matter how slow the listeners are.
+     */
+    private void schedulePendingDispatch(String provider, long timestamp) {
+        if (mPendingProvider != null && !mPendingProvider.equals(provider)) {
+            provider = "Tweaked";
+        }
+        mPendingProvider = provider;
+        mPendingTimestamp = timestamp;
+        mPendingElapsedNanos = SystemClock.elapsedRealtimeNanos();
+        if (!mDispatchPending) {
+            mDispatchPending = true;
+            mDispatchHandler.post(mDispatchRunnable);
+        }
+    }
 
-        while(var3.hasNext()) {
-            String provider = (String)var3.next();
+    private final Runnable mDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            BitSet ids;
+            String provider;
+            long timestamp;
+            long elapsedNanos;
+            synchronized (mPendingLock) {
+                ids = mPendingIds;
+                mPendingIds = mFrameIds;
+                mFrameIds = ids;
+                provider = mPendingProvider;
+                timestamp = mPendingTimestamp;
+                elapsedNanos = mPendingElapsedNanos;
+                mPendingProvider = null;
+                mDispatchPending = false;
+            }
+            mFrame.reset(provider, ids);
+            dispatchFrame(elapsedNanos, timestamp);
+            ids.clear();
+        }
+    };
 
+    private void dispatchFrame(long elapsedNanos, long timestamp) {
+        for (Subscription subscription : mListeners) {
+            mFrame.setMask(subscription.keys);
+            if (subscription.keys != null && mFrame.isEmpty()) {
+                continue;
+            }
             try {
-                ICarStats providerInterface = (ICarStats)this.mProviders.get(provider);
-                if (providerInterface != null) {
-                    Map<String, FieldSchema> providerSchema = providerInterface.getSchema();
-                    Iterator var7 = providerSchema.keySet().iterator();
-
-                    while(var7.hasNext()) {
-                        String key = (String)var7.next();
-                        if (!providersByKey.containsKey(key)) {
-                            providersByKey.put(key, provider);
-                        }
-                    }
+                subscription.listener.onNewFrame(elapsedNanos, timestamp, mFrame);
+            } catch (Exception e) {
+                Log.e(TAG, "Error calling listener", e);
+            }
+        }
+    }
+
+    /**
+     * Re-reads the schema of a single provider and, if it changed, rebuilds the merged schema and
+     * key ownership from the cached schemas of all providers and notifies listeners.
+     */
+    @SuppressWarnings("unchecked")
+    private synchronized void updateSchema(String provider) {
+        ICarStats providerInterface = mProviders.get(provider);
+        if (providerInterface == null) {
+            return;
+        }
+        Map<String, FieldSchema> providerSchema;
+        try {
+            providerSchema = providerInterface.getSchema();
+        } catch (RemoteException e) {
+            Log.w(TAG, provider + ": Error getting schema", e);
+            return;
+        }
+        if (providerSchema == null) {
+            providerSchema = Collections.emptyMap();
+        }
+        int hash = SchemaDelta.hash(providerSchema);
+        Integer previousHash = mProviderSchemaHashes.get(provider);
+        Map<String, FieldSchema> previousSchema = mProviderSchemas.get(provider);
+        // Equal hashes don't prove the schemas equal, compare them in full.
+        if (previousHash != null && previousHash == hash && previousSchema != null
+                && SchemaDelta.equals(previousSchema, providerSchema)) {
+            Log.v(TAG, provider + ": Schema unchanged");
+            return;
+        }
+        mProviderSchemas.put(provider, providerSchema);
+        mProviderSchemaHashes.put(provider, hash);
+        rebuildSchema();
+    }
 
-                    schema.putAll(providerSchema);
+    private void rebuildSchema() {
+        Map<String, FieldSchema> schema = new HashMap<String, FieldSchema>();
+        Map<String, String> providersByKey = new HashMap<String, String>();
+        for (String provider : mProvidersByPriority) {
+            Map<String, FieldSchema> providerSchema = mProviderSchemas.get(provider);
+            if (providerSchema == null) {
+                continue;
+            }
+            for (String key : providerSchema.keySet()) {
+                if (!providersByKey.containsKey(key)) {
+                    providersByKey.put(key, provider);
                 }
-            } catch (RemoteException var9) {
-                Log.w("CarStatsClient", provider + ": Error getting schema", var9);
             }
+            schema.putAll(providerSchema);
         }
 
-        this.mProvidersByKey = providersByKey;
+        this.mStore.updateSchema(schema);
+        Map<String, BitSet> ownedKeys = new HashMap<String, BitSet>();
+        for (Map.Entry<String, String> e : providersByKey.entrySet()) {
+            BitSet owned = ownedKeys.get(e.getValue());
+            if (owned == null) {
+                owned = new BitSet(mStore.size());
+                ownedKeys.put(e.getValue(), owned);
+            }
+            owned.set(mStore.getId(e.getKey()));
+        }
+        this.mOwnedKeys = ownedKeys;
+
+        final SchemaDelta delta = SchemaDelta.compute(mSchemaVersion + 1, mSchema, schema);
         this.mSchema = schema;
-        this.dispatchSchemaChanged();
+        if (delta.isEmpty()) {
+            return;
+        }
+        mSchemaVersion = delta.getVersion();
+        Log.d(TAG, "Schema changed: " + delta);
+        mDispatchHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                dispatchSchemaChanged(delta);
+            }
+        });
     }
 
-    private void dispatchSchemaChanged() {
-        Iterator var1 = this.mListeners.iterator();
-
-        while(var1.hasNext()) {
-            Listener listener = (Listener)var1.next();
-
+    private void dispatchSchemaChanged(SchemaDelta delta) {
+        for (Subscription subscription : mListeners) {
             try {
-                listener.onSchemaChanged();
-            } catch (Exception var4) {
-                Log.e("CarStatsClient", "Error calling listener", var4);
+                subscription.listener.onSchemaChanged(delta);
+            } catch (Exception e) {
+                Log.e(TAG, "Error calling listener", e);
             }
         }
-
     }
 
-    public void forceUpdateMeasurements() {
+    /**
+     * In delta mode measurements pushed by the providers are dispatched as soon as they arrive,
+     * and listeners only receive the keys whose value changed since the last dispatch.
+     * {@link #forceUpdateMeasurements()} then acts as a full resync: it refreshes the cache
+     * from all providers that answer and sends their complete snapshots to every listener.
+     */
+    public void setDeltaDispatch(boolean enabled) {
+        mDeltaDispatch = enabled;
+    }
 
-        Iterator var4 = this.mListeners.iterator();
+    public boolean isDeltaDispatch() {
+        return mDeltaDispatch;
+    }
 
-        while(var4.hasNext()) {
-            CarStatsClientTweaked.Listener listener = (CarStatsClientTweaked.Listener)var4.next();
-            try {
-                listener.onNewMeasurements("Tweaked", new Date(), getMergedMeasurements());
-            } catch (Exception var7) {
-                Log.e("CarStatsClient", "Error calling listener", var7);
+    public void forceUpdateMeasurements() {
+        // Only what the providers answered now: the last snapshot of a stale or reconnecting
+        // provider would overwrite the newer values it pushed since.
+        Map<String, Object> measurements = new HashMap<String, Object>();
+        for (Map<String, Object> snapshot : fetchSnapshots().values()) {
+            measurements.putAll(snapshot);
+        }
+        if (measurements.isEmpty()) {
+            return;
+        }
+        synchronized (mPendingLock) {
+            for (Map.Entry<String, Object> e : measurements.entrySet()) {
+                int id = mStore.getOrCreateId(e.getKey());
+                mStore.put(id, e.getValue());
+                mPendingIds.set(id);
             }
+            schedulePendingDispatch("Tweaked", System.currentTimeMillis());
         }
     }
 
@@ -197,45 +466,248 @@ public class CarStatsClientTweaked {
         var1 = this.mServiceConnections.values().iterator();
 
         while(var1.hasNext()) {
-            ServiceConnection sc = (ServiceConnection)var1.next();
-            this.mContext.unbindService(sc);
+            ProviderConnection sc = (ProviderConnection)var1.next();
+            sc.cancel();
+            try {
+                this.mContext.unbindService(sc);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Error unbinding", e);
+            }
         }
 
         this.mProviders.clear();
-        this.mProvidersByPriority.clear();
-        this.mProvidersByKey.clear();
+        this.mOwnedKeys = Collections.emptyMap();
+        synchronized (this) {
+            mProvidersByPriority.clear();
+            mProviderSchemas.clear();
+            mProviderSchemaHashes.clear();
+        }
         this.mRemoteListeners.clear();
         this.mServiceConnections.clear();
+        mStore.clear();
+        mDispatchThread.quitSafely();
+        mFetchExecutor.shutdownNow();
+        synchronized (mFetches) {
+            mFetches.clear();
+        }
+        mProviderSnapshots.clear();
+        mStaleProviders.clear();
     }
-    @SuppressWarnings("unchecked")
+    /**
+     * Fetches the current measurements from all providers in parallel. A provider that does not
+     * answer within {@link #FETCH_TIMEOUT_MS} (or fails) contributes its last good snapshot and is
+     * marked stale until it answers again, so the result always comes back within that budget.
+     */
     public Map<String, Object> getMergedMeasurements() {
+        Map<String, Map<String, Object>> snapshots = fetchSnapshots();
         Map<String, Object> measurements = new HashMap<String, Object>();
-        Iterator var2 = this.mProviders.entrySet().iterator();
+        // Providers that are stale or reconnecting keep contributing their last values.
+        for (Map.Entry<String, Map<String, Object>> e : mProviderSnapshots.entrySet()) {
+            if (!snapshots.containsKey(e.getKey())) {
+                measurements.putAll(e.getValue());
+            }
+        }
+        for (Map<String, Object> snapshot : snapshots.values()) {
+            measurements.putAll(snapshot);
+        }
+        return measurements;
+    }
 
-        while(var2.hasNext()) {
-            Map.Entry<String, ICarStats> e = (Map.Entry)var2.next();
-            String provider = (String)e.getKey();
+    /**
+     * @return the snapshots of the providers that answered within {@link #FETCH_TIMEOUT_MS}, by
+     * provider. Saves them as the last good snapshots and marks the others stale.
+     */
+    private Map<String, Map<String, Object>> fetchSnapshots() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FETCH_TIMEOUT_MS);
+        Map<String, Future<Map<String, Object>>> fetches = new HashMap<String, Future<Map<String, Object>>>();
+        synchronized (mFetches) {
+            for (final Map.Entry<String, ICarStats> e : mProviders.entrySet()) {
+                Future<Map<String, Object>> fetch = mFetches.get(e.getKey());
+                if (fetch == null || fetch.isDone()) {
+                    // Still waiting for a hung provider? Don't pile up more calls behind it.
+                    fetch = mFetchExecutor.submit(new Callable<Map<String, Object>>() {
+                        @Override
+                        @SuppressWarnings("unchecked")
+                        public Map<String, Object> call() throws RemoteException {
+                            return filterValues(e.getKey(), e.getValue().getMergedMeasurements());
+                        }
+                    });
+                    mFetches.put(e.getKey(), fetch);
+                }
+                fetches.put(e.getKey(), fetch);
+            }
+        }
 
+        Map<String, Map<String, Object>> snapshots = new HashMap<String, Map<String, Object>>();
+        for (Map.Entry<String, Future<Map<String, Object>>> e : fetches.entrySet()) {
+            String provider = e.getKey();
+            Map<String, Object> snapshot = null;
             try {
-                measurements.putAll(this.filterValues(provider, ((ICarStats)e.getValue()).getMergedMeasurements()));
-            } catch (RemoteException var6) {
-                Log.w("CarStatsClient", provider + ": Error getting measurements", var6);
+                snapshot = e.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException ex) {
+                Log.w(TAG, provider + ": Timeout getting measurements");
+            } catch (ExecutionException ex) {
+                Log.w(TAG, provider + ": Error getting measurements", ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (snapshot != null) {
+                mProviderSnapshots.put(provider, snapshot);
+                mStaleProviders.remove(provider);
+                snapshots.put(provider, snapshot);
+            } else {
+                mStaleProviders.add(provider);
             }
         }
+        return snapshots;
+    }
 
-        return measurements;
+    /**
+     * @return true if the last fetch from the provider failed or timed out.
+     */
+    public boolean isProviderStale(String provider) {
+        return mStaleProviders.contains(provider);
+    }
+
+    public Set<String> getStaleProviders() {
+        return Collections.unmodifiableSet(mStaleProviders);
+    }
+
+    /**
+     * @return true if the value of the key comes from a provider that is stale or reconnecting.
+     */
+    public boolean isStale(String key) {
+        int id = mStore.getId(key);
+        if (id == MeasurementStore.NO_ID) {
+            return false;
+        }
+        for (String provider : mStaleProviders) {
+            BitSet owned = mOwnedKeys.get(provider);
+            if (owned != null && owned.get(id)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public synchronized Map<String, FieldSchema> getSchema() {
         return Collections.unmodifiableMap(this.mSchema);
     }
 
+    /**
+     * @return a number that is incremented every time the merged schema changes.
+     */
+    public synchronized long getSchemaVersion() {
+        return mSchemaVersion;
+    }
+
+    /**
+     * Latest value of every measurement, indexed by the ids assigned from the schema.
+     */
+    public MeasurementStore getMeasurementStore() {
+        return mStore;
+    }
+
     public void registerListener(Listener listener) {
-        this.mListeners.add(listener);
+        registerListener(listener, null);
+    }
+
+    /**
+     * Registers a listener that is only called when one of the given keys changed, and only
+     * receives those keys.
+     *
+     * @param keys the keys the listener uses, or null to receive every measurement.
+     */
+    public void registerListener(Listener listener, Set<String> keys) {
+        addSubscription(listener, new ListenerBridge(listener), keys);
     }
 
     public void unregisterListener(Listener listener) {
-        this.mListeners.remove(listener);
+        removeSubscription(listener);
+    }
+
+    /**
+     * Registers a listener that reads changed values from a reused {@link MeasurementFrame}
+     * instead of receiving a map, so dispatching to it does not allocate.
+     *
+     * @param keys the keys the listener uses, or null to receive every measurement.
+     */
+    public void registerFrameListener(FrameListener listener, Set<String> keys) {
+        addSubscription(listener, listener, keys);
+    }
+
+    public void unregisterFrameListener(FrameListener listener) {
+        removeSubscription(listener);
+    }
+
+    private void addSubscription(Object owner, FrameListener listener, Set<String> keys) {
+        BitSet ids = null;
+        if (keys != null) {
+            ids = new BitSet();
+            for (String key : keys) {
+                ids.set(mStore.getOrCreateId(key));
+            }
+        }
+        synchronized (mListenersLock) {
+            Subscription[] listeners = Arrays.copyOf(mListeners, mListeners.length + 1);
+            listeners[listeners.length - 1] = new Subscription(owner, listener, ids);
+            mListeners = listeners;
+        }
+    }
+
+    private void removeSubscription(Object owner) {
+        synchronized (mListenersLock) {
+            Subscription[] listeners = mListeners;
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i].owner == owner) {
+                    Subscription[] remaining = new Subscription[listeners.length - 1];
+                    System.arraycopy(listeners, 0, remaining, 0, i);
+                    System.arraycopy(listeners, i + 1, remaining, i, listeners.length - i - 1);
+                    mListeners = remaining;
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class Subscription {
+        final Object owner;
+        final FrameListener listener;
+        final BitSet keys;
+
+        Subscription(Object owner, FrameListener listener, BitSet keys) {
+            this.owner = owner;
+            this.listener = listener;
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * Adapts a {@link Listener} to frames by boxing the changed values into a map.
+     */
+    private static class ListenerBridge implements FrameListener {
+        private final Listener mListener;
+
+        ListenerBridge(Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void onNewFrame(long elapsedRealtimeNanos, long timestamp, MeasurementFrame frame) {
+            Map<String, Object> values = new HashMap<String, Object>();
+            frame.copyChangedTo(values);
+            mListener.onNewMeasurements(frame.getProvider(), new Date(timestamp),
+                    Collections.unmodifiableMap(values));
+        }
+
+        @Override
+        public void onSchemaChanged(SchemaDelta delta) {
+            if (mListener instanceof SchemaListener) {
+                ((SchemaListener) mListener).onSchemaChanged(delta);
+            } else {
+                mListener.onSchemaChanged();
+            }
+        }
     }
 
     public static Collection<ResolveInfo> getProviderInfos(Context context) {
@@ -295,4 +767,25 @@ public class CarStatsClientTweaked {
 
         void onSchemaChanged();
     }
+
+    /**
+     * Listeners that also implement this interface receive what changed in the schema instead of
+     * {@link Listener#onSchemaChanged()}, and are not notified when nothing changed.
+     */
+    public interface SchemaListener {
+        void onSchemaChanged(SchemaDelta delta);
+    }
+
+    public interface FrameListener {
+        /**
+         * @param elapsedRealtimeNanos {@link SystemClock#elapsedRealtimeNanos()} when the newest
+         *                             values arrived, for measuring intervals.
+         * @param timestamp wall-clock time of the newest values in milliseconds, as sent by the
+         *                  provider.
+         * @param frame the changed values, only valid during this call.
+         */
+        void onNewFrame(long elapsedRealtimeNanos, long timestamp, MeasurementFrame frame);
+
+        void onSchemaChanged(SchemaDelta delta);
+    }
 }
@@ -4,16 +4,21 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.github.martoreto.aauto.vex.CarStatsClient;
 import com.github.martoreto.aauto.vex.FieldSchema;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.io.Files;
 import com.google.gson.reflect.TypeToken;
 
 import com.google.gson.Gson;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -24,78 +29,288 @@ import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
-import java.util.TimeZone;
-import java.util.zip.GZIPOutputStream;
-
-public class CarStatsLogger implements CarStatsClientTweaked.Listener {
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Writes the logger values to gzipped JSON lines files in {@link #getLogsDir()}, one row every
+ * {@link #ROW_INTERVAL_MS} while measurements keep arriving. Providers push changes at their own
+ * pace, so rows are clocked separately to keep the cadence of the logs fixed.
+ *
+ * The callback only copies the values into a pooled record and queues it. A writer thread encodes,
+ * compresses and writes the rows, so a slow disk never holds up the dispatch of measurements.
+ * If the queue is full, new rows are dropped or the caller waits for room, depending on the
+ * queue policy.
+ *
+ * With delta encoding on, rows only carry the values that changed, see {@link DeltaRowEncoder}.
+ *
+ * A log file is a segment of a trip. A new segment starts when the current one reaches the size or
+ * duration limit, or after data stopped for {@link #AUTO_SYNC_TIMEOUT_MS}; data resuming within a
+ * few minutes continues the trip. Finished segments are listed in the {@link LogManifest} and
+ * later compacted into {@link LogRollups}.
+ *
+ * Rows are checkpointed every few seconds, so a log the app was killed in the middle of loses at
+ * most the rows since then. Until a log is in the manifest an empty {@code .open} file next to
+ * it marks it as being written, {@link LogRecovery} repairs such logs on the next start. Each
+ * checkpoint starts a part that can be decoded on its own, listed in the {@link LogIndex} written
+ * next to the log for {@link IndexedLogReader}.
+ *
+ * A {@link TripSummary} of each trip is kept up to date next to the logs.
+ */
+public class CarStatsLogger implements CarStatsClientTweaked.Listener, CarStatsClientTweaked.SchemaListener {
     private static final String TAG = "CarStatsLogger";
 
-    private static final DateFormat LOG_FILENAME_DATE_FORMAT =
-            new SimpleDateFormat("yyyyMMddHHmmss", Locale.US);
-    private static final DateFormat JSON_DATE_FORMAT;
+    private static final Pattern JSON_KEY_INVALID_CHARS = Pattern.compile("[^a-zA-Z0-9.]");
+    private static final char[] JSON_ROW_START = "{\"timestamp\":\"".toCharArray();
 
     private static final int AUTO_SYNC_TIMEOUT_MS = 60000;
 
-    public static final String PREF_ENABLED = "statsLoggingActive";
+    public static final long ROW_INTERVAL_MS = 250;
+    // Connected providers are resynced every few seconds, even if nothing changed.
+    private static final long MEASUREMENT_TIMEOUT_MS = 10000;
 
-    static {
-        JSON_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSSSS", Locale.US);
-        JSON_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
-    }
+    public static final String PREF_ENABLED = "statsLoggingActive";
 
-    private boolean mIsEnabled = false;
+    // Drop rows that don't fit in the queue.
+    public static final int POLICY_DROP = 0;
+    // Wait up to BLOCK_TIMEOUT_MS for room in the queue before dropping.
+    public static final int POLICY_BLOCK = 1;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    private static final long BLOCK_TIMEOUT_MS = 1000;
+
+    private static final String SCHEMA_FILENAME = "schema.json";
+
+    public static final String PREF_BINARY_FORMAT = "statsLogBinary";
+    public static final String JSON_LOG_SUFFIX = ".log.gz";
+    public static final String BINARY_LOG_SUFFIX = ".clog";
+    static final String OPEN_SUFFIX = ".open";
+    public static final String PREF_DELTA_ENCODING = "statsLogDelta";
+
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 16 * 1024 * 1024;
+    public static final long DEFAULT_MAX_SEGMENT_DURATION_MS = TimeUnit.MINUTES.toMillis(30);
+    // Logs closed after a shorter pause in the data count as the same trip.
+    private static final long TRIP_GAP_MS = TimeUnit.MINUTES.toMillis(5);
+
+    public static final int DEFAULT_CHECKPOINT_ROWS = 200;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_MS = 5000;
+
+    private volatile boolean mIsEnabled = false;
+    private volatile boolean mBinaryFormat = false;
+    private volatile boolean mDeltaEncoding = false;
+    private volatile long mMaxSegmentBytes = DEFAULT_MAX_SEGMENT_BYTES;
+    private volatile long mMaxSegmentDurationMs = DEFAULT_MAX_SEGMENT_DURATION_MS;
+    private volatile int mCheckpointRows = DEFAULT_CHECKPOINT_ROWS;
+    private volatile long mCheckpointIntervalMs = DEFAULT_CHECKPOINT_INTERVAL_MS;
+    private final Context mContext;
     private final String mPrefix;
+    // Null for getLogsDir(), which depends on external storage.
+    private final File mLogsDir;
     private final CarStatsClientTweaked mCarStatsClient;
-    private GZIPOutputStream mLogStream;
+    private GzipMemberOutputStream mLogStream;
     private Writer mLogWriter;
+    private BinaryLogWriter mBinaryWriter;
     private File mLogFile;
     private Collection<Listener> mListeners = new ArrayList<>();
-    private Map<String, Object> mLoggerValues;
+    private volatile Map<String, Object> mLoggerValues;
+    // SystemClock.elapsedRealtime() of the last measurement callback.
+    private volatile long mLastMeasurementTime = Long.MIN_VALUE / 2;
+    private final HandlerThread mRowThread;
+    private final TaskScheduler.PeriodicJob mRowJob;
     private Handler mHandler;
     private Gson mGson = new Gson();
-    private boolean schemaNeedsUpdate = true;
+    // Fields not written to schema.json yet, and what schema.json contains.
+    private final Map<String, FieldSchema> mPendingSchema = new HashMap<>();
+    private Map<String, Object> mSavedSchema;
+
+    private final BlockingQueue<LogRecord> mQueue;
+    private final BlockingQueue<LogRecord> mFreeRecords;
+    private final Thread mWriterThread;
+    // Requests for the writer, signalled by interrupting it so the caller never waits.
+    private volatile boolean mCloseRequested = false;
+    private volatile boolean mShutdownRequested = false;
+    private volatile int mQueuePolicy = POLICY_DROP;
+    private final AtomicLong mWrittenCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private volatile int mMaxQueueDepth = 0;
+    // Only used on the writer thread.
+    private final DateFormat mFileNameDateFormat = new SimpleDateFormat("yyyyMMddHHmmss", Locale.US);
+    private final Map<String, Object> mRow = new HashMap<>();
+    private final char[] mTimestampChars = new char[LogTimestampFormat.LENGTH];
+    private final JsonKeyCache mKeyCache = new JsonKeyCache();
+    private final DeltaRowEncoder mDeltaEncoder = new DeltaRowEncoder();
+    // Whether the current log file is delta encoded.
+    private boolean mLogDelta = false;
+    // The current segment, see LogManifest.
+    private LogManifest mManifest;
+    private CountingOutputStream mSegmentStream;
+    private LogIndex.Writer mIndexWriter;
+    private final TripSummary mTripSummary = new TripSummary();
+    // Whether the next JSON row starts a gzip member, which gets an index entry.
+    private boolean mMemberStarting;
+    private long mSegmentStart;
+    private long mSegmentEnd;
+    private long mSegmentRows;
+    private long mTripStart = -1;
+    private long mLastRowTimestamp = -1;
+    private int mRowsSinceCheckpoint = 0;
+    private long mLastCheckpoint;
+
+    private static class LogRecord {
+        long timestamp;
+        int size;
+        String[] keys = new String[16];
+        Object[] values = new Object[16];
+
+        void add(String key, Object value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            keys[size] = key;
+            values[size] = value;
+            size++;
+        }
 
-    public CarStatsLogger(Context context, CarStatsClientTweaked statsClient, Handler handler, String prefix) {
+        void clear() {
+            Arrays.fill(keys, 0, size, null);
+            Arrays.fill(values, 0, size, null);
+            size = 0;
+        }
+    }
+
+    /**
+     * @param logsDir where to write the logs and their manifest and schema, or null for
+     *                {@link #getLogsDir()}.
+     */
+    public CarStatsLogger(Context context, CarStatsClientTweaked statsClient, Handler handler,
+                          String prefix, int queueCapacity, File logsDir) {
         super();
+        mContext = context;
         mHandler = handler;
         mPrefix = prefix;
+        mLogsDir = logsDir;
         mCarStatsClient = statsClient;
-
-
-        /*SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        mPendingSchema.putAll(statsClient.getSchema());
+        mQueue = new ArrayBlockingQueue<>(queueCapacity);
+        // One more than the queue, for the record the writer is busy with.
+        mFreeRecords = new ArrayBlockingQueue<>(queueCapacity + 1);
+        mWriterThread = new Thread(mWriter, "CarStatsLogWriter");
+        mWriterThread.start();
+        // Own thread, queueing may wait for the writer with POLICY_BLOCK.
+        mRowThread = new HandlerThread("CarStatsLogRows");
+        mRowThread.start();
+        mRowJob = TaskScheduler.getInstance().createJob("CarStatsLogger.row",
+                mRowThread.getLooper(), TaskScheduler.FIXED_RATE, ROW_INTERVAL_MS, mRowTask);
+        mRowJob.start();
+
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
         sharedPreferences.registerOnSharedPreferenceChangeListener(mPreferencesListener);
-        readPreferences(sharedPreferences);*/
+        readPreferences(sharedPreferences);
+    }
+
+    public CarStatsLogger(Context context, CarStatsClientTweaked statsClient, Handler handler, String prefix) {
+        this(context, statsClient, handler, prefix, DEFAULT_QUEUE_CAPACITY, null);
     }
 
     public CarStatsLogger(Context context, CarStatsClientTweaked statsClient, Handler handler) {
         this(context, statsClient, handler, "car");
     }
 
+    /**
+     * @param policy {@link #POLICY_DROP} or {@link #POLICY_BLOCK}.
+     */
+    public void setQueuePolicy(int policy) {
+        mQueuePolicy = policy;
+    }
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    public long getWrittenCount() {
+        return mWrittenCount.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
     public void setIsEnabled(boolean isEnabled) {
         mIsEnabled = isEnabled;
     }
 
-    /*private void readPreferences(SharedPreferences preferences) {
-        mIsEnabled = preferences.getBoolean(PREF_ENABLED, true);
-    }*/
+    private void readPreferences(SharedPreferences preferences) {
+        // mIsEnabled is switched by the dashboard.
+        mBinaryFormat = preferences.getBoolean(PREF_BINARY_FORMAT, false);
+        mDeltaEncoding = preferences.getBoolean(PREF_DELTA_ENCODING, false);
+    }
+
+    /**
+     * Chooses between gzipped JSON lines and the {@link BinaryLogWriter} format. Takes effect with
+     * the next log file.
+     */
+    public void setBinaryFormat(boolean binaryFormat) {
+        mBinaryFormat = binaryFormat;
+    }
+
+    /**
+     * Writes only the values that changed, see {@link DeltaRowEncoder}. Takes effect with the next
+     * log file.
+     */
+    public void setDeltaEncoding(boolean deltaEncoding) {
+        mDeltaEncoding = deltaEncoding;
+    }
+
+    /**
+     * Sets how much a value has to change to be written again in delta encoded logs. Without one,
+     * half the resolution from the schema is used, or any change.
+     */
+    public void setDeltaEpsilon(String key, double epsilon) {
+        mDeltaEncoder.setEpsilon(key, epsilon);
+    }
+
+    /**
+     * Starts a new log file, a segment of the same trip, once the current one reaches either
+     * limit. Both are checked before every row.
+     */
+    public void setSegmentLimits(long maxBytes, long maxDurationMs) {
+        mMaxSegmentBytes = maxBytes;
+        mMaxSegmentDurationMs = maxDurationMs;
+    }
+
+    /**
+     * Makes everything written so far readable from the file after this many rows or milliseconds,
+     * whichever comes first, even if the app is killed before the log is closed.
+     */
+    public void setCheckpointInterval(int rows, long intervalMs) {
+        mCheckpointRows = rows;
+        mCheckpointIntervalMs = intervalMs;
+    }
 
     public void setLoggerValues(Map<String, Object> loggerValues){
         this.mLoggerValues = loggerValues ;
     }
 
-    /*@SuppressWarnings("FieldCanBeLocal")
     private final SharedPreferences.OnSharedPreferenceChangeListener mPreferencesListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
         @Override
         public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String s) {
-            //readPreferences(sharedPreferences);
-
+            readPreferences(sharedPreferences);
         }
-    };*/
+    };
 
     public boolean getIsEnabled() {
         return mIsEnabled;
@@ -120,34 +335,229 @@ public class CarStatsLogger implements CarStatsClientTweaked.Listener {
 
     @Override
     public void onNewMeasurements(String provider, Date date, Map<String, Object> values) {
-        if (!mIsEnabled) {
+        // Only a sign that data is flowing, rows are written by mRowTask.
+        mLastMeasurementTime = SystemClock.elapsedRealtime();
+    }
+
+    private final Runnable mRowTask = new Runnable() {
+        @Override
+        public void run() {
+            if (SystemClock.elapsedRealtime() - mLastMeasurementTime > MEASUREMENT_TIMEOUT_MS) {
+                // Let the log close when the data stops.
+                return;
+            }
+            logRow(System.currentTimeMillis());
+        }
+    };
+
+    /**
+     * Queues a row of the current logger values.
+     */
+    void logRow(long timestamp) {
+        Map<String, Object> loggerValues = mLoggerValues;
+        if (!mIsEnabled || loggerValues == null) {
             return;
         }
+        LogRecord record = obtainRecord();
+        record.timestamp = timestamp;
+        for (Map.Entry<String, Object> measurement: loggerValues.entrySet()) {
+            record.add(measurement.getKey(), measurement.getValue());
+        }
+        boolean queued;
+        if (mQueuePolicy == POLICY_BLOCK) {
+            try {
+                queued = mQueue.offer(record, BLOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                queued = false;
+            }
+        } else {
+            queued = mQueue.offer(record);
+        }
+        if (queued) {
+            int depth = mQueue.size();
+            if (depth > mMaxQueueDepth) {
+                mMaxQueueDepth = depth;
+            }
+        } else {
+            recycleRecord(record);
+            long dropped = mDroppedCount.incrementAndGet();
+            if (dropped == 1 || dropped % 100 == 0) {
+                Log.w(TAG, "Log queue full, dropped " + dropped + " rows so far");
+            }
+        }
+    }
+
+    private LogRecord obtainRecord() {
+        LogRecord record = mFreeRecords.poll();
+        if (record == null) {
+            record = new LogRecord();
+        }
+        return record;
+    }
+
+    private void recycleRecord(LogRecord record) {
+        record.clear();
+        mFreeRecords.offer(record);
+    }
+
+    private final Runnable mWriter = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                if (mShutdownRequested) {
+                    writeQueuedRows();
+                    closeLog();
+                    Log.i(TAG, "Writer stopped, " + mWrittenCount.get() + " rows written, "
+                            + mDroppedCount.get() + " dropped, max queue depth " + mMaxQueueDepth);
+                    return;
+                }
+                if (mCloseRequested) {
+                    mCloseRequested = false;
+                    writeQueuedRows();
+                    closeLog();
+                }
+                LogRecord record;
+                try {
+                    // Wake up to checkpoint rows that are still waiting when data stops.
+                    record = mQueue.poll(mCheckpointIntervalMs, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // A close or shutdown request.
+                    continue;
+                }
+                if (record == null) {
+                    if (mRowsSinceCheckpoint > 0) {
+                        checkpoint();
+                    }
+                    continue;
+                }
+                writeRow(record);
+                recycleRecord(record);
+            }
+        }
+    };
+
+    // Only called on the writer thread.
+    private void writeQueuedRows() {
+        LogRecord record;
+        while ((record = mQueue.poll()) != null) {
+            writeRow(record);
+            recycleRecord(record);
+        }
+    }
+
+    private void writeRow(LogRecord record) {
         try {
-            createLogStream();
-            if (mLogWriter != null && mLoggerValues != null) {
-                Map<String, Object> o = new HashMap<>();
-                o.put("timestamp", JSON_DATE_FORMAT.format(date));
-                for (Map.Entry<String, Object> measurement: mLoggerValues.entrySet()) {
-                    String key = makeJsonKey(measurement.getKey());
-                    o.put(key, measurement.getValue());
+            if (isSegmentFull(record.timestamp)) {
+                Log.d(TAG, "Rotating log after " + mSegmentRows + " rows, "
+                        + mSegmentStream.getCount() + " bytes");
+                closeLog();
+            }
+            createLogStream(record.timestamp);
+            if (mLogFile == null) {
+                return;
+            }
+            mTripSummary.addRow(record.timestamp, record.keys, record.values, record.size);
+            boolean keyframe = false;
+            if (mLogDelta) {
+                keyframe = mDeltaEncoder.startRow(record.timestamp);
+                // The binary format stores changes only by itself, it just needs the epsilons.
+                record.size = mDeltaEncoder.encode(record.keys, record.values, record.size,
+                        keyframe, mBinaryWriter == null);
+            }
+            if (mBinaryWriter != null) {
+                mBinaryWriter.writeRow(record.timestamp, record.keys, record.values, record.size);
+            } else {
+                if (mMemberStarting) {
+                    // Everything before was flushed by the checkpoint, the count is exact.
+                    mIndexWriter.add(mSegmentStream.getCount(), record.timestamp);
+                    mMemberStarting = false;
+                }
+                mRow.clear();
+                if (keyframe) {
+                    mRow.put(DeltaRowEncoder.KEYFRAME_KEY, true);
+                }
+                for (int i = 0; i < record.size; i++) {
+                    mRow.put(mKeyCache.get(record.keys[i]), record.values[i]);
+                }
+                // The timestamp is written by hand, it is the one value of every row.
+                mLogWriter.write(JSON_ROW_START);
+                int length = LogTimestampFormat.format(record.timestamp, mTimestampChars, 0);
+                mLogWriter.write(mTimestampChars, 0, length);
+                mLogWriter.write('"');
+                String values = mGson.toJson(mRow);
+                if (values.length() > 2) {
+                    mLogWriter.write(',');
+                    mLogWriter.write(values, 1, values.length() - 1);
+                } else {
+                    mLogWriter.write('}');
                 }
-                mLogWriter.write(mGson.toJson(o));
                 mLogWriter.write('\n');
-                scheduleSyncTimeout();
+            }
+            mSegmentEnd = record.timestamp;
+            mSegmentRows++;
+            mLastRowTimestamp = record.timestamp;
+            mWrittenCount.incrementAndGet();
+            scheduleSyncTimeout();
+            mRowsSinceCheckpoint++;
+            if (mRowsSinceCheckpoint >= mCheckpointRows
+                    || SystemClock.elapsedRealtime() - mLastCheckpoint >= mCheckpointIntervalMs) {
+                checkpoint();
             }
         } catch (Exception e) {
             Log.w(TAG, "Error saving measurements", e);
-            close();
+            closeLog();
+        }
+    }
+
+    /**
+     * Gets the rows written so far into the file in a form that can be read back: a finished gzip
+     * member for JSON logs, a complete block for binary ones.
+     */
+    private void checkpoint() {
+        try {
+            if (mBinaryWriter != null) {
+                mBinaryWriter.flushBlock();
+                mBinaryWriter.flush();
+                mIndexWriter.flush();
+            } else if (mLogWriter != null) {
+                mLogWriter.flush();
+                mLogStream.finishMember();
+                mIndexWriter.flush();
+                mMemberStarting = true;
+                // Every member starts with a keyframe, so it can be decoded on its own.
+                mDeltaEncoder.requestKeyframe();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error writing checkpoint", e);
+            closeLog();
         }
+        mRowsSinceCheckpoint = 0;
+        mLastCheckpoint = SystemClock.elapsedRealtime();
+    }
+
+    private boolean isSegmentFull(long timestamp) {
+        return mLogFile != null && mSegmentRows > 0
+                && (mSegmentStream.getCount() >= mMaxSegmentBytes
+                || timestamp - mSegmentStart >= mMaxSegmentDurationMs);
     }
 
     public static String makeJsonKey(String key) {
-        return key.replaceAll("[^a-zA-Z0-9.]", "_");
+        return JSON_KEY_INVALID_CHARS.matcher(key).replaceAll("_");
     }
     @Override
     public void onSchemaChanged() {
-        schemaNeedsUpdate = true;
+        // not called, schema changes arrive as SchemaDelta
+    }
+
+    @Override
+    public void onSchemaChanged(SchemaDelta delta) {
+        // Removed fields stay in schema.json, older logs may still contain them.
+        synchronized (mPendingSchema) {
+            mPendingSchema.putAll(delta.getAdded());
+            mPendingSchema.putAll(delta.getChanged());
+        }
     }
 
     public static File getLogsDir() throws IOException {
@@ -162,53 +572,189 @@ public class CarStatsLogger implements CarStatsClientTweaked.Listener {
     }
 
     public static File getSchemaFile() throws IOException {
-        return new File(getLogsDir(), "schema.json");
+        return new File(getLogsDir(), SCHEMA_FILENAME);
     }
 
-    private synchronized void createLogStream() throws IOException {
-        if (schemaNeedsUpdate) {
-            updateSchema();
-        }
-        if (mLogWriter != null) {
+    /**
+     * @return the file that exists while {@code logFile} is being written.
+     */
+    static File getOpenMarker(File logFile) {
+        return new File(logFile.getParentFile(), logFile.getName() + OPEN_SUFFIX);
+    }
+
+    private File getLogsDirectory() throws IOException {
+        return mLogsDir != null ? mLogsDir : getLogsDir();
+    }
+
+    private LogManifest openManifest() throws IOException {
+        LogManifest manifest = mLogsDir != null ? new LogManifest(mLogsDir) : LogManifest.open();
+        manifest.create();
+        return manifest;
+    }
+
+    private void createLogStream(long timestamp) throws IOException {
+        updateSchema();
+        if (mLogWriter != null || mBinaryWriter != null) {
             return;
         }
         String state = Environment.getExternalStorageState();
-        if (!Environment.MEDIA_MOUNTED.equals(state)) {
+        if (mLogsDir == null && !Environment.MEDIA_MOUNTED.equals(state)) {
             return;
         }
+        if (mManifest == null) {
+            mManifest = openManifest();
+        }
 
-        String formattedDate = LOG_FILENAME_DATE_FORMAT.format(new Date());
-        mLogFile = new File(getLogsDir(), mPrefix + "-" + formattedDate + ".log.gz");
-        mLogStream = new GZIPOutputStream(new FileOutputStream(mLogFile));
-        mLogWriter = new OutputStreamWriter(mLogStream,
-                StandardCharsets.UTF_8);
+        String formattedDate = mFileNameDateFormat.format(new Date());
+        String suffix = mBinaryFormat ? BINARY_LOG_SUFFIX : JSON_LOG_SUFFIX;
+        File logsDir = getLogsDirectory();
+        File logFile = new File(logsDir, mPrefix + "-" + formattedDate + suffix);
+        // Segments can be rotated within a second.
+        for (int i = 1; logFile.exists(); i++) {
+            logFile = new File(logsDir, mPrefix + "-" + formattedDate + "_" + i + suffix);
+        }
+        if (mLogsDir == null) {
+            LogRecovery.awaitScan();
+        }
+        if (!getOpenMarker(logFile).createNewFile()) {
+            Log.w(TAG, "Open marker already exists for " + logFile);
+        }
+        mSegmentStream = new CountingOutputStream(new FileOutputStream(logFile));
+        mIndexWriter = new LogIndex.Writer(logFile);
+        mLogFile = logFile;
+        mLogDelta = mDeltaEncoding;
+        mDeltaEncoder.reset();
+        if (mBinaryFormat) {
+            String schemaJson = mSavedSchema != null ? mGson.toJson(mSavedSchema) : "{}";
+            mBinaryWriter = new BinaryLogWriter(new BufferedOutputStream(mSegmentStream), schemaJson);
+            mBinaryWriter.setIndex(mIndexWriter);
+        } else {
+            mLogStream = new GzipMemberOutputStream(mSegmentStream);
+            mMemberStarting = true;
+            mLogWriter = new OutputStreamWriter(mLogStream,
+                    StandardCharsets.UTF_8);
+        }
+        if (mTripStart < 0 || mLastRowTimestamp < 0 || timestamp - mLastRowTimestamp > TRIP_GAP_MS
+                || timestamp < mLastRowTimestamp) {
+            mTripStart = timestamp;
+        }
+        if (mTripSummary.getTripStart() != mTripStart) {
+            mTripSummary.reset(mTripStart);
+        }
+        mSegmentStart = timestamp;
+        mSegmentEnd = timestamp;
+        mSegmentRows = 0;
+        mRowsSinceCheckpoint = 0;
+        mLastCheckpoint = SystemClock.elapsedRealtime();
         Log.i(TAG, "Started log file: " + mLogFile.getAbsolutePath());
     }
 
     private void updateSchema() throws IOException {
+        Map<String, FieldSchema> pending;
+        synchronized (mPendingSchema) {
+            if (mPendingSchema.isEmpty()) {
+                return;
+            }
+            pending = new HashMap<>(mPendingSchema);
+            mPendingSchema.clear();
+        }
+        try {
+            writeSchema(pending);
+            mKeyCache.addAll(pending.keySet());
+            for (Map.Entry<String, FieldSchema> field : pending.entrySet()) {
+                mDeltaEncoder.setSchemaResolution(field.getKey(), field.getValue().getResolution());
+                mTripSummary.setRange(field.getKey(), field.getValue().getMin(),
+                        field.getValue().getMax());
+            }
+        } catch (IOException e) {
+            synchronized (mPendingSchema) {
+                for (Map.Entry<String, FieldSchema> field : pending.entrySet()) {
+                    if (!mPendingSchema.containsKey(field.getKey())) {
+                        mPendingSchema.put(field.getKey(), field.getValue());
+                    }
+                }
+            }
+            throw e;
+        }
+    }
+
+    private void writeSchema(Map<String, FieldSchema> pending) throws IOException {
         Log.d(TAG, "Updating schema...");
-        Map<String, Object> schema = null;
-        File schemaFile = getSchemaFile();
+        File schemaFile = new File(getLogsDirectory(), SCHEMA_FILENAME);
         Type type = new TypeToken<Map<String, Object>>(){}.getType();
-        if (schemaFile.exists()) {
-            schema = mGson.fromJson(Files.asCharSource(schemaFile, StandardCharsets.UTF_8).read(),
+        if (mSavedSchema == null && schemaFile.exists()) {
+            mSavedSchema = mGson.fromJson(Files.asCharSource(schemaFile, StandardCharsets.UTF_8).read(),
                     type);
         }
-        if (schema == null) {
-            schema = new HashMap<>();
+        if (mSavedSchema == null) {
+            mSavedSchema = new HashMap<>();
         }
-        for (Map.Entry<String, FieldSchema> e: mCarStatsClient.getSchema().entrySet()) {
-            if (!schema.containsKey(e.getKey())) {
+        boolean keysAdded = false;
+        for (Map.Entry<String, FieldSchema> e: pending.entrySet()) {
+            if (!mSavedSchema.containsKey(e.getKey())) {
                 Log.d(TAG, "  New schema key: " + e.getKey() + " " + mGson.toJson(e.getValue()));
+                keysAdded = true;
             }
         }
-        schema.putAll(mCarStatsClient.getSchema());
-        Files.asCharSink(schemaFile, StandardCharsets.UTF_8).write(mGson.toJson(schema, type));
-        schemaNeedsUpdate = false;
+        mSavedSchema.putAll(pending);
+        Files.asCharSink(schemaFile, StandardCharsets.UTF_8).write(mGson.toJson(mSavedSchema, type));
+        if (keysAdded) {
+            if (mManifest == null) {
+                mManifest = openManifest();
+            }
+            mManifest.incrementSchemaVersion();
+        }
+    }
+
+
+    /**
+     * Ends the current log file after the rows queued so far are written. Doesn't wait for it.
+     */
+    public void close() {
+        mCloseRequested = true;
+        mWriterThread.interrupt();
+    }
+
+    /**
+     * Ends the current log file and stops the writer thread once the queued rows are written.
+     * Doesn't wait for it, see {@link #awaitShutdown(long)}. The logger can't be used afterwards.
+     */
+    public void shutdown() {
+        mIsEnabled = false;
+        mRowJob.stop();
+        mRowThread.quit();
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        sharedPreferences.unregisterOnSharedPreferenceChangeListener(mPreferencesListener);
+        mShutdownRequested = true;
+        mWriterThread.interrupt();
     }
 
+    /**
+     * Waits for the writer thread to finish after {@link #shutdown()}. Not for the main thread.
+     *
+     * @return true if it finished in time.
+     */
+    boolean awaitShutdown(long timeoutMs) throws InterruptedException {
+        mWriterThread.join(timeoutMs);
+        if (mWriterThread.isAlive()) {
+            Log.w(TAG, "Writer didn't finish in time, " + mQueue.size() + " rows pending");
+            return false;
+        }
+        return true;
+    }
 
-    public synchronized void close() {
+    // Only called on the writer thread.
+    private void closeLog() {
+        if (mBinaryWriter != null) {
+            try {
+                mBinaryWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing log stream", e);
+            }
+            mBinaryWriter = null;
+            closeIndex();
+            notifyLogFileComplete();
+        }
         if (mLogWriter != null) {
             try {
                 mLogWriter.flush();
@@ -221,18 +767,78 @@ public class CarStatsLogger implements CarStatsClientTweaked.Listener {
             } catch (IOException e) {
                 Log.e(TAG, "Error closing log stream", e);
             }
-            for (Listener listener: mListeners) {
-                try {
-                    listener.onLogFileComplete(mLogFile);
-                } catch (Exception e) {
-                    Log.e(TAG, "Error from listener", e);
-                }
-            }
             mLogWriter = null;
             mLogStream = null;
-            mLogFile = null;
-            mHandler.removeCallbacks(mSync);
+            closeIndex();
+            notifyLogFileComplete();
+        }
+    }
+
+    private void closeIndex() {
+        if (mIndexWriter != null) {
+            try {
+                mIndexWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing log index", e);
+            }
+            mIndexWriter = null;
+        }
+    }
+
+    private void notifyLogFileComplete() {
+        // Left in place if the manifest can't be updated, so recovery adds the log later.
+        if (addSegmentToManifest()) {
+            getOpenMarker(mLogFile).delete();
+        }
+        writeTripSummary();
+        for (Listener listener: mListeners) {
+            try {
+                listener.onLogFileComplete(mLogFile);
+            } catch (Exception e) {
+                Log.e(TAG, "Error from listener", e);
+            }
+        }
+        mLogFile = null;
+        mSegmentStream = null;
+        mHandler.removeCallbacks(mSync);
+    }
+
+    /**
+     * Writes {@code <prefix>-<trip start>.summary.json}, replaced with every segment of the trip.
+     */
+    private void writeTripSummary() {
+        mTripSummary.addSegment(mLogFile.getName());
+        File summaryFile = new File(mLogFile.getParentFile(), mPrefix + "-"
+                + mFileNameDateFormat.format(new Date(mTripStart)) + TripSummary.SUFFIX);
+        try {
+            mTripSummary.write(summaryFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing trip summary", e);
+        }
+    }
+
+    private boolean addSegmentToManifest() {
+        if (mManifest == null) {
+            return false;
+        }
+        LogManifest.Segment segment = new LogManifest.Segment();
+        segment.file = mLogFile.getName();
+        segment.trip = mTripStart;
+        segment.start = mSegmentStart;
+        segment.end = mSegmentEnd;
+        segment.rows = mSegmentRows;
+        segment.bytes = mLogFile.length();
+        segment.format = BinaryLogReader.isBinaryLog(mLogFile)
+                ? LogManifest.FORMAT_BINARY : LogManifest.FORMAT_JSON;
+        segment.delta = mLogDelta;
+        try {
+            segment.schemaVersion = mManifest.getSchemaVersion();
+            mManifest.addSegment(segment);
+        } catch (IOException e) {
+            Log.e(TAG, "Error updating manifest", e);
+            return false;
         }
+        return true;
     }
 
     public void registerListener(Listener listener) {
@@ -5,9 +5,11 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
+import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
@@ -15,10 +17,8 @@ import android.util.Log;
 import com.github.martoreto.aauto.vex.CarStatsClient;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.HashSet;
+import java.util.Set;
 
 public class CarStatsService extends CarModeService {
     private static final String TAG = "CarStatsService";
@@ -26,35 +26,53 @@ public class CarStatsService extends CarModeService {
     private static final int NOTIFICATION_ID = 1;
     public static final String NOTIFICATION_CHANNEL_ID = "car";
 
+    // Providers push their changes, the timer only has to resync the full snapshot now and then.
+    private static final int FULL_RESYNC_INTERVAL_MS = 5000;
+
     private CarStatsClientTweaked mStatsClient;
     private CarStatsLogger mStatsLogger;
-    private EngineTempMonitor mEngineTempMonitor;
-    private BoostPressureMonitor mBoostPressureMonitor;
+    private AlertEngine mAlertEngine;
+    private AlertRules mAlertRules;
     private EngineSpeedMonitor mEngineSpeedMonitor;
     private WheelStateMonitor mWheelStateMonitor;
+    private SamplingRateController mSamplingRateController;
+    private MeasurementHistory mHistory;
+    private volatile MeasurementSnapshot mSnapshot = MeasurementSnapshot.EMPTY;
 
     private final IBinder mBinder = new CarStatsBinder();
-    private Timer updateTimer;
-    private Runnable updateTimerRunnable;
-    private static final Map<String, Object> mLastMeasurements = new HashMap<>();
+    private final TaskScheduler.PeriodicJob mResyncJob = TaskScheduler.getInstance().createBackgroundJob(
+            "CarStatsService.resync", TaskScheduler.FIXED_DELAY, FULL_RESYNC_INTERVAL_MS, new Runnable() {
+                @Override
+                public void run() {
+                    if (mStatsClient != null) {
+                        mStatsClient.forceUpdateMeasurements();
+                    }
+                }
+            });
 
     @SuppressWarnings("unused")
     public class CarStatsBinder extends Binder {
         CarStatsClientTweaked getStatsClient() {
             return mStatsClient;
         }
-        EngineTempMonitor getEngineTempMonitor() {
-            return mEngineTempMonitor;
+        AlertEngine getAlertEngine() {
+            return mAlertEngine;
         }
         CarStatsLogger getStatsLogger() {
             return mStatsLogger;
         }
-        BoostPressureMonitor getBoostPressureMonitor() {
-            return mBoostPressureMonitor;
-        }
         WheelStateMonitor getWheelStateMonitor() {
             return mWheelStateMonitor;
         }
+        SamplingRateController getSamplingRateController() {
+            return mSamplingRateController;
+        }
+        MeasurementSnapshot getSnapshot() {
+            return CarStatsService.this.getSnapshot();
+        }
+        MeasurementHistory getHistory() {
+            return mHistory;
+        }
     }
 
     @Override
@@ -75,42 +93,75 @@ public class CarStatsService extends CarModeService {
         }
 
         mStatsClient = new CarStatsClientTweaked(this);
+        mStatsClient.setDeltaDispatch(true);
 
+        // Before the logger starts a new file.
+        LogRecovery.start(this);
+        LogCompactionService.schedule(this);
         mStatsLogger = new CarStatsLogger(this, mStatsClient, new Handler());
         mStatsLogger.registerListener(mStatsLoggerListener);
         mStatsClient.registerListener(mStatsLogger);
 
-        mEngineTempMonitor = new EngineTempMonitor(this, new Handler());
-        mStatsClient.registerListener(mEngineTempMonitor);
-
-        mBoostPressureMonitor = new BoostPressureMonitor(this, new Handler());
-        mStatsClient.registerListener(mBoostPressureMonitor);
+        mAlertEngine = new AlertEngine(this, new Handler(), mStatsClient.getMeasurementStore());
+        mAlertRules = new AlertRules(this, mAlertEngine);
+        mStatsClient.registerFrameListener(mAlertEngine, null);
 
         mEngineSpeedMonitor = new EngineSpeedMonitor(this,new Handler());
-        mStatsClient.registerListener(mEngineSpeedMonitor);
+        mStatsClient.registerListener(mEngineSpeedMonitor, EngineSpeedMonitor.KEYS);
+
+        mWheelStateMonitor = new WheelStateMonitor(this, new Handler(), mStatsClient.getMeasurementStore());
+        mStatsClient.registerFrameListener(mWheelStateMonitor, WheelStateMonitor.KEYS);
 
-        mWheelStateMonitor = new WheelStateMonitor(this, new Handler());
-        mStatsClient.registerListener(mWheelStateMonitor);
+        mSamplingRateController = new SamplingRateController(mStatsClient.getMeasurementStore());
+        mStatsClient.registerFrameListener(mSamplingRateController, SamplingRateController.KEYS);
+
+        mHistory = new MeasurementHistory(mStatsClient.getMeasurementStore());
+        mStatsClient.registerFrameListener(mHistory, null);
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+        sharedPreferences.registerOnSharedPreferenceChangeListener(mPreferencesListener);
+        updateHistoryKeys(sharedPreferences);
 
         mStatsClient.start();
-        createAndStartUpdateTimer();
+        mResyncJob.start();
     }
 
-    private void createAndStartUpdateTimer() {
-        updateTimer = new Timer();
-        updateTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                updateTimerRunnable = new Runnable() {
-                    public void run() {
-                        if (mStatsClient != null) {
-                            mStatsClient.forceUpdateMeasurements();
-                        }
-                    }
-                };
-                updateTimerRunnable.run();
+    // Records what the dashboard clocks show from the start, not just while a dashboard is visible.
+    private void updateHistoryKeys(SharedPreferences sharedPreferences) {
+        Set<String> measurements = new HashSet<>();
+        Set<String> series = new HashSet<>();
+        for (String query : DashboardFragment.getClockQueries(sharedPreferences)) {
+            String key = DashboardFragment.getMeasurementKey(query);
+            if (key != null) {
+                measurements.add(key);
+            } else {
+                series.add(query);
             }
-        }, 0, 250);//Update display 0,25 second
+        }
+        mHistory.retain(measurements, series);
+    }
+
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPreferencesListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                    if (key != null && key.startsWith("selectedClock") && mHistory != null) {
+                        updateHistoryKeys(sharedPreferences);
+                    }
+                }
+            };
+
+    /**
+     * @return the latest values of all measurements; a new copy is only made if something changed
+     * since the last call.
+     */
+    private MeasurementSnapshot getSnapshot() {
+        CarStatsClientTweaked statsClient = mStatsClient;
+        if (statsClient == null) {
+            return mSnapshot;
+        }
+        MeasurementSnapshot snapshot = statsClient.getMeasurementStore().snapshot(mSnapshot);
+        mSnapshot = snapshot;
+        return snapshot;
     }
 
     @Override
@@ -141,23 +192,27 @@ public class CarStatsService extends CarModeService {
     public void onDestroy() {
         Log.d(TAG, "Service stopping.");
 
+        PreferenceManager.getDefaultSharedPreferences(this)
+                .unregisterOnSharedPreferenceChangeListener(mPreferencesListener);
+
         if (mStatsLogger != null) {
-            mStatsLogger.close();
+            mStatsLogger.shutdown();
             mStatsLogger = null;
         }
-        if (mEngineTempMonitor != null) {
-            mEngineTempMonitor.close();
-            mEngineTempMonitor = null;
+        if (mAlertRules != null) {
+            mAlertRules.close();
+            mAlertRules = null;
         }
-        if (mBoostPressureMonitor != null) {
-            mBoostPressureMonitor.close();
-            mBoostPressureMonitor = null;
+        if (mAlertEngine != null) {
+            mStatsClient.unregisterFrameListener(mAlertEngine);
+            mAlertEngine.close();
+            mAlertEngine = null;
         }
         if (mEngineSpeedMonitor != null) {
             mEngineSpeedMonitor.close();
             mEngineSpeedMonitor = null;
         }
-        updateTimer.cancel();
+        mResyncJob.stop();
         mStatsClient.stop();
         mStatsClient = null;
 
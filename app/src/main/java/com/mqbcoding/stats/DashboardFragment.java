@@ -20,6 +20,7 @@ import android.location.Address;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.preference.Preference;
 import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
@@ -59,21 +60,27 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Random;
+import java.util.Set;
 import java.util.TimeZone;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class DashboardFragment extends CarFragment {
     private final String TAG = "DashboardFragment";
-    private Timer updateTimer;
-    private CarStatsClientTweaked mStatsClient;
-    private EngineTempMonitor mEngineTempMonitor;
-    private BoostPressureMonitor mBoostPressureMonitor;
+    private SamplingRateController mRateController;
+    private final TaskScheduler.PeriodicJob mUpdateJob = TaskScheduler.getInstance().createMainJob(
+            "DashboardFragment.update", TaskScheduler.FIXED_RATE, 250, new Runnable() {
+                @Override
+                public void run() {
+                    doUpdate();
+                }
+            });
+    private CarStatsService.CarStatsBinder mStatsBinder;
+    private AlertEngine mAlertEngine;
     private CarStatsLogger mStatsLogger;
     private Speedometer mClockLeft, mClockCenter, mClockRight;
     private Speedometer mClockMaxLeft, mClockMaxCenter, mClockMaxRight;
@@ -114,9 +121,17 @@ public class DashboardFragment extends CarFragment {
     private LineGraphSeries<DataPoint> mSpeedSeriesLeft;
     private LineGraphSeries<DataPoint> mSpeedSeriesCenter;
     private LineGraphSeries<DataPoint> mSpeedSeriesRight;
-    private double graphLeftLastXValue = 5d;
-    private double graphCenterLastXValue = 5d;
-    private double graphRightLastXValue = 5d;
+    // Graph x values are time based, 0.5 per 250 ms like the original fixed update rate.
+    private static final double GRAPH_X_PER_MS = 0.5d / 250;
+    private static final long GRAPH_EPOCH = SystemClock.elapsedRealtime();
+    private static final int DASHBOARD_COUNT = 4;
+    private static final String DEFAULT_CLOCK_LEFT = "torque-enginecoolanttemp_0x05";
+    private static final String DEFAULT_CLOCK_CENTER = "torque-turboboost_0xff1202";
+    private static final String DEFAULT_CLOCK_RIGHT = "torque-AFR_0xff1249";
+    private MeasurementHistory mHistory;
+    private boolean mGraphsSeeded = false;
+    private final long[] mGraphTimes = new long[MeasurementHistory.DEFAULT_CAPACITY];
+    private final float[] mGraphValues = new float[MeasurementHistory.DEFAULT_CAPACITY];
     //value displayed on graphlayout
     private TextView mGraphValueLeft, mGraphValueCenter, mGraphValueRight;
     private View rootView;
@@ -263,41 +278,25 @@ public class DashboardFragment extends CarFragment {
 
 
 
-    private final CarStatsClientTweaked.Listener mCarStatsListener = new CarStatsClientTweaked.Listener() {
-        @Override
-        public void onNewMeasurements(String provider, Date timestamp, Map<String, Object> values) {
-            mLastMeasurements.putAll(values);
-
-            postUpdate();
-
-            //Log.i(TAG, "onCarStatsClient.Listener");
-        }
-
-        @Override
-        public void onSchemaChanged() {
-            // do nothing
-        }
-
-
-    };
-
     private final ServiceConnection mVexServiceConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
             CarStatsService.CarStatsBinder carStatsBinder = (CarStatsService.CarStatsBinder) iBinder;
             Log.i(TAG, "ServiceConnected");
-            mStatsClient = carStatsBinder.getStatsClient();
-            mEngineTempMonitor = carStatsBinder.getEngineTempMonitor();
-            mBoostPressureMonitor = carStatsBinder.getBoostPressureMonitor();
+            mStatsBinder = carStatsBinder;
+            mHistory = carStatsBinder.getHistory();
+            mAlertEngine = carStatsBinder.getAlertEngine();
             mStatsLogger = carStatsBinder.getStatsLogger();
-            mLastMeasurements = mStatsClient.getMergedMeasurements();
-            mStatsClient.registerListener(mCarStatsListener);
+            mRateController = carStatsBinder.getSamplingRateController();
+            mRateController.attach(mUpdateJob, SamplingRateController.Mode.PERFORMANCE);
             doUpdate();
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
-            mStatsClient.unregisterListener(mCarStatsListener);
+            mStatsBinder = null;
+            mHistory = null;
+            detachRateController();
             Log.i(TAG, "ServiceDisconnected");
         }
     };
@@ -355,18 +354,6 @@ public class DashboardFragment extends CarFragment {
         Log.i(TAG, "onCreate");
     }
 
-    private void updateDisplay() {
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-
-            @Override
-            public void run() {
-                postUpdate();
-            }
-
-        }, 0, 500);//Update display 0.5 second
-    }
-
     private void setupViews(View rootView) {
         //layouts/constrains:
         mDashboard_gaudes = rootView.findViewById(R.id.include);
@@ -437,6 +424,7 @@ public class DashboardFragment extends CarFragment {
         mSpeedSeriesLeft = new LineGraphSeries<>();
         mSpeedSeriesCenter = new LineGraphSeries<>();
         mSpeedSeriesRight = new LineGraphSeries<>();
+        mGraphsSeeded = false;
 
 
         //icons on the clocks
@@ -605,6 +593,8 @@ public class DashboardFragment extends CarFragment {
     }
 
     private void onPreferencesChangeHandler() {
+        // the clock queries may have changed, load the history of the new ones
+        mGraphsSeeded = false;
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(getContext());
         ambientOn = sharedPreferences.getBoolean("ambientActive", false);  //true = use ambient colors, false = don't use.
         accurateOn = sharedPreferences.getBoolean("accurateActive", false);  //true = be accurate. false = have 2000ms of animation time
@@ -721,19 +711,19 @@ public class DashboardFragment extends CarFragment {
         //        //setup clocks, including the max/min clocks and highvis rays and icons:
         //        //usage: setupClocks(query value, what clock, what icon, which ray, which min clock, which max clock)
         //could probably be done MUCH more efficient but that's for the future ;)
-        String readedClockLQuery = sharedPreferences.getString("selectedClockLeft"+dashboardId, "torque-enginecoolanttemp_0x05");
+        String readedClockLQuery = sharedPreferences.getString("selectedClockLeft"+dashboardId, DEFAULT_CLOCK_LEFT);
         if (!readedClockLQuery.equals(mClockLQuery)) {
             mClockLQuery = readedClockLQuery;
             setupClocks(mClockLQuery, mClockLeft, mIconClockL, mRayLeft, mClockMinLeft, mClockMaxLeft);
             turnTickEnabled(ticksOn); // Due to bug in SpeedView, we need to re-enable ticks
         }
-        String readedClockCQuery = sharedPreferences.getString("selectedClockCenter"+dashboardId, "torque-turboboost_0xff1202");
+        String readedClockCQuery = sharedPreferences.getString("selectedClockCenter"+dashboardId, DEFAULT_CLOCK_CENTER);
         if (!readedClockCQuery.equals(mClockCQuery)) {
             mClockCQuery = readedClockCQuery;
             setupClocks(mClockCQuery, mClockCenter, mIconClockC, mRayCenter, mClockMinCenter, mClockMaxCenter);
             turnTickEnabled(ticksOn); // Due to bug in SpeedView, we need to re-enable ticks
         }
-        String readedClockRQuery = sharedPreferences.getString("selectedClockRight"+dashboardId, "torque-AFR_0xff1249");
+        String readedClockRQuery = sharedPreferences.getString("selectedClockRight"+dashboardId, DEFAULT_CLOCK_RIGHT);
         if (!readedClockRQuery.equals(mClockRQuery)) {
             mClockRQuery = readedClockRQuery;
             setupClocks(mClockRQuery, mClockRight, mIconClockR, mRayRight, mClockMinRight, mClockMaxRight);
@@ -1045,7 +1035,7 @@ public class DashboardFragment extends CarFragment {
         Intent serviceIntent = new Intent(getContext(), CarStatsService.class);
         getContext().bindService(serviceIntent, mVexServiceConnection, Context.BIND_AUTO_CREATE);
         startTorque();
-        createAndStartUpdateTimer();
+        mUpdateJob.start();
         if (useGoogleGeocoding) {
             if(!getContext().bindService(new Intent(getContext(), GeocodeLocationService.class),
                     mGeocodingServiceConnection,
@@ -1135,31 +1125,21 @@ public class DashboardFragment extends CarFragment {
         Log.d(TAG, "Torque stop");
     }
 
-    private void createAndStartUpdateTimer() {
-        updateTimer = new Timer();
-        updateTimer.schedule(new TimerTask() {
-
-            @Override
-            public void run() {
-                Runnable updateTimerRunnable = new Runnable() {
-                    public void run() {
-                        doUpdate();
-                    }
-                };
-                //experimental delay
-                if (mHandler != null)
-                    mHandler.postDelayed(updateTimerRunnable, 1);
-            }
-
-        }, 0, 250);//Update display 0,25 second
+    private void detachRateController() {
+        if (mRateController != null) {
+            mRateController.detach(mUpdateJob);
+            mRateController = null;
+        }
     }
 
     @Override
     public void onPause() {
         Log.i(TAG, "onDeactivate");
-        updateTimer.cancel();
+        mUpdateJob.stop();
+        detachRateController();
 
-        mStatsClient.unregisterListener(mCarStatsListener);
+        mStatsBinder = null;
+        mHistory = null;
         getContext().unbindService(mVexServiceConnection);
         if (useGoogleGeocoding) {
             getContext().unbindService(mGeocodingServiceConnection);
@@ -1284,19 +1264,6 @@ public class DashboardFragment extends CarFragment {
     }
 
 
-    private final static int UPDATE_AFTER = 200; //ms
-    private long lastUpdate = -1;
-    private void postUpdate() {
-        if (lastUpdate<0 || (System.currentTimeMillis()-lastUpdate) > UPDATE_AFTER) {
-            lastUpdate = System.currentTimeMillis();
-            mHandler.post(new Runnable() {
-                public void run() {
-                    doUpdate();
-                }
-            });
-        }
-    }
-
     private void SetLayoutElements(TextView mValueElement, String mMeasurements, String mUnit, String mDefUnit,  String mFormat) {
         Float mGetMeasurement;
         String mGetUnit;
@@ -1377,6 +1344,9 @@ public class DashboardFragment extends CarFragment {
 
 
     private void doUpdate() {
+        if (mStatsBinder != null) {
+            mLastMeasurements = mStatsBinder.getSnapshot().getValues();
+        }
 
         if (mClockLeft == null) {
             return;
@@ -1413,9 +1383,16 @@ public class DashboardFragment extends CarFragment {
         //update each of the clocks and the min/max/ray elements that go with it
         // query, dial, visray, textmax, textmin, clockmax, clockmin)
 
-        updateClock(mClockLQuery, mClockLeft, mRayLeft, mTextMaxLeft, mClockMinLeft, mClockMaxLeft, mGraphLeft, mSpeedSeriesLeft, graphLeftLastXValue, mGraphValueLeft, minValuesLeft, maxValuesLeft);
-        updateClock(mClockCQuery, mClockCenter, mRayCenter, mTextMaxCenter, mClockMinCenter, mClockMaxCenter, mGraphCenter, mSpeedSeriesCenter, graphCenterLastXValue, mGraphValueCenter, minValuesCenter, maxValuesCenter);
-        updateClock(mClockRQuery, mClockRight, mRayRight, mTextMaxRight, mClockMinRight, mClockMaxRight, mGraphRight, mSpeedSeriesRight, graphRightLastXValue, mGraphValueRight, minValuesRight, maxValuesRight);
+        if (!mGraphsSeeded && mHistory != null) {
+            seedGraph(mClockLQuery, mSpeedSeriesLeft, mTextMaxLeft, minValuesLeft, maxValuesLeft);
+            seedGraph(mClockCQuery, mSpeedSeriesCenter, mTextMaxCenter, minValuesCenter, maxValuesCenter);
+            seedGraph(mClockRQuery, mSpeedSeriesRight, mTextMaxRight, minValuesRight, maxValuesRight);
+            mGraphsSeeded = true;
+        }
+
+        updateClock(mClockLQuery, mClockLeft, mRayLeft, mTextMaxLeft, mClockMinLeft, mClockMaxLeft, mGraphLeft, mSpeedSeriesLeft, mGraphValueLeft, minValuesLeft, maxValuesLeft);
+        updateClock(mClockCQuery, mClockCenter, mRayCenter, mTextMaxCenter, mClockMinCenter, mClockMaxCenter, mGraphCenter, mSpeedSeriesCenter, mGraphValueCenter, minValuesCenter, maxValuesCenter);
+        updateClock(mClockRQuery, mClockRight, mRayRight, mTextMaxRight, mClockMinRight, mClockMaxRight, mGraphRight, mSpeedSeriesRight, mGraphValueRight, minValuesRight, maxValuesRight);
 
         //Updates speed & rpm to logger
         updateBasicLoggerData();
@@ -1517,13 +1494,11 @@ public class DashboardFragment extends CarFragment {
         float engineTemp, boostPressure;
 
         try {
-            if (mEngineTempMonitor != null && torqueService != null) {
+            if (mAlertEngine != null && torqueService != null) {
                 engineTemp = torqueService.getValueForPid(TORQUE_COOLANT_PID, true);
-                mEngineTempMonitor.updateTorqueCoolantTemp(engineTemp);
-            }
-            if (mBoostPressureMonitor != null && torqueService != null) {
+                mAlertEngine.putValue(AlertRules.KEY_TORQUE_COOLANT_TEMP, engineTemp);
                 boostPressure = torqueService.getValueForPid(TORQUE_BOOST_PRESSURE_PID, true);
-                mBoostPressureMonitor.updateTorqueTurboPressure(boostPressure);
+                mAlertEngine.putValue(AlertRules.KEY_TORQUE_BOOST_PRESSURE, boostPressure);
             }
         } catch (Exception e) {
             Log.e(TAG, "Torque service error: " + e.getMessage());
@@ -2168,13 +2143,117 @@ public class DashboardFragment extends CarFragment {
         min.setMinMaxSpeed(minimum, maximum);
     }
 
+    /**
+     * @return the store key an exlap clock query shows, or null for torque and test queries,
+     * which the service can't record itself.
+     */
+    static String getMeasurementKey(String query) {
+        return query.startsWith("exlap-") ? query.substring(query.lastIndexOf('-') + 1) : null;
+    }
+
+    /**
+     * @return the clock queries of all dashboards, the keys the service keeps history of.
+     */
+    static Set<String> getClockQueries(SharedPreferences sharedPreferences) {
+        Set<String> queries = new HashSet<>();
+        for (int dashboard = 1; dashboard <= DASHBOARD_COUNT; dashboard++) {
+            queries.add(sharedPreferences.getString("selectedClockLeft" + dashboard, DEFAULT_CLOCK_LEFT));
+            queries.add(sharedPreferences.getString("selectedClockCenter" + dashboard, DEFAULT_CLOCK_CENTER));
+            queries.add(sharedPreferences.getString("selectedClockRight" + dashboard, DEFAULT_CLOCK_RIGHT));
+        }
+        return queries;
+    }
+
+    // Measurements hold raw values, see toClockValue; series hold what a torque clock showed.
+    private HistoryBuffer getGraphHistory(String query) {
+        if (mHistory == null || query == null) {
+            return null;
+        }
+        String key = getMeasurementKey(query);
+        return key != null ? mHistory.getMeasurement(key) : mHistory.getSeries(query);
+    }
+
+    private static double toGraphX(long elapsedRealtime) {
+        return (elapsedRealtime - GRAPH_EPOCH) * GRAPH_X_PER_MS;
+    }
+
+    // Fills a freshly created series and the min/max with what the service recorded, also while
+    // the dashboard wasn't shown.
+    private void seedGraph(String query, LineGraphSeries<DataPoint> series, TextView textmax,
+                           float[] minValues, float[] maxValues) {
+        HistoryBuffer history = getGraphHistory(query);
+        if (history == null || series == null) {
+            return;
+        }
+        boolean raw = getMeasurementKey(query) != null;
+        int count = history.read(Long.MIN_VALUE, Long.MAX_VALUE, mGraphTimes, mGraphValues);
+        if (count == 0) {
+            return;
+        }
+        DataPoint[] points = new DataPoint[count];
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            float value = raw ? toClockValue(query, mGraphValues[i]) : mGraphValues[i];
+            points[i] = new DataPoint(toGraphX(mGraphTimes[i]), value);
+            if (!Float.isNaN(value)) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        series.resetData(points);
+        if (max >= min) {
+            minValues[dashboardNum] = min;
+            maxValues[dashboardNum] = max;
+            textmax.setText(String.format(Locale.US, FORMAT_DECIMALS, max));
+        }
+    }
+
+    // Converts a measurement to what its exlap clock shows.
+    private float toClockValue(String query, float value) {
+        switch (query) {
+            // car reports longitudinal acceleration as m/s². This is a conversion to G's
+            case "exlap-longitudinalAcceleration":
+                return value / (float) 9.80665;
+            case "exlap-currentOutputPower":
+                return value * powerFactor;
+            //rpm data, needs to be divided by 1000 before displayed on the clock
+            case "exlap-engineSpeed":
+                return value / 1000;
+            // pressures
+            case "exlap-absChargingAirPressure":
+            case "exlap-relChargingAirPressure":
+                return value * pressureFactor;
+            // specific case for wheel angle, since it needs to be turned around
+            case "exlap-wheelAngle":
+                return value * -1; // make it negative, otherwise right = left and vice versa
+            // hybrid power has 1020 as value 0.
+            case "exlap-powermeter":
+                return value - 1020;
+            // percentages
+            case "exlap-acceleratorPosition":
+            case "exlap-tankLevelPrimary":
+            case "exlap-tankLevelSecondary":
+                return value * fueltanksize;
+            // speed, mph calculation
+            case "exlap-vehicleSpeed":
+                return "mph".equals(mLastMeasurements.get("vehicleSpeed.unit")) ? value * 1.60934f : value;
+            case "exlap-tyrePressures.pressureRearRight":
+            case "exlap-tyrePressures.pressureRearLeft":
+            case "exlap-tyrePressures.pressureFrontRight":
+            case "exlap-tyrePressures.pressureFrontLeft":
+                return (value / 10) * pressureFactor;
+            default:
+                return value;
+        }
+    }
+
     //update clock with data
     private void updateClock(String query, Speedometer clock, RaySpeedometer visray, TextView
-            textmax, Speedometer clockMin,Speedometer clockMax, GraphView graph, LineGraphSeries<DataPoint> series, Double graphLastXValue,
+            textmax, Speedometer clockMin,Speedometer clockMax, GraphView graph, LineGraphSeries<DataPoint> series,
              TextView graphValue, float[] minValues, float[] maxValues) {
         if (query != null && stagingDone) {
 
-            float speedFactor = 1f;
             pressureFactor = 1f;
 
             Float clockValue = 0f;
@@ -2222,6 +2301,9 @@ public class DashboardFragment extends CarFragment {
             clock.setSpeedTextColor(Color.WHITE);
 
             if (clockValue != null) {
+                if (queryTrim.equals("exlap")) {
+                    clockValue = toClockValue(queryLong, clockValue);
+                }
                 switch (queryLong) {
                     case "test":
                     case "none":    // none cannot happen currently
@@ -2237,19 +2319,21 @@ public class DashboardFragment extends CarFragment {
                     case "exlap-brakePressure":
                     case "exlap-currentTorque":
                     case "exlap-lateralAcceleration":
-
-                        // all data that can be put on the clock without further modification:
-                        break;
-                    // car reports longitudinal acceleration as m/s². This is a conversion to G's
+                    // converted by toClockValue, nothing else to set up:
                     case "exlap-longitudinalAcceleration":
-                        clockValue = clockValue / (float) 9.80665;
-                        break;
                     case "exlap-currentOutputPower":
-                        clockValue = clockValue * powerFactor;
+                    case "exlap-engineSpeed":
+                    case "exlap-absChargingAirPressure":
+                    case "exlap-relChargingAirPressure":
+                    case "exlap-wheelAngle":
+                    case "exlap-powermeter":
+                    case "exlap-acceleratorPosition":
+                    case "exlap-tankLevelPrimary":
+                    case "exlap-tankLevelSecondary":
 
+                        // all data that can be put on the clock without further modification:
                         break;
                     //rpm data, needs to be divided by 1000 before displayed on the clock
-                    case "exlap-engineSpeed":
                     case "torque-rpm_0x0c":
                         clockValue = clockValue / 1000;
                         break;
@@ -2269,25 +2353,6 @@ public class DashboardFragment extends CarFragment {
                     case "exlap-gearboxOilTemperature":
                         clock.setUnit(temperatureUnitExlap);
                         break;
-                    // pressures
-                    case "exlap-absChargingAirPressure":
-                    case "exlap-relChargingAirPressure":
-                        clockValue = clockValue * pressureFactor;
-                        break;
-                    // specific case for wheel angle, since it needs to be turned around
-                    case "exlap-wheelAngle":
-                        clockValue = clockValue * -1; // make it negative, otherwise right = left and vice versa
-                        break;
-                    // hybrid power has 1020 as value 0.
-                    case "exlap-powermeter":
-                        clockValue = clockValue - 1020;
-                        break;
-                    // percentages
-                    case "exlap-acceleratorPosition":
-                    case "exlap-tankLevelPrimary":
-                    case "exlap-tankLevelSecondary":
-                        clockValue = clockValue * fueltanksize;
-                        break;
                     // specific consumption data with specific consumption units
                     // todo: maybe it's better to remove setting the unit from updateclock, but do it on setupclock
                     case "exlap-currentConsumptionPrimary":
@@ -2320,16 +2385,12 @@ public class DashboardFragment extends CarFragment {
                         if (speedUnit != null) {
                             switch (speedUnit) {
                                 case "mph":
-                                    speedFactor = 1.60934f;
                                     clock.setUnit("mph");
                                     break;
                                 case "kmh":
-                                    speedFactor = 1f;
                                     clock.setUnit("kmh");
                                     break;
                             }
-                            clockValue = clockValue * speedFactor;
-
                         }
                         break;
                     case "exlap-tyrePressures.pressureRearRight":
@@ -2337,7 +2398,6 @@ public class DashboardFragment extends CarFragment {
                     case "exlap-tyrePressures.pressureFrontRight":
                     case "exlap-tyrePressures.pressureFrontLeft":
                         clock.setUnit(pressureUnit);
-                        clockValue = (clockValue / 10) * pressureFactor;
                         clock.setTickTextFormat(Gauge.FLOAT_FORMAT);
                         break;
 
@@ -2428,15 +2488,6 @@ public class DashboardFragment extends CarFragment {
                         break;
                 }
 
-                // only shift x asis 0.5 positions when there's new data
-                if (clock == mClockLeft) {
-                    graphLeftLastXValue += 0.5d;
-                } else if (clock == mClockCenter) {
-                    graphCenterLastXValue += 0.5d;
-                } else if (clock == mClockRight) {
-                    graphRightLastXValue += 0.5d;
-                }
-
                 graph.getViewport().setMaxY(clock.getMaxSpeed());
                 graph.getViewport().setMinY(clock.getMinSpeed());
 
@@ -2449,8 +2500,15 @@ public class DashboardFragment extends CarFragment {
                 clockValue=oldValue;
 
 
-            //TODO: Updates with a non fixed period could lead to strange graphs
-            series.appendData(new DataPoint(graphLastXValue, clockValue), true, 2400);
+            // The service records exlap measurements itself, torque values only reach it from here.
+            long now = SystemClock.elapsedRealtime();
+            if (!noNewData && getMeasurementKey(queryLong) == null) {
+                HistoryBuffer history = getGraphHistory(queryLong);
+                if (history != null) {
+                    history.append(now, clockValue);
+                }
+            }
+            series.appendData(new DataPoint(toGraphX(now), clockValue), true, MeasurementHistory.DEFAULT_CAPACITY);
             String tempString = (String.format(Locale.US, FORMAT_DECIMALS, clockValue));
             graphValue.setText(tempString);
 
@@ -2871,76 +2929,6 @@ public class DashboardFragment extends CarFragment {
                     }
                     break;
 
-                case "batteryVoltage":
-                    Float mBatteryVoltage = (Float) mLastMeasurements.get("batteryVoltage");
-                    if (mBatteryVoltage != null) {
-                        value.setText(String.format(Locale.US, FORMAT_VOLT, mBatteryVoltage));
-                    }
-                    break;
-
-                // all temperatures can be handled in the same way, the only difference is the queryElement string
-                case "coolantTemperature":
-                case "oilTemperature":
-                    Float mTemperature = (Float) mLastMeasurements.get(queryElement);
-                    if (mTemperature != null && mTemperature > 0) {
-                        value.setText(String.format(Locale.US, FORMAT_DEGREES, mTemperature));
-                        if (mTemperature > 1f && mTemperature < operationTempThreshold) {
-                            value.setTextColor(Color.YELLOW);
-                        } else if (mTemperature > maxOperationTempThreshold){
-                            value.setTextColor(Color.RED);
-                        } else {
-                            value.setTextColor(Color.WHITE);
-                        }
-                    }
-                    break;
-                case "gearboxOilTemperature":
-                    Float mGearboxTemperature = (Float) mLastMeasurements.get(queryElement);
-                    if (mGearboxTemperature != null && mGearboxTemperature > 0) {
-                        value.setText(String.format(Locale.US, FORMAT_DEGREES, mGearboxTemperature));
-                    }
-                    break;
-                case "outsideTemperature":
-                    Float mTemperatureOutside = (Float) mLastMeasurements.get(queryElement);
-                    if (mTemperatureOutside != null) {
-                        value.setText(String.format(Locale.US, FORMAT_DEGREES, mTemperatureOutside));
-                    }
-                    break;
-                case "vehicleSpeed":
-                    Float mVehicleSpeed = (Float) mLastMeasurements.get("vehicleSpeed");
-                    String speedUnit = (String) mLastMeasurements.get("vehicleSpeed.unit");
-                    if (mVehicleSpeed != null && speedUnit != null) {
-                        value.setText(String.format(Locale.US, FORMAT_DECIMALS, mVehicleSpeed));
-                        label.setText(speedUnit);
-                    }
-                    // values that don't need any decimals
-                case "engineSpeed":
-                case "Nav_Heading":
-                case "Nav_Altitude":
-                    Float mNoDecimalValue = (Float) mLastMeasurements.get(queryElement);
-                    if (mNoDecimalValue != null) {
-                        value.setText(String.format(Locale.US, FORMAT_NO_DECIMALS, mNoDecimalValue));
-                    }
-                    break;
-
-                // Decimal values, without any specific modification:
-                case "currentOutputPower":
-                    Float mCurrentPowerValue = (Float) mLastMeasurements.get(queryElement);
-                    if (mCurrentPowerValue != null) {
-                        // if (!powerUnits) {
-                        //     // HP
-                        //     mCurrentPowerValue *= powerFactor;
-                        // }
-                        value.setText(String.format(Locale.US, FORMAT_DECIMALS, mCurrentPowerValue));
-                        //label.setText(powerUnits?getString(R.string.unit_kw):getString(R.string.unit_hp));
-                    }
-                    break;
-                case "currentTorque":
-                    Float mCurrentTorqueValue = (Float) mLastMeasurements.get(queryElement);
-                    if (mCurrentTorqueValue != null) {
-                        value.setText(String.format(Locale.US, FORMAT_DECIMALS, mCurrentTorqueValue));
-                    }
-                    break;
-
                 case "currentGear":
                     Boolean reverseGear = (Boolean) mLastMeasurements.get("reverseGear.engaged");
                     Boolean parkingBrake = (Boolean) mLastMeasurements.get("parkingBrake.engaged");
@@ -2968,128 +2956,170 @@ public class DashboardFragment extends CarFragment {
                     }
                     value.setText(gearText);
                     break;
-                case "lateralAcceleration":
-                    Float mAcceleration = (Float) mLastMeasurements.get(queryElement);
-                    if (mAcceleration != null) {
-                        value.setText(String.format(Locale.US, FORMAT_GFORCE, mAcceleration));
-                    }
-                    break;
-                case "longitudinalAcceleration":
-                    Float mAcceleration2 = (Float) mLastMeasurements.get(queryElement);
-                    if (mAcceleration2 != null) {
-                        mAcceleration2 = mAcceleration2 / (float) 9.80665;  //conversion from m/s² to G force
-                        value.setText(String.format(Locale.US, FORMAT_GFORCE, mAcceleration2));
-                    }
-                    break;
-                case "yawRate":
-                    Float mYawRate = (Float) mLastMeasurements.get(queryElement);
-                    if (mYawRate != null) {
-                        value.setText(String.format(Locale.US, FORMAT_DEGREESPEC, mYawRate));
-                    }
-                    break;
-                case "Sound_Volume":
-                    Float mSoundVol = (Float) mLastMeasurements.get(queryElement);
-                    if (mSoundVol != null) {
-                        value.setText(String.format(Locale.US, FORMAT_NO_DECIMALS, mSoundVol));
-                    }
-                    break;
-                case "acceleratorPosition":
-                    Float mAcceleratorPosition = (Float) mLastMeasurements.get("acceleratorPosition");
-                    if (mAcceleratorPosition != null) {
-                        Float mAccelPosPercent = mAcceleratorPosition * 100;
-                        value.setText(String.format(Locale.US, FORMAT_DECIMALS, mAccelPosPercent));
-                    }
-                    break;
-                case "brakePressure":
-                    Float mBrakePressure = (Float) mLastMeasurements.get("brakePressure");
-                    if (mBrakePressure != null) {
-                        value.setText(String.format(Locale.US, FORMAT_DECIMALS, mBrakePressure));
-                    }
-                    break;
-                case "wheelAngle":
-                    Float mWheelAngle = (Float) mLastMeasurements.get(queryElement);
-                    if (mWheelAngle != null) {
-                        value.setText(String.format(Locale.US, FORMAT_DEGREES, mWheelAngle));
-                    }
-                    break;
-                case "powermeter":
-                    Float mPowermeter = (Float) mLastMeasurements.get(queryElement);
-                    if (mPowermeter != null) {
-                        value.setText(String.format(Locale.US, FORMAT_NO_DECIMALS, mPowermeter));
-                    }
-                    break;
 
-                // eco values
-                case "EcoHMI_Score.AvgShort":
-                case "EcoHMI_Score.AvgTrip":
-                    Float mEcoScore = (Float) mLastMeasurements.get(queryElement);
-                    if (mEcoScore != null) {
-                        value.setText(String.format(Locale.US, FORMAT_NO_DECIMALS, mEcoScore));
-                    }
-                    break;
-                case "shortTermConsumptionPrimary":
-                case "shortTermConsumptionSecondary":
-                    Float mshortConsumption = (Float) mLastMeasurements.get(queryElement);
-                    if (mshortConsumption != null) {
-                        value.setText(String.format(Locale.US,FORMAT_DECIMALS, mshortConsumption));
-                    }
-                    break;
-                case "Nav_CurrentPosition.Longitude":
-                case "Nav_CurrentPosition.Latitude":
-                case "Nav_CurrentPosition.City":
-                case "Nav_CurrentPosition.State":
-                case "Nav_CurrentPosition.Country":
-                case "Nav_CurrentPosition.Street":
-                case "Radio_Tuner.Name":
-                case "Radio_Text":
-                case "totalDistance.distanceValue":
-                case "vehicleIdenticationNumber.VIN":
-                    String elementValue = (String) mLastMeasurements.get(queryElement);
-                    if (elementValue != null) value.setText(elementValue);
-                    break;
-                case "blinkingState":
-                    break;
-                case "tyreStates.stateRearRight":
-                case "tyreStates.stateRearLeft":
-                case "tyreStates.stateFrontRight":
-                case "tyreStates.stateFrontLeft":
-                    String tyreState = (String) mLastMeasurements.get(queryElement);
-                    if (tyreState != null) {
-                        value.setText(tyreState);
-                        //if (tyreState != "OK") value.setTextColor(Color.RED);
-                    }
-                    break;
-                case "tyrePressures.pressureRearRight":
-                case "tyrePressures.pressureRearLeft":
-                case "tyrePressures.pressureFrontRight":
-                case "tyrePressures.pressureFrontLeft":
-                    Float tyrePressure = (Float) mLastMeasurements.get(queryElement);
-                    if (tyrePressure != null) {
-                        tyrePressure = tyrePressure / 10; // value in bar
-                        tyrePressure = tyrePressure * pressureFactor; // convert to psi if needed.
-                        value.setText(String.format(Locale.US, FORMAT_DECIMALS_WITH_UNIT, tyrePressure, pressureUnit));
+                // all temperatures can be handled in the same way, the only difference is the queryElement string
+                case "coolantTemperature":
+                case "oilTemperature":
+                    Float mTemperature = (Float) mLastMeasurements.get(queryElement);
+                    if (mTemperature != null && mTemperature > 0) {
+                        value.setText(formatMeasurement(queryElement, mLastMeasurements, pressureFactor, pressureUnit));
+                        if (mTemperature > 1f && mTemperature < operationTempThreshold) {
+                            value.setTextColor(Color.YELLOW);
+                        } else if (mTemperature > maxOperationTempThreshold){
+                            value.setTextColor(Color.RED);
+                        } else {
+                            value.setTextColor(Color.WHITE);
+                        }
                     }
                     break;
-                case "tyreTemperatures.temperatureRearRight":
-                case "tyreTemperatures.temperatureRearLeft":
-                case "tyreTemperatures.temperatureFrontRight":
-                case "tyreTemperatures.temperatureFrontLeft":
-                    Float tyreTemp = (Float) mLastMeasurements.get(queryElement);
-                    if (tyreTemp != null) {
-                        value.setText(String.format(Locale.US, FORMAT_TEMPERATURE, tyreTemp));
+                case "vehicleSpeed":
+                    String speedUnit = (String) mLastMeasurements.get("vehicleSpeed.unit");
+                    if (mLastMeasurements.get("vehicleSpeed") != null && speedUnit != null) {
+                        label.setText(speedUnit);
                     }
-                    break;
-                case "tankLevelPrimary":
-                case "tankLevelSecondary":
-                    Float tankLevel = (Float) mLastMeasurements.get(queryElement);
-                    if (tankLevel != null) {
-                        value.setText(String.format(Locale.US, FORMAT_PERCENT, tankLevel));
+                    // fall through for the value
+                default:
+                    String text = formatMeasurement(queryElement, mLastMeasurements, pressureFactor, pressureUnit);
+                    if (text != null) {
+                        value.setText(text);
                     }
                     break;
             }
         }
     }
 
+    /**
+     * Turns the measurement a dashboard element is set to into the text it shows.
+     *
+     * @return the text, or null if there is nothing to show for the query.
+     */
+    static String formatMeasurement(String queryElement, Map<String, Object> measurements,
+                                    float pressureFactor, String pressureUnit) {
+        switch (queryElement) {
+            case "batteryVoltage":
+                Float mBatteryVoltage = (Float) measurements.get("batteryVoltage");
+                if (mBatteryVoltage != null) {
+                    return String.format(Locale.US, FORMAT_VOLT, mBatteryVoltage);
+                }
+                break;
+
+            case "coolantTemperature":
+            case "oilTemperature":
+            case "gearboxOilTemperature":
+                Float mTemperature = (Float) measurements.get(queryElement);
+                if (mTemperature != null && mTemperature > 0) {
+                    return String.format(Locale.US, FORMAT_DEGREES, mTemperature);
+                }
+                break;
+            case "outsideTemperature":
+            case "wheelAngle":
+                Float mDegrees = (Float) measurements.get(queryElement);
+                if (mDegrees != null) {
+                    return String.format(Locale.US, FORMAT_DEGREES, mDegrees);
+                }
+                break;
+
+            // values that don't need any decimals. The speed used to be formatted with decimals
+            // and then overwritten by these, so it stays without.
+            case "vehicleSpeed":
+            case "engineSpeed":
+            case "Nav_Heading":
+            case "Nav_Altitude":
+            case "Sound_Volume":
+            case "powermeter":
+            case "EcoHMI_Score.AvgShort":
+            case "EcoHMI_Score.AvgTrip":
+                Float mNoDecimalValue = (Float) measurements.get(queryElement);
+                if (mNoDecimalValue != null) {
+                    return String.format(Locale.US, FORMAT_NO_DECIMALS, mNoDecimalValue);
+                }
+                break;
+
+            // Decimal values, without any specific modification:
+            case "currentOutputPower":
+            case "currentTorque":
+            case "brakePressure":
+            case "shortTermConsumptionPrimary":
+            case "shortTermConsumptionSecondary":
+                Float mDecimalValue = (Float) measurements.get(queryElement);
+                if (mDecimalValue != null) {
+                    return String.format(Locale.US, FORMAT_DECIMALS, mDecimalValue);
+                }
+                break;
+
+            case "lateralAcceleration":
+                Float mAcceleration = (Float) measurements.get(queryElement);
+                if (mAcceleration != null) {
+                    return String.format(Locale.US, FORMAT_GFORCE, mAcceleration);
+                }
+                break;
+            case "longitudinalAcceleration":
+                Float mAcceleration2 = (Float) measurements.get(queryElement);
+                if (mAcceleration2 != null) {
+                    mAcceleration2 = mAcceleration2 / (float) 9.80665;  //conversion from m/s² to G force
+                    return String.format(Locale.US, FORMAT_GFORCE, mAcceleration2);
+                }
+                break;
+            case "yawRate":
+                Float mYawRate = (Float) measurements.get(queryElement);
+                if (mYawRate != null) {
+                    return String.format(Locale.US, FORMAT_DEGREESPEC, mYawRate);
+                }
+                break;
+            case "acceleratorPosition":
+                Float mAcceleratorPosition = (Float) measurements.get("acceleratorPosition");
+                if (mAcceleratorPosition != null) {
+                    Float mAccelPosPercent = mAcceleratorPosition * 100;
+                    return String.format(Locale.US, FORMAT_DECIMALS, mAccelPosPercent);
+                }
+                break;
+
+            case "Nav_CurrentPosition.Longitude":
+            case "Nav_CurrentPosition.Latitude":
+            case "Nav_CurrentPosition.City":
+            case "Nav_CurrentPosition.State":
+            case "Nav_CurrentPosition.Country":
+            case "Nav_CurrentPosition.Street":
+            case "Radio_Tuner.Name":
+            case "Radio_Text":
+            case "totalDistance.distanceValue":
+            case "vehicleIdenticationNumber.VIN":
+            case "tyreStates.stateRearRight":
+            case "tyreStates.stateRearLeft":
+            case "tyreStates.stateFrontRight":
+            case "tyreStates.stateFrontLeft":
+                return (String) measurements.get(queryElement);
+            case "tyrePressures.pressureRearRight":
+            case "tyrePressures.pressureRearLeft":
+            case "tyrePressures.pressureFrontRight":
+            case "tyrePressures.pressureFrontLeft":
+                Float tyrePressure = (Float) measurements.get(queryElement);
+                if (tyrePressure != null) {
+                    tyrePressure = tyrePressure / 10; // value in bar
+                    tyrePressure = tyrePressure * pressureFactor; // convert to psi if needed.
+                    return String.format(Locale.US, FORMAT_DECIMALS_WITH_UNIT, tyrePressure, pressureUnit);
+                }
+                break;
+            case "tyreTemperatures.temperatureRearRight":
+            case "tyreTemperatures.temperatureRearLeft":
+            case "tyreTemperatures.temperatureFrontRight":
+            case "tyreTemperatures.temperatureFrontLeft":
+                Float tyreTemp = (Float) measurements.get(queryElement);
+                if (tyreTemp != null) {
+                    return String.format(Locale.US, FORMAT_TEMPERATURE, tyreTemp);
+                }
+                break;
+            case "tankLevelPrimary":
+            case "tankLevelSecondary":
+                Float tankLevel = (Float) measurements.get(queryElement);
+                if (tankLevel != null) {
+                    return String.format(Locale.US, FORMAT_PERCENT, tankLevel);
+                }
+                break;
+        }
+        return null;
+    }
+
     // set clock label, units, etc.
     private void setupClock(TextView icon, String iconDrawableName, String iconText, Speedometer clock, Boolean backgroundWithWarningArea, String unit, Integer minspeed, Integer maxspeed, String speedFormat, String tickFormat) {
 
@@ -0,0 +1,188 @@
+package com.mqbcoding.stats;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Change-only row encoding for {@link CarStatsLogger}. Rows keep only the values that changed
+ * since they were last written; numbers count as changed once they moved further than the key's
+ * epsilon. A keyframe with all values is written at the start of a log and every
+ * {@link #DEFAULT_KEYFRAME_INTERVAL_MS}, marked with {@link #KEYFRAME_KEY}, so decoding can start at
+ * any keyframe. {@link Decoder} turns the rows back into full rows.
+ *
+ * Not thread safe, except for setting the epsilons.
+ */
+class DeltaRowEncoder {
+    static final String KEYFRAME_KEY = "_keyframe";
+    static final long DEFAULT_KEYFRAME_INTERVAL_MS = 10000;
+
+    private final Map<String, Object> mLastValues = new HashMap<>();
+    private final Map<String, Double> mEpsilons = new ConcurrentHashMap<>();
+    private final Map<String, Double> mSchemaEpsilons = new ConcurrentHashMap<>();
+    private final long mKeyframeIntervalMs;
+    private boolean mKeyframeDue = true;
+    private long mLastKeyframe;
+
+    DeltaRowEncoder(long keyframeIntervalMs) {
+        mKeyframeIntervalMs = keyframeIntervalMs;
+    }
+
+    DeltaRowEncoder() {
+        this(DEFAULT_KEYFRAME_INTERVAL_MS);
+    }
+
+    /**
+     * Sets how far a number has to move from the last written value to be written again.
+     * Overrides the epsilon derived from the schema.
+     */
+    void setEpsilon(String key, double epsilon) {
+        mEpsilons.put(key, epsilon);
+    }
+
+    /**
+     * Uses half the field's resolution as epsilon, smaller changes are sensor noise.
+     */
+    void setSchemaResolution(String key, float resolution) {
+        if (resolution > 0) {
+            mSchemaEpsilons.put(key, resolution / 2.0);
+        } else {
+            mSchemaEpsilons.remove(key);
+        }
+    }
+
+    private double getEpsilon(String key) {
+        Double epsilon = mEpsilons.get(key);
+        if (epsilon == null) {
+            epsilon = mSchemaEpsilons.get(key);
+        }
+        return epsilon != null ? epsilon : 0;
+    }
+
+    /**
+     * Starts over, the next row will be a keyframe.
+     */
+    void reset() {
+        mLastValues.clear();
+        mKeyframeDue = true;
+    }
+
+    /**
+     * Makes the next row a keyframe, e.g. so decoding can start there.
+     */
+    void requestKeyframe() {
+        mKeyframeDue = true;
+    }
+
+    /**
+     * @return whether the row with this timestamp has to be a keyframe.
+     */
+    boolean startRow(long timestamp) {
+        if (mKeyframeDue || timestamp - mLastKeyframe >= mKeyframeIntervalMs
+                || timestamp < mLastKeyframe) {
+            mKeyframeDue = false;
+            mLastKeyframe = timestamp;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Encodes the first {@code size} keys and values in place.
+     *
+     * @param keyframe whether to keep all values, see {@link #startRow(long)}.
+     * @param dropUnchanged whether to leave out unchanged values, or to keep them with the last
+     *                      written value, for writers that track changes themselves.
+     * @return the number of keys and values left.
+     */
+    int encode(String[] keys, Object[] values, int size, boolean keyframe, boolean dropUnchanged) {
+        if (keyframe) {
+            mLastValues.clear();
+        }
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            String key = keys[i];
+            Object value = values[i];
+            boolean changed = keyframe || !mLastValues.containsKey(key)
+                    || !isWithinEpsilon(mLastValues.get(key), value, getEpsilon(key));
+            if (changed) {
+                mLastValues.put(key, value);
+            } else if (dropUnchanged) {
+                continue;
+            } else {
+                value = mLastValues.get(key);
+            }
+            keys[count] = key;
+            values[count] = value;
+            count++;
+        }
+        Arrays.fill(keys, count, size, null);
+        Arrays.fill(values, count, size, null);
+        return count;
+    }
+
+    private static boolean isWithinEpsilon(Object last, Object value, double epsilon) {
+        if (last == null || value == null) {
+            return last == value;
+        }
+        if (last instanceof Number && value instanceof Number) {
+            double a = ((Number) last).doubleValue();
+            double b = ((Number) value).doubleValue();
+            return Double.compare(a, b) == 0 || Math.abs(a - b) <= epsilon;
+        }
+        return last.equals(value);
+    }
+
+    /**
+     * @return whether a JSON row starts a delta encoded log.
+     */
+    static boolean isKeyframe(String row) {
+        return row.contains("\"" + KEYFRAME_KEY + "\"");
+    }
+
+    /**
+     * Reconstructs full JSON rows from delta encoded ones. Rows before the first keyframe can't be
+     * reconstructed and are skipped.
+     */
+    static class Decoder {
+        private final Map<String, JsonElement> mState = new LinkedHashMap<>();
+        private final JsonParser mParser = new JsonParser();
+        private final Gson mGson = new Gson();
+        private boolean mHasKeyframe = false;
+
+        /**
+         * @return the full row, or null if it is malformed or no keyframe was seen yet.
+         */
+        String decode(String row) {
+            JsonObject object;
+            try {
+                object = mParser.parse(row).getAsJsonObject();
+            } catch (JsonParseException | IllegalStateException e) {
+                return null;
+            }
+            if (object.remove(KEYFRAME_KEY) != null) {
+                mState.clear();
+                mHasKeyframe = true;
+            }
+            if (!mHasKeyframe) {
+                return null;
+            }
+            for (Map.Entry<String, JsonElement> value : object.entrySet()) {
+                mState.put(value.getKey(), value.getValue());
+            }
+            JsonObject full = new JsonObject();
+            for (Map.Entry<String, JsonElement> value : mState.entrySet()) {
+                full.add(value.getKey(), value.getValue());
+            }
+            return mGson.toJson(full);
+        }
+    }
+}
@@ -170,5 +170,8 @@ class EngineSpeedMonitor(private val mContext: Context, private val mHandler: Ha
         private const val NOTIFICATION_TIMEOUT_MS = 60000
 
         private const val HYSTERESIS = 15f
+
+        @JvmField
+        val KEYS: Set<String> = setOf("engineSpeed", "currentGear")
     }
 }
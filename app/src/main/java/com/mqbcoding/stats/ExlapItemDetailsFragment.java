@@ -5,9 +5,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
-import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -19,11 +17,8 @@ import android.widget.TextView;
 import com.github.martoreto.aauto.vex.FieldSchema;
 import com.google.android.apps.auto.sdk.StatusBarController;
 
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 
 public class ExlapItemDetailsFragment extends CarFragment {
 
@@ -32,12 +27,18 @@ public class ExlapItemDetailsFragment extends CarFragment {
 
     private final String TAG = "ExlapDetailsFragment";
     private CarStatsClientTweaked mStatsClient;
-    private Timer updateTimer;
-    private Handler mHandler;
+    private CarStatsService.CarStatsBinder mStatsBinder;
+    private SamplingRateController mRateController;
+    private final TaskScheduler.PeriodicJob mUpdateJob = TaskScheduler.getInstance().createMainJob(
+            "ExlapItemDetailsFragment.update", TaskScheduler.FIXED_RATE, 250, new Runnable() {
+                @Override
+                public void run() {
+                    fillTextViews();
+                }
+            });
     private HashMap<String, FieldSchema> mSchema;
     private TextView tvCurrentValue, tvName, tvMin, tvMax, tvRes, tvDescr,
             tvMinUnit, tvMaxUnit, tvResUnit, tvCurrentUnit;
-    private Runnable updateTimerRunnable;
     private String currentValue = "";
     private String selectedKey;
 
@@ -73,7 +74,6 @@ public class ExlapItemDetailsFragment extends CarFragment {
                 getFragmentManager().popBackStack();
             }
         });
-        mHandler = new Handler(Looper.getMainLooper());
         Bundle args = getArguments();
         selectedKey = args.getString(ARG_SELECTED_KEY);
 
@@ -85,6 +85,12 @@ public class ExlapItemDetailsFragment extends CarFragment {
     }
 
     private void fillTextViews() {
+        if (mStatsBinder != null) {
+            Object value = mStatsBinder.getSnapshot().get(selectedKey);
+            if (value != null) {
+                currentValue = String.valueOf(value);
+            }
+        }
         tvCurrentValue.setText(currentValue);
         if (mSchema.containsKey(selectedKey)) {
             FieldSchema field = mSchema.get(selectedKey);
@@ -106,47 +112,36 @@ public class ExlapItemDetailsFragment extends CarFragment {
         Log.i(TAG, "onActivate");
         Intent serviceIntent = new Intent(getContext(), CarStatsService.class);
         getContext().bindService(serviceIntent, mServiceConnection, Context.BIND_AUTO_CREATE);
-        createAndStartUpdateTimer();
+        mUpdateJob.start();
     }
 
-    private void createAndStartUpdateTimer() {
-        updateTimer = new Timer();
-        updateTimer.schedule(new TimerTask() {
-
-            @Override
-            public void run() {
-                updateTimerRunnable = new Runnable() {
-                    public void run() {
-                        fillTextViews();
-                    }
-                };
-                //experimental delay
-                if (mHandler != null)
-                    mHandler.postDelayed(updateTimerRunnable, 1);
-            }
-
-        }, 0, 250);//Update display 0,25 second
+    private void detachRateController() {
+        if (mRateController != null) {
+            mRateController.detach(mUpdateJob);
+            mRateController = null;
+        }
     }
 
     @Override
     public void onPause() {
-        mStatsClient.unregisterListener(mCarStatsListener);
+        mStatsClient.unregisterFrameListener(mCarStatsListener);
+        mStatsBinder = null;
         getContext().unbindService(mServiceConnection);
-        updateTimer.cancel();
+        mUpdateJob.stop();
+        detachRateController();
         Log.i(TAG, "onDeactivate");
         super.onPause();
     }
 
-    private final CarStatsClientTweaked.Listener mCarStatsListener = new CarStatsClientTweaked.Listener() {
+    // Only registered for schema changes, the value is read from the service snapshot.
+    private final CarStatsClientTweaked.FrameListener mCarStatsListener = new CarStatsClientTweaked.FrameListener() {
         @Override
-        public void onNewMeasurements(String provider, Date timestamp, final Map<String, Object> values) {
-            if (values.containsKey(selectedKey)) {
-                currentValue = String.valueOf(values.get(selectedKey));
-            }
+        public void onNewFrame(long elapsedRealtimeNanos, long timestamp, MeasurementFrame frame) {
+            // not called, no keys subscribed
         }
 
         @Override
-        public void onSchemaChanged() {
+        public void onSchemaChanged(SchemaDelta delta) {
             mSchema.putAll(mStatsClient.getSchema());
         }
     };
@@ -157,17 +152,19 @@ public class ExlapItemDetailsFragment extends CarFragment {
             Log.i(TAG, "ServiceConnected");
             CarStatsService.CarStatsBinder carStatsBinder = (CarStatsService.CarStatsBinder) iBinder;
             mStatsClient = carStatsBinder.getStatsClient();
-            mStatsClient.registerListener(mCarStatsListener);
-            Map<String, Object> currentValues = mStatsClient.getMergedMeasurements();
-            if (currentValues.containsKey(selectedKey)) {
-                currentValue = (String)currentValues.get(selectedKey);
-            }
+            mRateController = carStatsBinder.getSamplingRateController();
+            // A list of values doesn't need more than the normal rate.
+            mRateController.attach(mUpdateJob, SamplingRateController.Mode.CRUISE);
+            mStatsBinder = carStatsBinder;
+            mStatsClient.registerFrameListener(mCarStatsListener, Collections.<String>emptySet());
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
             Log.i(TAG, "ServiceDisconnected");
-            mStatsClient.unregisterListener(mCarStatsListener);
+            mStatsClient.unregisterFrameListener(mCarStatsListener);
+            mStatsBinder = null;
+            detachRateController();
         }
     };
 }
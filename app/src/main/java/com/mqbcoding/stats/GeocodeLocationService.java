@@ -9,14 +9,13 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.util.Log;
 
 import java.io.IOException;
 import java.util.List;
 import java.util.Locale;
-import java.util.Timer;
-import java.util.TimerTask;
 
 public class GeocodeLocationService extends Service {
 
@@ -35,7 +34,10 @@ public class GeocodeLocationService extends Service {
     private IGeocodeResult mListener;
     private LocationManager mLocationManager = null;
     private Geocoder geocoder;
-    private Timer geocodingTimer;
+    // Geocoder.getFromLocation blocks on the network, so it gets a thread of its own instead of
+    // holding up the other jobs on the shared scheduler thread.
+    private HandlerThread mGeocodingThread;
+    private TaskScheduler.PeriodicJob mGeocodingJob;
     private Location mLastDecodedLocation;
 
     public interface IGeocodeResult {
@@ -58,14 +60,23 @@ public class GeocodeLocationService extends Service {
         initializeLocationManager();
         mLastDecodedLocation = new Location(LocationManager.GPS_PROVIDER);
         geocoder = new Geocoder(getApplicationContext(), Locale.getDefault());
-        initializeTimerTask();
+        mGeocodingThread = new HandlerThread("Geocoding");
+        mGeocodingThread.start();
+        mGeocodingJob = TaskScheduler.getInstance().createJob("GeocodeLocationService.geocode",
+                mGeocodingThread.getLooper(), TaskScheduler.FIXED_RATE, GEOCODING_INTERVAL, new Runnable() {
+                    @Override
+                    public void run() {
+                        geocodeLastLocation();
+                    }
+                });
+        mGeocodingJob.start(GEOCODING_DELAY);
         super.onCreate();
     }
 
     @Override
     public void onDestroy() {
-        geocodingTimer.cancel();
-        geocodingTimer = null;
+        mGeocodingJob.stop();
+        mGeocodingThread.quit();
         super.onDestroy();
     }
 
@@ -87,48 +98,38 @@ public class GeocodeLocationService extends Service {
         }
     }
 
-    private void initializeTimerTask() {
-        if (geocodingTimer == null) {
-            geocodingTimer = new Timer();
-            geocodingTimer.scheduleAtFixedRate(geocodingTimerTask, GEOCODING_DELAY, GEOCODING_INTERVAL);
-        }
-    }
-
 
     // I know, that we can use requestLocationUpdates here to receive location in a event-based system
     // But problem is that on some phones locationUpdates are getting stopped at random time after start
     // With no info on logcat why actually phone stops delivering location updates
     // I couldn't find why it behaves in a such way, so i decided to go that way.
-    private final TimerTask geocodingTimerTask = new TimerTask() {
-        @Override
-        public void run() {
-            Location lastLocation = null;
-            int lastAltitude = 0;
+    private void geocodeLastLocation() {
+        Location lastLocation = null;
+        int lastAltitude = 0;
+        try {
+            lastLocation = mLocationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
+            lastAltitude = (int) lastLocation.getAltitude();
+            Log.d(TAG,"Received location: " + lastLocation);
+            Log.d(TAG,"Received Altitude: " + lastAltitude);
+        } catch (SecurityException ex) {
+            Log.e(TAG, "Security Exception while getting last known location?");
+        }
+        if (lastLocation != null
+                && mLastDecodedLocation.distanceTo(lastLocation) > DISTANCE_THRESHOLD) {
             try {
-                lastLocation = mLocationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
-                lastAltitude = (int) lastLocation.getAltitude();
-                Log.d(TAG,"Received location: " + lastLocation);
-                Log.d(TAG,"Received Altitude: " + lastAltitude);
-            } catch (SecurityException ex) {
-                Log.e(TAG, "Security Exception while getting last known location?");
-            }
-            if (lastLocation != null
-                    && mLastDecodedLocation.distanceTo(lastLocation) > DISTANCE_THRESHOLD) {
-                try {
-                    List<Address> addresses = geocoder.getFromLocation(
-                            lastLocation.getLatitude(), lastLocation.getLongitude(), 1);
-                    if (mListener != null && addresses != null && addresses.size() > 0) {
-                        addresses.set(0,addresses.get(0)).setUrl(String.valueOf(lastAltitude)+" m");
-                        mListener.onNewGeocodeResult(addresses.get(0));
-                        mLastDecodedLocation.set(lastLocation);
-                        Log.d(TAG, "Sended location to client: " + mLastDecodedLocation);
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "Service Not Available");
+                List<Address> addresses = geocoder.getFromLocation(
+                        lastLocation.getLatitude(), lastLocation.getLongitude(), 1);
+                if (mListener != null && addresses != null && addresses.size() > 0) {
+                    addresses.set(0,addresses.get(0)).setUrl(String.valueOf(lastAltitude)+" m");
+                    mListener.onNewGeocodeResult(addresses.get(0));
+                    mLastDecodedLocation.set(lastLocation);
+                    Log.d(TAG, "Sended location to client: " + mLastDecodedLocation);
                 }
+            } catch (IOException e) {
+                Log.e(TAG, "Service Not Available");
             }
         }
-    };
+    }
 
     public void setOnNewGeocodeListener(IGeocodeResult listener) {
         mListener = listener;
@@ -0,0 +1,85 @@
+package com.mqbcoding.stats;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes gzip data as a series of members, each of them a complete gzip stream. Concatenated
+ * members are a valid gzip file, {@link java.util.zip.GZIPInputStream} reads them as one.
+ *
+ * After {@link #finishMember()} everything written so far is on disk in complete members, so a
+ * file cut off later, e.g. because the app was killed, still decompresses up to that point.
+ */
+class GzipMemberOutputStream extends OutputStream {
+    private final OutputStream mOut;
+    private GZIPOutputStream mMember;
+    private long mMemberCount = 0;
+    private boolean mClosed = false;
+
+    GzipMemberOutputStream(OutputStream out) {
+        mOut = out;
+    }
+
+    private GZIPOutputStream getMember() throws IOException {
+        // Started on the first write, so finishing twice doesn't leave empty members.
+        if (mMember == null) {
+            mMember = new GZIPOutputStream(mOut);
+            mMemberCount++;
+        }
+        return mMember;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        getMember().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        getMember().write(b, off, len);
+    }
+
+    /**
+     * Ends the current member and flushes it to the underlying stream.
+     */
+    void finishMember() throws IOException {
+        if (mMember != null) {
+            mMember.finish();
+            mMember = null;
+        }
+        mOut.flush();
+    }
+
+    /**
+     * @return whether data was written since the last {@link #finishMember()}.
+     */
+    boolean hasOpenMember() {
+        return mMember != null;
+    }
+
+    long getMemberCount() {
+        return mMemberCount;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mMember != null) {
+            mMember.flush();
+        }
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            finishMember();
+        } finally {
+            mOut.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.mqbcoding.stats;
+
+/**
+ * Fixed-capacity ring buffer of (time, value) samples in primitive arrays. Once full, every new
+ * sample overwrites the oldest one.
+ *
+ * Times are {@link android.os.SystemClock#elapsedRealtime()} milliseconds and must not decrease.
+ * All methods are synchronized; reads copy into caller-provided arrays so that periodic readers
+ * can reuse them.
+ */
+public class HistoryBuffer {
+    private final long[] mTimes;
+    private final float[] mValues;
+    private int mHead = 0;  // index of the next write
+    private int mSize = 0;
+
+    /**
+     * Aggregates over a time window, see {@link #getStats(long, long, Stats)}.
+     */
+    public static class Stats {
+        public int count;
+        public float min;
+        public float max;
+        public float mean;
+        public float last;
+    }
+
+    public HistoryBuffer(int capacity) {
+        mTimes = new long[capacity];
+        mValues = new float[capacity];
+    }
+
+    public int getCapacity() {
+        return mTimes.length;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized void append(long time, float value) {
+        mTimes[mHead] = time;
+        mValues[mHead] = value;
+        mHead = (mHead + 1) % mTimes.length;
+        if (mSize < mTimes.length) {
+            mSize++;
+        }
+    }
+
+    public synchronized void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    /**
+     * @return the time of the newest sample, or {@code Long.MIN_VALUE} if the buffer is empty.
+     */
+    public synchronized long getLastTime() {
+        return mSize > 0 ? mTimes[index(mSize - 1)] : Long.MIN_VALUE;
+    }
+
+    /**
+     * @return the newest value, or {@code Float.NaN} if the buffer is empty.
+     */
+    public synchronized float getLast() {
+        return mSize > 0 ? mValues[index(mSize - 1)] : Float.NaN;
+    }
+
+    /**
+     * Copies the samples with {@code from <= time <= to}, oldest first. If there are more than
+     * the arrays can hold, the newest ones are copied.
+     *
+     * @return the number of samples copied.
+     */
+    public synchronized int read(long from, long to, long[] times, float[] values) {
+        int start = firstAtOrAfter(from);
+        int end = start;
+        while (end < mSize && mTimes[index(end)] <= to) {
+            end++;
+        }
+        start = Math.max(start, end - Math.min(times.length, values.length));
+        for (int i = start; i < end; i++) {
+            int index = index(i);
+            times[i - start] = mTimes[index];
+            values[i - start] = mValues[index];
+        }
+        return end - start;
+    }
+
+    /**
+     * Computes count, min, max, mean and last value of the samples with {@code from <= time <= to}.
+     * NaN samples are skipped; without samples min, max, mean and last are NaN.
+     *
+     * @return the given stats object.
+     */
+    public synchronized Stats getStats(long from, long to, Stats stats) {
+        int count = 0;
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        double sum = 0;
+        float last = Float.NaN;
+        for (int i = firstAtOrAfter(from); i < mSize; i++) {
+            int index = index(i);
+            if (mTimes[index] > to) {
+                break;
+            }
+            float value = mValues[index];
+            if (Float.isNaN(value)) {
+                continue;
+            }
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            last = value;
+        }
+        stats.count = count;
+        stats.min = count > 0 ? min : Float.NaN;
+        stats.max = count > 0 ? max : Float.NaN;
+        stats.mean = count > 0 ? (float) (sum / count) : Float.NaN;
+        stats.last = last;
+        return stats;
+    }
+
+    /**
+     * @return the logical position (0 = oldest) of the first sample at or after the given time.
+     */
+    private int firstAtOrAfter(long time) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mTimes[index(mid)] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int index(int position) {
+        return (mHead - mSize + position + mTimes.length) % mTimes.length;
+    }
+}
@@ -0,0 +1,176 @@
+package com.mqbcoding.stats;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a time range of a log written by {@link CarStatsLogger}, JSON or binary, decompressing
+ * only from the part of the file that holds its start, as found in the {@link LogIndex}:
+ * {@code reader.range(from, to); while (reader.next()) { reader.getValues(); }}.
+ *
+ * Delta encoded logs are decoded to full rows. Values are keyed like in the log, by the
+ * {@link CarStatsLogger#makeJsonKey(String) JSON key} in JSON logs and the original key in
+ * binary ones.
+ */
+class IndexedLogReader implements Closeable {
+    private static final Type ROW_TYPE = new TypeToken<Map<String, Object>>(){}.getType();
+
+    private final File mLogFile;
+    private final LogIndex mIndex;
+    private final Gson mGson = new Gson();
+
+    private BufferedReader mJsonReader;
+    private DeltaRowEncoder.Decoder mDecoder;
+    private BinaryLogReader mBinaryReader;
+    private long mFrom = Long.MIN_VALUE;
+    private long mTo = Long.MAX_VALUE;
+    private long mTimestamp;
+    private Map<String, Object> mValues;
+
+    IndexedLogReader(File logFile) throws IOException {
+        mLogFile = logFile;
+        mIndex = LogIndex.read(logFile);
+        range(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Moves to the first row at or after {@code timestamp}.
+     */
+    void seek(long timestamp) throws IOException {
+        range(timestamp, Long.MAX_VALUE);
+    }
+
+    /**
+     * Moves to the first row at or after {@code from}; {@link #next()} stops after {@code to}.
+     */
+    void range(long from, long to) throws IOException {
+        closeReaders();
+        mFrom = from;
+        mTo = to;
+        long offset = mIndex.getOffset(mIndex.find(from));
+        if (BinaryLogReader.isBinaryLog(mLogFile)) {
+            mBinaryReader = new BinaryLogReader(mLogFile);
+            mBinaryReader.skipToBlock(Math.max(offset, 0));
+        } else {
+            InputStream in = new BufferedInputStream(new FileInputStream(mLogFile));
+            try {
+                skipFully(in, offset);
+                // Continues with the following members.
+                mJsonReader = new BufferedReader(new InputStreamReader(
+                        new GZIPInputStream(in), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new IOException("Index points past the end of the log");
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Moves to the next row of the range.
+     *
+     * @return false at the end of the range or the log.
+     */
+    boolean next() throws IOException {
+        while (readRow()) {
+            if (mTimestamp > mTo) {
+                return false;
+            }
+            if (mTimestamp >= mFrom) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return the values of the current row, only valid until the next call to {@link #next()}.
+     */
+    Map<String, Object> getValues() {
+        return mValues;
+    }
+
+    private boolean readRow() throws IOException {
+        if (mBinaryReader != null) {
+            if (!mBinaryReader.next()) {
+                return false;
+            }
+            mTimestamp = mBinaryReader.getTimestamp();
+            mValues = mBinaryReader.getValues();
+            return true;
+        }
+        while (true) {
+            String line;
+            try {
+                line = mJsonReader.readLine();
+            } catch (IOException e) {
+                // The broken end of a log that was not closed.
+                return false;
+            }
+            if (line == null) {
+                return false;
+            }
+            if (mDecoder == null && DeltaRowEncoder.isKeyframe(line)) {
+                mDecoder = new DeltaRowEncoder.Decoder();
+            }
+            if (mDecoder != null) {
+                line = mDecoder.decode(line);
+                if (line == null) {
+                    continue;
+                }
+            }
+            try {
+                Map<String, Object> row = mGson.fromJson(line, ROW_TYPE);
+                mTimestamp = LogTimestampFormat.parse((String) row.remove("timestamp"));
+                mValues = row;
+                return true;
+            } catch (ParseException | RuntimeException e) {
+                // A malformed row, skip it.
+            }
+        }
+    }
+
+    private void closeReaders() throws IOException {
+        mDecoder = null;
+        if (mJsonReader != null) {
+            mJsonReader.close();
+            mJsonReader = null;
+        }
+        if (mBinaryReader != null) {
+            mBinaryReader.close();
+            mBinaryReader = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeReaders();
+    }
+}
@@ -0,0 +1,37 @@
+package com.mqbcoding.stats;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the JSON log column names of measurement keys, see
+ * {@link CarStatsLogger#makeJsonKey(String)}. Filled when the schema changes, so writing a row
+ * only takes lookups; keys that are not in the schema are added when first seen.
+ *
+ * Not thread safe.
+ */
+class JsonKeyCache {
+    private final Map<String, String> mJsonKeys = new HashMap<>();
+
+    void addAll(Collection<String> keys) {
+        for (String key : keys) {
+            if (!mJsonKeys.containsKey(key)) {
+                mJsonKeys.put(key, CarStatsLogger.makeJsonKey(key));
+            }
+        }
+    }
+
+    String get(String key) {
+        String jsonKey = mJsonKeys.get(key);
+        if (jsonKey == null) {
+            jsonKey = CarStatsLogger.makeJsonKey(key);
+            mJsonKeys.put(key, jsonKey);
+        }
+        return jsonKey;
+    }
+
+    int size() {
+        return mJsonKeys.size();
+    }
+}
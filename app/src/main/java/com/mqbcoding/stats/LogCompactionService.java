@@ -0,0 +1,113 @@
+package com.mqbcoding.stats;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically compacts finished log segments into {@link LogRollups} and applies the retention
+ * policies of the tiers and, if {@link #PREF_DELETE_RAW_LOGS} is on, raw logs.
+ */
+public class LogCompactionService extends JobService {
+    private static final String TAG = "LogCompactionService";
+
+    public static final String PREF_DELETE_RAW_LOGS = "deleteRolledUpLogs";
+
+    private static final int JOB_ID = "LogCompactionService".hashCode();
+    private static final long INTERVAL_MS = TimeUnit.HOURS.toMillis(6);
+
+    private CompactionTask mTask;
+
+    /**
+     * Schedules the periodic job, unless it already is.
+     */
+    public static synchronized void schedule(Context context) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        assert scheduler != null;
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        ComponentName jobService =
+                new ComponentName(BuildConfig.APPLICATION_ID, LogCompactionService.class.getName());
+        JobInfo jobInfo = new JobInfo.Builder(JOB_ID, jobService)
+                .setPersisted(true)
+                .setPeriodic(INTERVAL_MS)
+                .build();
+        if (scheduler.schedule(jobInfo) != JobScheduler.RESULT_SUCCESS) {
+            Log.e(TAG, "Failed to schedule log compaction");
+        }
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters jobParameters) {
+        mTask = new CompactionTask(jobParameters);
+        mTask.execute();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters jobParameters) {
+        if (mTask != null) {
+            mTask.cancel(true);
+            mTask = null;
+        }
+        return true;
+    }
+
+    private class CompactionTask extends AsyncTask<Void, Void, Boolean> {
+        private final JobParameters mJobParameters;
+
+        CompactionTask(JobParameters jobParameters) {
+            this.mJobParameters = jobParameters;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... args) {
+            LogRollups rollups;
+            try {
+                rollups = LogRollups.open();
+            } catch (IOException e) {
+                Log.w(TAG, "Logs folder not available", e);
+                return false;
+            }
+            boolean success = true;
+            for (LogManifest.Segment segment : rollups.getPendingSegments()) {
+                if (isCancelled()) {
+                    return false;
+                }
+                try {
+                    rollups.compact(segment);
+                    Log.d(TAG, segment.file + ": rolled up");
+                } catch (IOException e) {
+                    Log.w(TAG, segment.file + ": compaction failed", e);
+                    success = false;
+                }
+            }
+            // Raw logs are only deleted if asked to, and kept while waiting for upload.
+            SharedPreferences preferences =
+                    PreferenceManager.getDefaultSharedPreferences(LogCompactionService.this);
+            boolean uploadEnabled = preferences.getBoolean(LogUploadService.PREF_BIGQUERY_ENABLED, false);
+            rollups.applyRetention(System.currentTimeMillis(),
+                    preferences.getBoolean(PREF_DELETE_RAW_LOGS, false), uploadEnabled);
+            return success;
+        }
+
+        @Override
+        protected void onPostExecute(Boolean success) {
+            mTask = null;
+            jobFinished(mJobParameters, !success);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.mqbcoding.stats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The sidecar index of a log, {@code <log>.idx}: the byte offset and first row timestamp of every
+ * part of the log that can be decoded on its own, gzip members of JSON logs and blocks of binary
+ * logs. Entries are 16 bytes, offset and timestamp as longs; an entry cut off at the end is
+ * ignored.
+ *
+ * A log without index is treated as one part starting at the beginning of the file.
+ */
+class LogIndex {
+    static final String SUFFIX = ".idx";
+
+    private final long[] mOffsets;
+    private final long[] mTimestamps;
+    private final int mSize;
+
+    private LogIndex(long[] offsets, long[] timestamps, int size) {
+        mOffsets = offsets;
+        mTimestamps = timestamps;
+        mSize = size;
+    }
+
+    static File getIndexFile(File logFile) {
+        return new File(logFile.getParentFile(), logFile.getName() + SUFFIX);
+    }
+
+    static LogIndex read(File logFile) throws IOException {
+        File indexFile = getIndexFile(logFile);
+        if (!indexFile.exists()) {
+            return new LogIndex(new long[] {0}, new long[] {Long.MIN_VALUE}, 1);
+        }
+        int capacity = (int) (indexFile.length() / 16);
+        long[] offsets = new long[Math.max(1, capacity)];
+        long[] timestamps = new long[offsets.length];
+        int size = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)))) {
+            while (size < capacity) {
+                offsets[size] = in.readLong();
+                timestamps[size] = in.readLong();
+                size++;
+            }
+        } catch (EOFException e) {
+            // Cut off entry.
+        }
+        if (size == 0) {
+            offsets[0] = 0;
+            timestamps[0] = Long.MIN_VALUE;
+            size = 1;
+        }
+        return new LogIndex(offsets, timestamps, size);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    long getOffset(int entry) {
+        return mOffsets[entry];
+    }
+
+    long getTimestamp(int entry) {
+        return mTimestamps[entry];
+    }
+
+    /**
+     * @return the entry of the part that holds the rows at {@code timestamp}: the last one starting
+     * at or before it, or the first one.
+     */
+    int find(long timestamp) {
+        int found = Arrays.binarySearch(mTimestamps, 0, mSize, timestamp);
+        if (found < 0) {
+            found = -found - 2;
+        } else {
+            // Equal timestamps are possible, start at the first of them.
+            while (found > 0 && mTimestamps[found - 1] == timestamp) {
+                found--;
+            }
+        }
+        return Math.max(0, found);
+    }
+
+    /**
+     * Appends entries while a log is written. {@link #flush()} with the log, so the index never
+     * points past the data on disk.
+     */
+    static class Writer implements Closeable {
+        private final DataOutputStream mOut;
+
+        Writer(File logFile) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(getIndexFile(logFile))));
+        }
+
+        void add(long offset, long timestamp) throws IOException {
+            mOut.writeLong(offset);
+            mOut.writeLong(timestamp);
+        }
+
+        void flush() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+}
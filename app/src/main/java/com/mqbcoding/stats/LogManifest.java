@@ -0,0 +1,228 @@
+package com.mqbcoding.stats;
+
+import android.util.Log;
+
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@code manifest.json} in the logs folder, listing the log segments {@link CarStatsLogger}
+ * finished: their trip, time range, row count and the schema version they were written with.
+ * Lets upload and query tools pick the segments they need without opening them.
+ *
+ * Every call reads and rewrites the file under a process wide lock, so the logger and the upload
+ * service can use separate instances.
+ */
+class LogManifest {
+    private static final String TAG = "LogManifest";
+
+    static final String FILENAME = "manifest.json";
+    static final String UPLOADED_DIR = "uploaded";
+    static final int VERSION = 1;
+
+    static final String FORMAT_JSON = "json";
+    static final String FORMAT_BINARY = "binary";
+
+    private static final Object LOCK = new Object();
+
+    static class Segment {
+        // File name, in the logs folder or its uploaded folder.
+        String file;
+        // Start of the first segment of the trip, epoch millis.
+        long trip;
+        // First and last row, epoch millis.
+        long start;
+        long end;
+        long rows;
+        long bytes;
+        String format;
+        boolean delta;
+        // Schema version when the segment was finished, it covers all of its keys.
+        int schemaVersion;
+        boolean uploaded;
+        // Compacted into the LogRollups tiers.
+        boolean rolledUp;
+        // When it was compacted, epoch millis, 0 if not known.
+        long rolledUpAt;
+        // The log was removed by the raw retention policy, only its rollups are left.
+        boolean rawDeleted;
+    }
+
+    private static class Contents {
+        int version = VERSION;
+        // When the manifest was first written, or for a manifest from before this was recorded,
+        // first read. Logs from before may not be listed, or listed by recovery.
+        long created = System.currentTimeMillis();
+        int schemaVersion = 0;
+        List<Segment> segments = new ArrayList<>();
+    }
+
+    private final File mLogsDir;
+    private final File mFile;
+    private final Gson mGson = new Gson();
+
+    LogManifest(File logsDir) {
+        mLogsDir = logsDir;
+        mFile = new File(logsDir, FILENAME);
+    }
+
+    static LogManifest open() throws IOException {
+        return new LogManifest(CarStatsLogger.getLogsDir());
+    }
+
+    /**
+     * Writes the manifest if there is none yet, so logs started from now on are newer than it.
+     */
+    void create() throws IOException {
+        synchronized (LOCK) {
+            if (!mFile.exists()) {
+                write(new Contents());
+            }
+        }
+    }
+
+    /**
+     * @return when the manifest was created, logs written before that are left alone.
+     */
+    long getCreated() {
+        synchronized (LOCK) {
+            return read().created;
+        }
+    }
+
+    int getSchemaVersion() {
+        synchronized (LOCK) {
+            return read().schemaVersion;
+        }
+    }
+
+    /**
+     * Called when keys were added to {@code schema.json}.
+     *
+     * @return the new schema version.
+     */
+    int incrementSchemaVersion() throws IOException {
+        synchronized (LOCK) {
+            Contents contents = read();
+            contents.schemaVersion++;
+            write(contents);
+            return contents.schemaVersion;
+        }
+    }
+
+    void addSegment(Segment segment) throws IOException {
+        synchronized (LOCK) {
+            Contents contents = read();
+            contents.segments.add(segment);
+            write(contents);
+        }
+    }
+
+    void markUploaded(String fileName) throws IOException {
+        synchronized (LOCK) {
+            Contents contents = read();
+            Segment segment = find(contents, fileName);
+            if (segment != null) {
+                segment.uploaded = true;
+                write(contents);
+            }
+        }
+    }
+
+    void markRolledUp(String fileName) throws IOException {
+        synchronized (LOCK) {
+            Contents contents = read();
+            Segment segment = find(contents, fileName);
+            if (segment != null) {
+                segment.rolledUp = true;
+                segment.rolledUpAt = System.currentTimeMillis();
+                write(contents);
+            }
+        }
+    }
+
+    void markRawDeleted(String fileName) throws IOException {
+        synchronized (LOCK) {
+            Contents contents = read();
+            Segment segment = find(contents, fileName);
+            if (segment != null) {
+                segment.rawDeleted = true;
+                write(contents);
+            }
+        }
+    }
+
+    private static Segment find(Contents contents, String fileName) {
+        for (Segment segment : contents.segments) {
+            if (segment.file.equals(fileName)) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    List<Segment> getSegments() {
+        synchronized (LOCK) {
+            return read().segments;
+        }
+    }
+
+    /**
+     * @return the segments with rows between {@code from} and {@code to}, in the order they were
+     * written.
+     */
+    List<Segment> getSegments(long from, long to) {
+        List<Segment> segments = new ArrayList<>();
+        for (Segment segment : getSegments()) {
+            if (segment.end >= from && segment.start <= to) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * @return the segment's file, wherever it currently is.
+     */
+    File getFile(Segment segment) {
+        File file = new File(mLogsDir, segment.file);
+        if (!file.exists()) {
+            File uploaded = new File(new File(mLogsDir, UPLOADED_DIR), segment.file);
+            if (uploaded.exists()) {
+                return uploaded;
+            }
+        }
+        return file;
+    }
+
+    private Contents read() {
+        if (mFile.exists()) {
+            try {
+                Contents contents = mGson.fromJson(
+                        Files.asCharSource(mFile, StandardCharsets.UTF_8).read(), Contents.class);
+                if (contents != null && contents.segments != null) {
+                    return contents;
+                }
+            } catch (IOException | JsonParseException e) {
+                Log.w(TAG, "Error reading " + mFile + ", starting a new one", e);
+            }
+        }
+        return new Contents();
+    }
+
+    private void write(Contents contents) throws IOException {
+        // Replace the file in one step, so a crash never leaves half a manifest.
+        File temp = new File(mLogsDir, FILENAME + ".tmp");
+        Files.asCharSink(temp, StandardCharsets.UTF_8).write(mGson.toJson(contents));
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("Failed to replace " + mFile);
+        }
+    }
+}
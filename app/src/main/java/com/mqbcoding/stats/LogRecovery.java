@@ -0,0 +1,485 @@
+package com.mqbcoding.stats;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import com.github.martoreto.aauto.vex.FieldSchema;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PushbackInputStream;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Finishes the logs {@link CarStatsLogger} never closed, because the app was killed while writing
+ * them. Logs whose {@link CarStatsLogger#getOpenMarker open marker} is still there are read up to
+ * the last row that can be decoded, rewritten if their end is broken, added to the
+ * {@link LogManifest} and handed to {@link LogUploadService}. Logs without any readable row are
+ * deleted.
+ *
+ * The logger writes the {@link TripSummary} of a trip when a segment is finished, so a recovered
+ * log gets a summary of its own, named after the log.
+ */
+class LogRecovery {
+    private static final String TAG = "LogRecovery";
+
+    private static final String TIMESTAMP_FIELD = "\"timestamp\":\"";
+    private static final long SCAN_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    // Counted down once the scan started by the last start() found the unfinished logs.
+    private static volatile CountDownLatch sScan = new CountDownLatch(0);
+
+    private final Context mContext;
+    private final LogManifest mManifest;
+    private final Gson mGson = new Gson();
+    private final Type mRowType = new TypeToken<Map<String, Object>>(){}.getType();
+    private final Map<String, FieldSchema> mSchema = new HashMap<>();
+    private final Map<String, String> mKeysByJsonKey = new HashMap<>();
+
+    private static class Result {
+        final TripSummary summary = new TripSummary();
+        long rows = 0;
+        long start = -1;
+        long end = -1;
+        boolean delta = false;
+        boolean intact = true;
+    }
+
+    private LogRecovery(Context context, LogManifest manifest) {
+        mContext = context.getApplicationContext();
+        mManifest = manifest;
+    }
+
+    private void loadSchema() throws IOException {
+        File schemaFile = CarStatsLogger.getSchemaFile();
+        if (!schemaFile.exists()) {
+            return;
+        }
+        Type type = new TypeToken<Map<String, FieldSchema>>(){}.getType();
+        Map<String, FieldSchema> schema;
+        try {
+            schema = mGson.fromJson(Files.asCharSource(schemaFile, StandardCharsets.UTF_8).read(), type);
+        } catch (JsonParseException e) {
+            Log.w(TAG, "Error reading schema, summaries without ranges", e);
+            return;
+        }
+        if (schema == null) {
+            return;
+        }
+        mSchema.putAll(schema);
+        for (String key : mSchema.keySet()) {
+            mKeysByJsonKey.put(CarStatsLogger.makeJsonKey(key), key);
+        }
+    }
+
+    private Result newResult() {
+        Result result = new Result();
+        for (Map.Entry<String, FieldSchema> field : mSchema.entrySet()) {
+            result.summary.setRange(field.getKey(), field.getValue().getMin(),
+                    field.getValue().getMax());
+        }
+        return result;
+    }
+
+    /**
+     * Looks for unfinished logs and recovers them on a background thread. Has to be called before
+     * the logger starts a new file, which waits in {@link #awaitScan()} so it doesn't look
+     * unfinished too.
+     */
+    static void start(final Context context) {
+        final CountDownLatch scan = new CountDownLatch(1);
+        sScan = scan;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                LogRecovery recovery;
+                List<File> unfinished;
+                try {
+                    recovery = new LogRecovery(context, LogManifest.open());
+                    unfinished = recovery.findUnfinished();
+                } catch (IOException e) {
+                    Log.w(TAG, "Logs folder not available", e);
+                    return;
+                } finally {
+                    scan.countDown();
+                }
+                if (unfinished.isEmpty()) {
+                    return;
+                }
+                try {
+                    recovery.loadSchema();
+                } catch (IOException e) {
+                    Log.w(TAG, "Error reading schema, summaries without ranges", e);
+                }
+                for (File logFile : unfinished) {
+                    recovery.recover(logFile);
+                }
+            }
+        }, "CarStatsLogRecovery").start();
+    }
+
+    /**
+     * Waits until the logs to recover are known, so a log started afterwards is left alone. Not
+     * to be called on the main thread.
+     */
+    static void awaitScan() {
+        try {
+            if (!sScan.await(SCAN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Scan for unfinished logs didn't finish in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<File> findUnfinished() throws IOException {
+        Set<String> finished = new HashSet<>();
+        for (LogManifest.Segment segment : mManifest.getSegments()) {
+            finished.add(segment.file);
+        }
+        List<File> unfinished = new ArrayList<>();
+        File[] files = CarStatsLogger.getLogsDir().listFiles();
+        if (files == null) {
+            return unfinished;
+        }
+        for (File marker : files) {
+            String name = marker.getName();
+            if (!name.endsWith(CarStatsLogger.OPEN_SUFFIX)) {
+                continue;
+            }
+            File logFile = new File(marker.getParentFile(),
+                    name.substring(0, name.length() - CarStatsLogger.OPEN_SUFFIX.length()));
+            // Killed before the log was created, or after it was added to the manifest.
+            if (!logFile.exists() || finished.contains(logFile.getName())) {
+                marker.delete();
+            } else {
+                unfinished.add(logFile);
+            }
+        }
+        return unfinished;
+    }
+
+    private void recover(File logFile) {
+        File temp = new File(logFile.getParentFile(), logFile.getName() + ".tmp");
+        // Rewriting moves the rows, readers without index scan the whole log.
+        File indexFile = LogIndex.getIndexFile(logFile);
+        Result result;
+        try {
+            if (BinaryLogReader.isBinaryLog(logFile)) {
+                result = recoverBinary(logFile, temp);
+            } else {
+                result = recoverJson(logFile, temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, logFile + ": recovery failed", e);
+            temp.delete();
+            return;
+        }
+
+        if (result.rows == 0) {
+            Log.i(TAG, logFile + ": no readable rows, deleting");
+            temp.delete();
+            logFile.delete();
+            indexFile.delete();
+            CarStatsLogger.getOpenMarker(logFile).delete();
+            return;
+        }
+        if (result.intact) {
+            temp.delete();
+        } else if (!temp.renameTo(logFile)) {
+            Log.w(TAG, logFile + ": failed to replace with repaired file");
+            temp.delete();
+            return;
+        } else {
+            indexFile.delete();
+        }
+        Log.i(TAG, logFile + ": recovered " + result.rows + " rows"
+                + (result.intact ? "" : ", broken end removed"));
+
+        LogManifest.Segment segment = new LogManifest.Segment();
+        segment.file = logFile.getName();
+        segment.trip = result.start;
+        segment.start = result.start;
+        segment.end = result.end;
+        segment.rows = result.rows;
+        segment.bytes = logFile.length();
+        segment.format = BinaryLogReader.isBinaryLog(logFile)
+                ? LogManifest.FORMAT_BINARY : LogManifest.FORMAT_JSON;
+        segment.delta = result.delta;
+        try {
+            segment.schemaVersion = mManifest.getSchemaVersion();
+            mManifest.addSegment(segment);
+        } catch (IOException e) {
+            Log.e(TAG, "Error updating manifest", e);
+            return;
+        }
+        writeSummary(logFile, result.summary);
+        CarStatsLogger.getOpenMarker(logFile).delete();
+        LogUploadService.schedule(mContext, logFile);
+    }
+
+    /**
+     * Copies the complete rows to {@code temp}, unless the log ends with a complete gzip member.
+     * A log that was killed usually ends in an unfinished member, which decompresses up to
+     * somewhere in the middle of a row before failing.
+     */
+    private Result recoverJson(File logFile, File temp) throws IOException {
+        Result result = newResult();
+        DeltaRowEncoder.Decoder decoder = new DeltaRowEncoder.Decoder();
+        // GZIPInputStream silently stops at a member whose header is cut off, so check the members
+        // before trusting it.
+        result.intact = endsWithCompleteMember(logFile);
+        try (Writer writer = result.intact ? null : new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(temp)), StandardCharsets.UTF_8)) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(new FileInputStream(logFile)), StandardCharsets.UTF_8))) {
+                while (true) {
+                    String line;
+                    try {
+                        line = reader.readLine();
+                    } catch (IOException e) {
+                        // EOFException or ZipException at the broken end.
+                        break;
+                    }
+                    if (line == null) {
+                        break;
+                    }
+                    if (!line.endsWith("}")) {
+                        continue;
+                    }
+                    if (result.rows == 0) {
+                        result.delta = DeltaRowEncoder.isKeyframe(line);
+                    }
+                    long timestamp = parseTimestamp(line);
+                    if (timestamp >= 0) {
+                        if (result.start < 0) {
+                            result.start = timestamp;
+                        }
+                        result.end = timestamp;
+                        addToSummary(result.summary, timestamp,
+                                result.delta ? decoder.decode(line) : line);
+                    }
+                    if (writer != null) {
+                        writer.write(line);
+                        writer.write('\n');
+                    }
+                    result.rows++;
+                }
+            } catch (EOFException e) {
+                // Killed before the gzip header was written.
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return whether {@code logFile} is a series of gzip members as GZIPOutputStream writes them,
+     *         each with a matching trailer, and nothing after the last one.
+     */
+    private static boolean endsWithCompleteMember(File logFile) throws IOException {
+        byte[] input = new byte[8192];
+        byte[] output = new byte[8192];
+        Inflater inflater = new Inflater(true);
+        CRC32 crc = new CRC32();
+        try (PushbackInputStream in = new PushbackInputStream(
+                new FileInputStream(logFile), input.length)) {
+            boolean complete = false;
+            while (true) {
+                int magic = in.read();
+                if (magic < 0) {
+                    return complete;
+                }
+                // GZIPOutputStream writes no optional header fields.
+                if (magic != 0x1f || in.read() != 0x8b || in.read() != Deflater.DEFLATED
+                        || in.read() != 0 || in.skip(6) != 6) {
+                    return false;
+                }
+                inflater.reset();
+                crc.reset();
+                int length = 0;
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        length = in.read(input);
+                        if (length < 0) {
+                            return false;
+                        }
+                        inflater.setInput(input, 0, length);
+                    }
+                    int inflated;
+                    try {
+                        inflated = inflater.inflate(output);
+                    } catch (DataFormatException e) {
+                        return false;
+                    }
+                    if (inflated == 0 && inflater.needsDictionary()) {
+                        return false;
+                    }
+                    crc.update(output, 0, inflated);
+                }
+                int remaining = inflater.getRemaining();
+                in.unread(input, length - remaining, remaining);
+                if (readIntLE(in) != crc.getValue()
+                        || readIntLE(in) != (inflater.getBytesWritten() & 0xffffffffL)) {
+                    return false;
+                }
+                complete = true;
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return the unsigned little-endian int, or -1 at the end of the stream.
+     */
+    private static long readIntLE(InputStream in) throws IOException {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = in.read();
+            if (b < 0) {
+                return -1;
+            }
+            value |= (long) b << (i * 8);
+        }
+        return value;
+    }
+
+    private void addToSummary(TripSummary summary, long timestamp, String row) {
+        if (row == null) {
+            return;
+        }
+        Map<String, Object> values;
+        try {
+            values = mGson.fromJson(row, mRowType);
+        } catch (JsonParseException e) {
+            return;
+        }
+        if (values == null) {
+            return;
+        }
+        String[] keys = new String[values.size()];
+        Object[] rowValues = new Object[values.size()];
+        int size = 0;
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            String key = mKeysByJsonKey.get(value.getKey());
+            keys[size] = key != null ? key : value.getKey();
+            rowValues[size] = value.getValue();
+            size++;
+        }
+        summary.addRow(timestamp, keys, rowValues, size);
+    }
+
+    private static void writeSummary(File logFile, TripSummary summary) {
+        String name = logFile.getName();
+        String suffix = name.endsWith(CarStatsLogger.BINARY_LOG_SUFFIX)
+                ? CarStatsLogger.BINARY_LOG_SUFFIX : CarStatsLogger.JSON_LOG_SUFFIX;
+        File summaryFile = new File(logFile.getParentFile(),
+                name.substring(0, name.length() - suffix.length()) + TripSummary.SUFFIX);
+        summary.addSegment(name);
+        try {
+            summary.write(summaryFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing trip summary", e);
+        }
+    }
+
+    private static long parseTimestamp(String row) {
+        int start = row.indexOf(TIMESTAMP_FIELD);
+        if (start < 0) {
+            return -1;
+        }
+        start += TIMESTAMP_FIELD.length();
+        try {
+            return LogTimestampFormat.parse(
+                    row.substring(start, Math.min(row.length(), start + LogTimestampFormat.LENGTH)));
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Copies the rows of the complete blocks to {@code temp}.
+     */
+    private Result recoverBinary(File logFile, File temp) throws IOException {
+        Result result = newResult();
+        BinaryLogReader reader;
+        try {
+            reader = new BinaryLogReader(logFile);
+        } catch (IOException e) {
+            // Killed before the header was written.
+            result.intact = false;
+            return result;
+        }
+        String[] keys = new String[16];
+        Object[] values = new Object[16];
+        try (BinaryLogWriter writer = new BinaryLogWriter(
+                new BufferedOutputStream(new FileOutputStream(temp)), reader.getSchemaJson())) {
+            while (true) {
+                try {
+                    if (!reader.next()) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    // A corrupt block.
+                    result.intact = false;
+                    break;
+                }
+                Map<String, Object> row = reader.getValues();
+                if (row.size() > keys.length) {
+                    keys = new String[row.size() * 2];
+                    values = new Object[row.size() * 2];
+                }
+                int size = 0;
+                for (Map.Entry<String, Object> value : row.entrySet()) {
+                    keys[size] = value.getKey();
+                    values[size] = value.getValue();
+                    size++;
+                }
+                writer.writeRow(reader.getTimestamp(), keys, values, size);
+                result.summary.addRow(reader.getTimestamp(), keys, values, size);
+                if (result.start < 0) {
+                    result.start = reader.getTimestamp();
+                }
+                result.end = reader.getTimestamp();
+                result.rows++;
+            }
+            if (reader.isTruncated()) {
+                result.intact = false;
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+}
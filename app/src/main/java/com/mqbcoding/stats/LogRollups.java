@@ -0,0 +1,510 @@
+package com.mqbcoding.stats;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Long term storage of the logs at lower resolutions. Finished segments are compacted into
+ * {@link #TIERS} of 1 s, 10 s and 1 min buckets holding min, max, average and last value of every
+ * numeric key, written to {@code rollups/<tier>/<log>.rollup.gz} as gzipped JSON lines. Each tier
+ * is kept for its retention time after the end of the segment. If enabled, the raw log is deleted
+ * {@link #RAW_RETENTION_MS} after it was rolled up, once it is uploaded if uploads are on. Logs
+ * from before the {@link LogManifest} was created are never deleted.
+ *
+ * {@link #query(long, long, long)} reads a time range from the coarsest source that still has it
+ * at the requested resolution. Keys are the {@link CarStatsLogger#makeJsonKey(String) JSON keys}.
+ *
+ * Compaction and retention run in {@link LogCompactionService}.
+ */
+class LogRollups {
+    private static final String TAG = "LogRollups";
+
+    static final String DIR = "rollups";
+    static final String SUFFIX = ".rollup.gz";
+
+    static class Tier {
+        final String name;
+        final long resolutionMs;
+        final long retentionMs;
+
+        Tier(String name, long resolutionMs, long retentionMs) {
+            this.name = name;
+            this.resolutionMs = resolutionMs;
+            this.retentionMs = retentionMs;
+        }
+    }
+
+    // Finest first.
+    static final Tier[] TIERS = {
+            new Tier("1s", TimeUnit.SECONDS.toMillis(1), TimeUnit.DAYS.toMillis(30)),
+            new Tier("10s", TimeUnit.SECONDS.toMillis(10), TimeUnit.DAYS.toMillis(365)),
+            new Tier("1m", TimeUnit.MINUTES.toMillis(1), Long.MAX_VALUE),
+    };
+
+    static final long RAW_RETENTION_MS = TimeUnit.DAYS.toMillis(14);
+
+    /**
+     * Statistics of one key in a bucket.
+     */
+    static class Stats {
+        double min;
+        double max;
+        double avg;
+        double last;
+        long n;
+
+        void add(double value) {
+            if (n == 0) {
+                min = value;
+                max = value;
+                avg = value;
+            } else {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                avg += (value - avg) / (n + 1);
+            }
+            last = value;
+            n++;
+        }
+
+        /**
+         * Adds the values of a later part of the same bucket.
+         */
+        void merge(Stats later) {
+            if (n == 0) {
+                min = later.min;
+                max = later.max;
+            } else {
+                min = Math.min(min, later.min);
+                max = Math.max(max, later.max);
+            }
+            avg = (avg * n + later.avg * later.n) / (n + later.n);
+            last = later.last;
+            n += later.n;
+        }
+    }
+
+    static class Bucket {
+        // Start of the bucket, or the row timestamp for raw rows.
+        final long timestamp;
+        final Map<String, Stats> values = new TreeMap<>();
+
+        Bucket(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        void add(String key, double value) {
+            Stats stats = values.get(key);
+            if (stats == null) {
+                stats = new Stats();
+                values.put(key, stats);
+            }
+            stats.add(value);
+        }
+
+        void merge(Bucket later) {
+            for (Map.Entry<String, Stats> entry : later.values.entrySet()) {
+                Stats stats = values.get(entry.getKey());
+                if (stats == null) {
+                    values.put(entry.getKey(), entry.getValue());
+                } else {
+                    stats.merge(entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Result of a {@link #query(long, long, long)}.
+     */
+    static class Result {
+        // The picked tier, null for raw rows. Segments whose raw log is gone are read from the
+        // finest tier.
+        final Tier tier;
+        // In time order.
+        final List<Bucket> buckets = new ArrayList<>();
+
+        Result(Tier tier) {
+            this.tier = tier;
+        }
+
+        private void add(Bucket bucket) {
+            // Buckets spanning two segments are written in two parts.
+            if (!buckets.isEmpty()) {
+                Bucket last = buckets.get(buckets.size() - 1);
+                if (last.timestamp == bucket.timestamp && tier != null) {
+                    last.merge(bucket);
+                    return;
+                }
+            }
+            buckets.add(bucket);
+        }
+    }
+
+    // A line of a rollup file.
+    private static class Row {
+        String timestamp;
+        Map<String, Stats> values;
+    }
+
+    /**
+     * Collects rows into the buckets of one tier, handing out each bucket once a row of a later
+     * bucket arrives. Rows are expected in time order.
+     */
+    private static class Aggregator {
+        private final long mResolutionMs;
+        private Bucket mBucket;
+
+        Aggregator(long resolutionMs) {
+            mResolutionMs = resolutionMs;
+        }
+
+        /**
+         * @return the finished bucket, if the row starts a new one.
+         */
+        Bucket add(long timestamp, String[] keys, double[] values, int size) {
+            long start = timestamp - timestamp % mResolutionMs;
+            Bucket finished = null;
+            if (mBucket == null || start > mBucket.timestamp) {
+                finished = mBucket;
+                mBucket = new Bucket(start);
+            }
+            for (int i = 0; i < size; i++) {
+                mBucket.add(keys[i], values[i]);
+            }
+            return finished;
+        }
+
+        Bucket finish() {
+            Bucket finished = mBucket;
+            mBucket = null;
+            return finished;
+        }
+    }
+
+    private final File mLogsDir;
+    private final LogManifest mManifest;
+    private final JsonKeyCache mJsonKeys = new JsonKeyCache();
+    private final Gson mGson = new Gson();
+    private final char[] mTimestampChars = new char[LogTimestampFormat.LENGTH];
+
+    // Numeric values of the current row, reused.
+    private String[] mRowKeys = new String[64];
+    private double[] mRowValues = new double[64];
+
+    LogRollups(File logsDir) {
+        mLogsDir = logsDir;
+        mManifest = new LogManifest(logsDir);
+    }
+
+    static LogRollups open() throws IOException {
+        return new LogRollups(CarStatsLogger.getLogsDir());
+    }
+
+    static File getRollupFile(File logsDir, Tier tier, String logFileName) {
+        return new File(new File(new File(logsDir, DIR), tier.name), logFileName + SUFFIX);
+    }
+
+    /**
+     * @return the segments that were finished but are not rolled up yet.
+     */
+    List<LogManifest.Segment> getPendingSegments() {
+        List<LogManifest.Segment> pending = new ArrayList<>();
+        for (LogManifest.Segment segment : mManifest.getSegments()) {
+            if (!segment.rolledUp && !segment.rawDeleted) {
+                pending.add(segment);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Writes the rollups of all tiers for a segment and marks it as rolled up. Reads the log once.
+     */
+    void compact(LogManifest.Segment segment) throws IOException {
+        File logFile = mManifest.getFile(segment);
+        if (!logFile.exists()) {
+            Log.w(TAG, logFile + ": does not exist anymore");
+            mManifest.markRawDeleted(segment.file);
+            return;
+        }
+        File[] files = new File[TIERS.length];
+        File[] temps = new File[TIERS.length];
+        Writer[] writers = new Writer[TIERS.length];
+        Aggregator[] aggregators = new Aggregator[TIERS.length];
+        try {
+            for (int i = 0; i < TIERS.length; i++) {
+                files[i] = getRollupFile(mLogsDir, TIERS[i], segment.file);
+                File dir = files[i].getParentFile();
+                if (!dir.exists() && !dir.mkdirs()) {
+                    throw new IOException("Failed to create " + dir);
+                }
+                temps[i] = new File(dir, files[i].getName() + ".tmp");
+                writers[i] = new OutputStreamWriter(
+                        new GZIPOutputStream(new FileOutputStream(temps[i])), StandardCharsets.UTF_8);
+                aggregators[i] = new Aggregator(TIERS[i].resolutionMs);
+            }
+            try (IndexedLogReader reader = new IndexedLogReader(logFile)) {
+                while (reader.next()) {
+                    int size = readValues(reader.getValues());
+                    for (int i = 0; i < TIERS.length; i++) {
+                        Bucket finished = aggregators[i].add(
+                                reader.getTimestamp(), mRowKeys, mRowValues, size);
+                        if (finished != null) {
+                            writeBucket(writers[i], finished);
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < TIERS.length; i++) {
+                Bucket finished = aggregators[i].finish();
+                if (finished != null) {
+                    writeBucket(writers[i], finished);
+                }
+                writers[i].close();
+                writers[i] = null;
+                if (!temps[i].renameTo(files[i])) {
+                    throw new IOException("Failed to replace " + files[i]);
+                }
+            }
+        } finally {
+            for (int i = 0; i < TIERS.length; i++) {
+                if (writers[i] != null) {
+                    try {
+                        writers[i].close();
+                    } catch (IOException e) {
+                        // Already failing.
+                    }
+                }
+                if (temps[i] != null) {
+                    temps[i].delete();
+                }
+            }
+        }
+        mManifest.markRolledUp(segment.file);
+    }
+
+    /**
+     * Copies the numeric values of a row to {@link #mRowKeys} and {@link #mRowValues}, booleans as
+     * 0 and 1.
+     */
+    private int readValues(Map<String, Object> row) {
+        if (row.size() > mRowKeys.length) {
+            mRowKeys = new String[row.size() * 2];
+            mRowValues = new double[row.size() * 2];
+        }
+        int size = 0;
+        for (Map.Entry<String, Object> entry : row.entrySet()) {
+            Object value = entry.getValue();
+            double number;
+            if (value instanceof Number) {
+                number = ((Number) value).doubleValue();
+            } else if (value instanceof Boolean) {
+                number = (Boolean) value ? 1 : 0;
+            } else {
+                continue;
+            }
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                continue;
+            }
+            // Binary logs use the original keys.
+            mRowKeys[size] = mJsonKeys.get(entry.getKey());
+            mRowValues[size] = number;
+            size++;
+        }
+        return size;
+    }
+
+    private void writeBucket(Writer writer, Bucket bucket) throws IOException {
+        Row row = new Row();
+        LogTimestampFormat.format(bucket.timestamp, mTimestampChars, 0);
+        row.timestamp = new String(mTimestampChars);
+        row.values = bucket.values;
+        writer.write(mGson.toJson(row));
+        writer.write('\n');
+    }
+
+    /**
+     * Deletes the rollups and raw logs that are past their retention time.
+     *
+     * @param deleteRaw whether to delete raw logs at all.
+     * @param keepNotUploaded keep raw logs that were not uploaded yet.
+     */
+    void applyRetention(long now, boolean deleteRaw, boolean keepNotUploaded) {
+        long manifestCreated = mManifest.getCreated();
+        for (LogManifest.Segment segment : mManifest.getSegments()) {
+            long age = now - segment.end;
+            for (Tier tier : TIERS) {
+                if (age > tier.retentionMs) {
+                    File file = getRollupFile(mLogsDir, tier, segment.file);
+                    if (file.exists() && !file.delete()) {
+                        Log.w(TAG, file + ": failed to delete");
+                    }
+                }
+            }
+            if (deleteRaw && segment.rolledUp && segment.rolledUpAt > 0 && !segment.rawDeleted
+                    && now - segment.rolledUpAt > RAW_RETENTION_MS
+                    && segment.start >= manifestCreated
+                    && (segment.uploaded || !keepNotUploaded)) {
+                File logFile = mManifest.getFile(segment);
+                if (logFile.exists() && !logFile.delete()) {
+                    Log.w(TAG, logFile + ": failed to delete");
+                    continue;
+                }
+                LogIndex.getIndexFile(logFile).delete();
+                try {
+                    mManifest.markRawDeleted(segment.file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error updating manifest", e);
+                }
+                Log.i(TAG, logFile + ": deleted, rolled up "
+                        + (now - segment.rolledUpAt) / TimeUnit.DAYS.toMillis(1) + " days ago");
+            }
+        }
+    }
+
+    /**
+     * Picks the coarsest tier whose resolution is at most {@code resolutionMs} and which is still
+     * kept for {@code from}. Below the finest tier's resolution that is the raw logs; if the
+     * tiers fine enough are gone, the finest one still kept.
+     *
+     * @return the tier, or null for raw logs.
+     */
+    static Tier pickTier(long from, long resolutionMs, long now) {
+        Tier kept = null;
+        for (int i = TIERS.length - 1; i >= 0; i--) {
+            Tier tier = TIERS[i];
+            if (now - from <= tier.retentionMs) {
+                if (tier.resolutionMs <= resolutionMs) {
+                    return tier;
+                }
+                kept = tier;
+            }
+        }
+        return resolutionMs < TIERS[0].resolutionMs ? null : kept;
+    }
+
+    /**
+     * @see #query(long, long, long, long)
+     */
+    Result query(long from, long to, long resolutionMs) throws IOException {
+        return query(from, to, resolutionMs, System.currentTimeMillis());
+    }
+
+    /**
+     * Reads the buckets between {@code from} and {@code to} of the tier picked by
+     * {@link #pickTier(long, long, long)}, or raw rows as single value buckets. Segments that were
+     * not compacted yet are rolled up from their log on the fly; raw rows that were deleted are
+     * read from the finest tier instead.
+     *
+     * All buckets are held in memory, pick the resolution according to the length of the range.
+     */
+    Result query(long from, long to, long resolutionMs, long now) throws IOException {
+        Tier tier = pickTier(from, resolutionMs, now);
+        Result result = new Result(tier);
+        for (LogManifest.Segment segment : mManifest.getSegments(from, to)) {
+            Tier source = tier;
+            if (source == null && segment.rawDeleted) {
+                source = TIERS[0];
+            }
+            File rollupFile = source != null
+                    ? getRollupFile(mLogsDir, source, segment.file) : null;
+            if (rollupFile != null && rollupFile.exists()) {
+                readRollup(rollupFile, source, from, to, result);
+            } else if (!segment.rawDeleted) {
+                readRaw(mManifest.getFile(segment), source, from, to, result);
+            }
+        }
+        return result;
+    }
+
+    private void readRollup(File file, Tier tier, long from, long to, Result result)
+            throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                long timestamp;
+                Row row;
+                try {
+                    row = mGson.fromJson(line, Row.class);
+                    if (row == null || row.timestamp == null) {
+                        continue;
+                    }
+                    timestamp = LogTimestampFormat.parse(row.timestamp);
+                } catch (ParseException | JsonParseException e) {
+                    Log.w(TAG, file + ": skipping malformed row");
+                    continue;
+                }
+                if (timestamp + tier.resolutionMs <= from) {
+                    continue;
+                }
+                if (timestamp > to) {
+                    break;
+                }
+                Bucket bucket = new Bucket(timestamp);
+                if (row.values != null) {
+                    bucket.values.putAll(row.values);
+                }
+                result.add(bucket);
+            }
+        }
+    }
+
+    /**
+     * Reads rows of a log, rolled up to {@code tier} or as they are if it is null.
+     */
+    private void readRaw(File logFile, Tier tier, long from, long to, Result result)
+            throws IOException {
+        if (!logFile.exists()) {
+            return;
+        }
+        Aggregator aggregator = tier != null ? new Aggregator(tier.resolutionMs) : null;
+        try (IndexedLogReader reader = new IndexedLogReader(logFile)) {
+            // Rows from the start of the first bucket, so it is complete.
+            reader.range(tier != null ? from - from % tier.resolutionMs : from, to);
+            while (reader.next()) {
+                int size = readValues(reader.getValues());
+                if (aggregator == null) {
+                    Bucket bucket = new Bucket(reader.getTimestamp());
+                    for (int i = 0; i < size; i++) {
+                        bucket.add(mRowKeys[i], mRowValues[i]);
+                    }
+                    result.add(bucket);
+                } else {
+                    Bucket finished = aggregator.add(
+                            reader.getTimestamp(), mRowKeys, mRowValues, size);
+                    if (finished != null) {
+                        result.add(finished);
+                    }
+                }
+            }
+        }
+        if (aggregator != null) {
+            Bucket finished = aggregator.finish();
+            if (finished != null) {
+                result.add(finished);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.mqbcoding.stats;
+
+import java.text.ParseException;
+
+/**
+ * Formats and parses the timestamps of the JSON logs, {@code yyyy-MM-dd HH:mm:ss.SSSSSS} in UTC,
+ * without {@link java.text.SimpleDateFormat}: thread safe, and free of allocations when formatting
+ * into a buffer.
+ *
+ * The output is the same as that of the SimpleDateFormat pattern, which writes the milliseconds
+ * zero padded to six digits, so existing logs and tables stay consistent. That holds from
+ * 1582-10-15, before which SimpleDateFormat switches to the Julian calendar, to the end of 9999.
+ */
+final class LogTimestampFormat {
+    static final int LENGTH = 26;
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+    // Days from 0000-03-01 to 1970-01-01.
+    private static final long EPOCH_SHIFT_DAYS = 719468;
+    private static final int DAYS_PER_ERA = 146097;
+
+    private LogTimestampFormat() {
+    }
+
+    /**
+     * Writes {@link #LENGTH} characters to {@code out} at {@code offset}.
+     *
+     * @return the number of characters written.
+     */
+    static int format(long epochMillis, char[] out, int offset) {
+        long days = epochMillis / MILLIS_PER_DAY;
+        if (epochMillis % MILLIS_PER_DAY < 0) {
+            days--;
+        }
+        int millisOfDay = (int) (epochMillis - days * MILLIS_PER_DAY);
+
+        // Civil date from days since the epoch, in 400 year eras starting in March.
+        long shifted = days + EPOCH_SHIFT_DAYS;
+        long era = (shifted >= 0 ? shifted : shifted - (DAYS_PER_ERA - 1)) / DAYS_PER_ERA;
+        int dayOfEra = (int) (shifted - era * DAYS_PER_ERA);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+
+        int i = offset;
+        i = writeDigits(out, i, year, 4);
+        out[i++] = '-';
+        i = writeDigits(out, i, month, 2);
+        out[i++] = '-';
+        i = writeDigits(out, i, day, 2);
+        out[i++] = ' ';
+        i = writeDigits(out, i, millisOfDay / 3600000, 2);
+        out[i++] = ':';
+        i = writeDigits(out, i, millisOfDay / 60000 % 60, 2);
+        out[i++] = ':';
+        i = writeDigits(out, i, millisOfDay / 1000 % 60, 2);
+        out[i++] = '.';
+        i = writeDigits(out, i, millisOfDay % 1000, 6);
+        return i - offset;
+    }
+
+    static String format(long epochMillis) {
+        char[] buffer = new char[LENGTH];
+        format(epochMillis, buffer, 0);
+        return new String(buffer);
+    }
+
+    private static int writeDigits(char[] out, int offset, int value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            out[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + digits;
+    }
+
+    /**
+     * Parses a timestamp written by {@link #format(long, char[], int)}.
+     *
+     * @return epoch millis.
+     */
+    static long parse(CharSequence text) throws ParseException {
+        if (text.length() != LENGTH || text.charAt(4) != '-' || text.charAt(7) != '-'
+                || text.charAt(10) != ' ' || text.charAt(13) != ':' || text.charAt(16) != ':'
+                || text.charAt(19) != '.') {
+            throw new ParseException("Unparseable timestamp: \"" + text + "\"", 0);
+        }
+        int year = parseDigits(text, 0, 4);
+        int month = parseDigits(text, 5, 2);
+        int day = parseDigits(text, 8, 2);
+        int hours = parseDigits(text, 11, 2);
+        int minutes = parseDigits(text, 14, 2);
+        int seconds = parseDigits(text, 17, 2);
+        int millis = parseDigits(text, 20, 6);
+
+        // Days since the epoch from the civil date, the inverse of format().
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = (long) era * DAYS_PER_ERA + dayOfEra - EPOCH_SHIFT_DAYS;
+        return days * MILLIS_PER_DAY + hours * 3600000L + minutes * 60000L + seconds * 1000L + millis;
+    }
+
+    private static int parseDigits(CharSequence text, int offset, int digits) throws ParseException {
+        int value = 0;
+        for (int i = offset; i < offset + digits; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new ParseException("Unparseable timestamp: \"" + text + "\"", i);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
@@ -194,24 +194,52 @@ public class LogUploadService extends JobService {
                 // Cleanup file
                 File finalFile = new File(mLogFile.getParentFile(), mLogFile.getName() + ".bq");
                 try {
-                    try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(mLogFile)), StandardCharsets.UTF_8))) {
+                    if (BinaryLogReader.isBinaryLog(mLogFile)) {
+                        // BigQuery loads JSON lines, convert binary logs first.
                         try (FileOutputStream fileOutputStream = new FileOutputStream(finalFile)) {
                             try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(fileOutputStream)) {
-                                try (final Writer writer = new OutputStreamWriter(gzipOutputStream)) {
-                                    String line;
-                                    while ((line = reader.readLine()) != null) {
-                                        int endOfRecord;
-                                        while ((endOfRecord = line.indexOf('}')) != -1) {
-                                            writer.write(line.substring(0, endOfRecord + 1));
-                                            writer.write('\n');
-                                            line = line.substring(endOfRecord + 1);
+                                try (final Writer writer = new OutputStreamWriter(gzipOutputStream, StandardCharsets.UTF_8)) {
+                                    long rows = BinaryLogReader.convertToJson(mLogFile, writer);
+                                    Log.d(TAG, mLogFile + ": converted " + rows + " rows");
+                                }
+                            }
+                        }
+                    } else {
+                        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(mLogFile)), StandardCharsets.UTF_8))) {
+                            try (FileOutputStream fileOutputStream = new FileOutputStream(finalFile)) {
+                                try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(fileOutputStream)) {
+                                    try (final Writer writer = new OutputStreamWriter(gzipOutputStream)) {
+                                        // Delta encoded logs start with a keyframe, BigQuery needs full rows.
+                                        DeltaRowEncoder.Decoder decoder = null;
+                                        boolean firstRecord = true;
+                                        String line;
+                                        while ((line = reader.readLine()) != null) {
+                                            int endOfRecord;
+                                            while ((endOfRecord = line.indexOf('}')) != -1) {
+                                                String record = line.substring(0, endOfRecord + 1);
+                                                line = line.substring(endOfRecord + 1);
+                                                if (firstRecord) {
+                                                    firstRecord = false;
+                                                    if (DeltaRowEncoder.isKeyframe(record)) {
+                                                        decoder = new DeltaRowEncoder.Decoder();
+                                                    }
+                                                }
+                                                if (decoder != null) {
+                                                    record = decoder.decode(record);
+                                                    if (record == null) {
+                                                        continue;
+                                                    }
+                                                }
+                                                writer.write(record);
+                                                writer.write('\n');
+                                            }
                                         }
                                     }
                                 }
                             }
+                        } catch (Exception e) {
+                            Log.w(TAG, mLogFile + ": Exception cleaning up file", e);
                         }
-                    } catch (Exception e) {
-                        Log.w(TAG, mLogFile + ": Exception cleaning up file", e);
                     }
 
                     App app = (App) getApplication();
@@ -246,9 +274,14 @@ public class LogUploadService extends JobService {
                     Log.d(TAG, mLogFile + ": job id is " + result.getId());
 
                     // Move to uploaded/ subfolder.
-                    File uploadedFolder = new File(mLogFile.getParentFile(), "uploaded");
+                    File uploadedFolder = new File(mLogFile.getParentFile(), LogManifest.UPLOADED_DIR);
                     uploadedFolder.mkdir();
                     Files.move(mLogFile, new File(uploadedFolder, mLogFile.getName()));
+                    File indexFile = LogIndex.getIndexFile(mLogFile);
+                    if (indexFile.exists()) {
+                        Files.move(indexFile, new File(uploadedFolder, indexFile.getName()));
+                    }
+                    new LogManifest(mLogFile.getParentFile()).markUploaded(mLogFile.getName());
 
                     return true;
                 } finally {
@@ -0,0 +1,111 @@
+package com.mqbcoding.stats;
+
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * Read-only view of one dispatch of {@link CarStatsClientTweaked}: which ids changed, with values
+ * read straight from the {@link MeasurementStore}.
+ *
+ * A single instance is reused for every dispatch, so it is only valid for the duration of
+ * {@link CarStatsClientTweaked.FrameListener#onNewFrame}. Listeners that need values later should
+ * copy the primitives they care about or keep the ids and read the store.
+ */
+public class MeasurementFrame {
+    private final MeasurementStore mStore;
+    private String mProvider;
+    private BitSet mChanged;
+    private BitSet mMask;
+
+    MeasurementFrame(MeasurementStore store) {
+        mStore = store;
+    }
+
+    void reset(String provider, BitSet changed) {
+        mProvider = provider;
+        mChanged = changed;
+        mMask = null;
+    }
+
+    /**
+     * Restricts the changed ids to the keys a listener subscribed to, or lifts the restriction
+     * if the mask is null.
+     */
+    void setMask(BitSet mask) {
+        mMask = mask;
+    }
+
+    public String getProvider() {
+        return mProvider;
+    }
+
+    /**
+     * Iterates over the changed ids:
+     * {@code for (int id = frame.nextChangedId(0); id >= 0; id = frame.nextChangedId(id + 1))}.
+     *
+     * @return the first changed id that is not lower than fromId, or -1 if there is none.
+     */
+    public int nextChangedId(int fromId) {
+        if (mMask == null) {
+            return mChanged.nextSetBit(fromId);
+        }
+        int id = mMask.nextSetBit(fromId);
+        while (id >= 0 && !mChanged.get(id)) {
+            id = mMask.nextSetBit(id + 1);
+        }
+        return id;
+    }
+
+    public boolean isChanged(int id) {
+        return id >= 0 && mChanged.get(id) && (mMask == null || mMask.get(id));
+    }
+
+    public boolean isEmpty() {
+        return nextChangedId(0) < 0;
+    }
+
+    public int getId(String key) {
+        return mStore.getId(key);
+    }
+
+    public String getKey(int id) {
+        return mStore.getKey(id);
+    }
+
+    public int getSchemaType(int id) {
+        return mStore.getSchemaType(id);
+    }
+
+    public boolean hasValue(int id) {
+        return mStore.hasValue(id);
+    }
+
+    public float getFloat(int id) {
+        return mStore.getFloat(id);
+    }
+
+    public long getLong(int id) {
+        return mStore.getLong(id);
+    }
+
+    public boolean getBoolean(int id) {
+        return mStore.getBoolean(id);
+    }
+
+    public String getString(int id) {
+        return mStore.getString(id);
+    }
+
+    public Object getValue(int id) {
+        return mStore.getValue(id);
+    }
+
+    /**
+     * Copies the changed values into the given map, boxing them.
+     */
+    public void copyChangedTo(Map<String, Object> target) {
+        for (int id = nextChangedId(0); id >= 0; id = nextChangedId(id + 1)) {
+            target.put(mStore.getKey(id), mStore.getValue(id));
+        }
+    }
+}
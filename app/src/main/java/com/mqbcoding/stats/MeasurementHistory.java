@@ -0,0 +1,111 @@
+package com.mqbcoding.stats;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Service-owned history of recent values, kept in {@link HistoryBuffer}s so it outlives the
+ * fragments that draw or evaluate it.
+ *
+ * Two kinds of history are kept, both for the keys passed to {@link #retain}:
+ * <ul>
+ * <li>measurements: every change of the key is recorded from the dispatched frames, as float.</li>
+ * <li>series: buffers that a client fills itself, for values that don't go through the store,
+ * e.g. the Torque values a dashboard clock shows, see {@link #getSeries(String)}.</li>
+ * </ul>
+ * Buffers of keys that are no longer retained are dropped. Times are
+ * {@link SystemClock#elapsedRealtime()} milliseconds.
+ */
+public class MeasurementHistory implements CarStatsClientTweaked.FrameListener {
+    private static final String TAG = "MeasurementHistory";
+
+    public static final int DEFAULT_CAPACITY = 2400;
+
+    private final MeasurementStore mStore;
+    private final Map<String, HistoryBuffer> mMeasurements = new HashMap<>();
+    private final Map<String, HistoryBuffer> mSeries = new HashMap<>();
+    // Indexed by store id, replaced on changes so the dispatch thread reads it without locking.
+    private volatile HistoryBuffer[] mBuffersById = new HistoryBuffer[0];
+
+    MeasurementHistory(MeasurementStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Makes the given measurements and series the ones that are kept. New measurements start
+     * recording with their current value, if any; buffers of everything else are dropped.
+     */
+    public synchronized void retain(Collection<String> measurements, Collection<String> series) {
+        HistoryBuffer[] buffersById = mBuffersById.clone();
+        for (Iterator<String> it = mMeasurements.keySet().iterator(); it.hasNext(); ) {
+            String key = it.next();
+            if (!measurements.contains(key)) {
+                Log.d(TAG, "Dropping " + key);
+                buffersById[mStore.getId(key)] = null;
+                it.remove();
+            }
+        }
+        for (String key : measurements) {
+            if (mMeasurements.containsKey(key)) {
+                continue;
+            }
+            Log.d(TAG, "Recording " + key);
+            HistoryBuffer buffer = new HistoryBuffer(DEFAULT_CAPACITY);
+            mMeasurements.put(key, buffer);
+            int id = mStore.getOrCreateId(key);
+            if (id >= buffersById.length) {
+                buffersById = Arrays.copyOf(buffersById, id + 1);
+            }
+            buffersById[id] = buffer;
+            if (mStore.hasValue(id)) {
+                buffer.append(SystemClock.elapsedRealtime(), mStore.getFloat(id));
+            }
+        }
+        mBuffersById = buffersById;
+
+        mSeries.keySet().retainAll(series);
+        for (String name : series) {
+            if (!mSeries.containsKey(name)) {
+                mSeries.put(name, new HistoryBuffer(DEFAULT_CAPACITY));
+            }
+        }
+    }
+
+    /**
+     * @return the recorded history of the key, or null if it isn't retained.
+     */
+    public synchronized HistoryBuffer getMeasurement(String key) {
+        return mMeasurements.get(key);
+    }
+
+    /**
+     * @return the client-filled series of that name, or null if it isn't retained.
+     */
+    public synchronized HistoryBuffer getSeries(String name) {
+        return mSeries.get(name);
+    }
+
+    @Override
+    public void onNewFrame(long elapsedRealtimeNanos, long timestamp, MeasurementFrame frame) {
+        HistoryBuffer[] buffersById = mBuffersById;
+        long time = elapsedRealtimeNanos / 1000000;
+        for (int id = frame.nextChangedId(0); id >= 0 && id < buffersById.length;
+             id = frame.nextChangedId(id + 1)) {
+            HistoryBuffer buffer = buffersById[id];
+            if (buffer != null && frame.hasValue(id)) {
+                buffer.append(time, frame.getFloat(id));
+            }
+        }
+    }
+
+    @Override
+    public void onSchemaChanged(SchemaDelta delta) {
+        // do nothing
+    }
+}
@@ -0,0 +1,39 @@
+package com.mqbcoding.stats;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Immutable copy of all latest values of a {@link MeasurementStore}, taken at one store version.
+ *
+ * {@link CarStatsService} keeps the newest snapshot and only takes a new one when a reader asks
+ * after the store changed, so any number of readers share one copy per change.
+ */
+public class MeasurementSnapshot {
+    public static final MeasurementSnapshot EMPTY =
+            new MeasurementSnapshot(-1, Collections.<String, Object>emptyMap());
+
+    private final long mVersion;
+    private final Map<String, Object> mValues;
+
+    MeasurementSnapshot(long version, Map<String, Object> values) {
+        mVersion = version;
+        mValues = Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * @return the store sequence number the snapshot was taken at; equal versions mean equal
+     * contents.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public Map<String, Object> getValues() {
+        return mValues;
+    }
+
+    public Object get(String key) {
+        return mValues.get(key);
+    }
+}
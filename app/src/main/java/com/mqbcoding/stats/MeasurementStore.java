@@ -0,0 +1,289 @@
+package com.mqbcoding.stats;
+
+import com.github.martoreto.aauto.vex.FieldSchema;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the latest value of every measurement in primitive columns indexed by a dense int id.
+ *
+ * Ids are assigned when the schema is updated (or the first time an unknown key shows up) and
+ * never change afterwards, so listeners can resolve the keys they need once and then read values
+ * without boxing or string hashing. Every slot carries the sequence number of its last change.
+ *
+ * Writes are serialized; reads are lock-free and may race with a concurrent write of the same slot,
+ * which is fine for gauges and monitors that only care about the latest value. A write stores the
+ * value before the kind that says how to read it, and only drops an old object once the kind no
+ * longer refers to it. A racing reader gets the old value, the new one or none, but never fails.
+ */
+public class MeasurementStore {
+    public static final int NO_ID = -1;
+
+    static final byte KIND_NONE = 0;
+    static final byte KIND_FLOAT = 1;
+    static final byte KIND_INT = 2;
+    static final byte KIND_LONG = 3;
+    static final byte KIND_BOOLEAN = 4;
+    static final byte KIND_STRING = 5;
+    static final byte KIND_OBJECT = 6;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Map<String, Integer> mIds = new ConcurrentHashMap<>();
+    private volatile String[] mKeys = new String[INITIAL_CAPACITY];
+    private volatile int[] mSchemaTypes = new int[INITIAL_CAPACITY];
+    private volatile byte[] mKinds = new byte[INITIAL_CAPACITY];
+    private volatile float[] mFloats = new float[INITIAL_CAPACITY];
+    private volatile long[] mLongs = new long[INITIAL_CAPACITY];
+    private volatile byte[] mBooleans = new byte[INITIAL_CAPACITY];
+    private volatile Object[] mObjects = new Object[INITIAL_CAPACITY];
+    private volatile long[] mSequences = new long[INITIAL_CAPACITY];
+    private volatile int mSize = 0;
+    private volatile long mSequence = 0;
+
+    /**
+     * Assigns ids to all keys of the schema that are not known yet and records their types.
+     */
+    public synchronized void updateSchema(Map<String, FieldSchema> schema) {
+        for (Map.Entry<String, FieldSchema> e : schema.entrySet()) {
+            int id = getOrCreateId(e.getKey());
+            FieldSchema field = e.getValue();
+            mSchemaTypes[id] = field != null ? field.getType() : 0;
+        }
+    }
+
+    public int getId(String key) {
+        Integer id = mIds.get(key);
+        return id != null ? id : NO_ID;
+    }
+
+    public synchronized int getOrCreateId(String key) {
+        Integer id = mIds.get(key);
+        if (id != null) {
+            return id;
+        }
+        int newId = mSize;
+        if (newId == mKeys.length) {
+            grow(newId * 2);
+        }
+        mKeys[newId] = key;
+        mIds.put(key, newId);
+        mSize = newId + 1;
+        return newId;
+    }
+
+    private void grow(int capacity) {
+        mKeys = Arrays.copyOf(mKeys, capacity);
+        mSchemaTypes = Arrays.copyOf(mSchemaTypes, capacity);
+        mKinds = Arrays.copyOf(mKinds, capacity);
+        mFloats = Arrays.copyOf(mFloats, capacity);
+        mLongs = Arrays.copyOf(mLongs, capacity);
+        mBooleans = Arrays.copyOf(mBooleans, capacity);
+        mObjects = Arrays.copyOf(mObjects, capacity);
+        mSequences = Arrays.copyOf(mSequences, capacity);
+    }
+
+    /**
+     * Stores a value for the given id.
+     *
+     * @return true if the value differs from the one stored before.
+     */
+    public synchronized boolean put(int id, Object value) {
+        byte kind;
+        if (value == null) {
+            kind = KIND_NONE;
+        } else if (value instanceof Float) {
+            kind = KIND_FLOAT;
+        } else if (value instanceof Integer) {
+            kind = KIND_INT;
+        } else if (value instanceof Long) {
+            kind = KIND_LONG;
+        } else if (value instanceof Boolean) {
+            kind = KIND_BOOLEAN;
+        } else if (value instanceof String) {
+            kind = KIND_STRING;
+        } else {
+            kind = KIND_OBJECT;
+        }
+
+        boolean changed = mSequences[id] == 0 || mKinds[id] != kind;
+        float f = 0;
+        long l = 0;
+        byte b = 0;
+        switch (kind) {
+            case KIND_FLOAT:
+                f = ((Number) value).floatValue();
+                changed |= Float.floatToIntBits(f) != Float.floatToIntBits(mFloats[id]);
+                break;
+            case KIND_INT:
+            case KIND_LONG:
+                l = ((Number) value).longValue();
+                changed |= l != mLongs[id];
+                break;
+            case KIND_BOOLEAN:
+                b = (byte) ((Boolean) value ? 1 : 0);
+                changed |= b != mBooleans[id];
+                break;
+            case KIND_STRING:
+            case KIND_OBJECT:
+                changed |= !value.equals(mObjects[id]);
+                break;
+        }
+        if (!changed) {
+            return false;
+        }
+
+        // Readers are not locked out, publish the value before the kind.
+        switch (kind) {
+            case KIND_FLOAT: mFloats[id] = f; break;
+            case KIND_INT:
+            case KIND_LONG: mLongs[id] = l; break;
+            case KIND_BOOLEAN: mBooleans[id] = b; break;
+            case KIND_STRING:
+            case KIND_OBJECT: mObjects[id] = value; break;
+        }
+        mKinds[id] = kind;
+        if (kind != KIND_STRING && kind != KIND_OBJECT) {
+            mObjects[id] = null;
+        }
+        mSequences[id] = ++mSequence;
+        return true;
+    }
+
+    public boolean put(String key, Object value) {
+        return put(getOrCreateId(key), value);
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(mKinds, KIND_NONE);
+        Arrays.fill(mObjects, null);
+        Arrays.fill(mSequences, 0);
+        mSequence++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public String getKey(int id) {
+        return mKeys[id];
+    }
+
+    /**
+     * @return one of the {@code FieldSchema.TYPE_*} constants, or 0 if the key is not in the schema.
+     */
+    public int getSchemaType(int id) {
+        return mSchemaTypes[id];
+    }
+
+    /**
+     * @return the sequence number of the last change, 0 if the slot never had a value.
+     */
+    public long getSequence(int id) {
+        return id >= 0 && id < mSize ? mSequences[id] : 0;
+    }
+
+    /**
+     * @return the sequence number of the last change to any slot.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    public boolean hasValue(int id) {
+        return id >= 0 && id < mSize && mKinds[id] != KIND_NONE;
+    }
+
+    /**
+     * @return the value as float, or {@code Float.NaN} if there is no numeric value.
+     */
+    public float getFloat(int id) {
+        if (id < 0 || id >= mSize) {
+            return Float.NaN;
+        }
+        switch (mKinds[id]) {
+            case KIND_FLOAT: return mFloats[id];
+            case KIND_INT:
+            case KIND_LONG: return mLongs[id];
+            case KIND_BOOLEAN: return mBooleans[id];
+            default: return Float.NaN;
+        }
+    }
+
+    public long getLong(int id) {
+        if (id < 0 || id >= mSize) {
+            return 0;
+        }
+        switch (mKinds[id]) {
+            case KIND_FLOAT: return (long) mFloats[id];
+            case KIND_INT:
+            case KIND_LONG: return mLongs[id];
+            case KIND_BOOLEAN: return mBooleans[id];
+            default: return 0;
+        }
+    }
+
+    public boolean getBoolean(int id) {
+        return id >= 0 && id < mSize && mKinds[id] == KIND_BOOLEAN && mBooleans[id] != 0;
+    }
+
+    public String getString(int id) {
+        if (id < 0 || id >= mSize) {
+            return null;
+        }
+        byte kind = mKinds[id];
+        if (kind != KIND_STRING && kind != KIND_OBJECT) {
+            return null;
+        }
+        // May have been cleared by a concurrent put since the kind was read.
+        Object value = mObjects[id];
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * Boxed access for code that still works with {@code Map<String, Object>}.
+     */
+    public Object getValue(int id) {
+        if (id < 0 || id >= mSize) {
+            return null;
+        }
+        switch (mKinds[id]) {
+            case KIND_FLOAT: return mFloats[id];
+            case KIND_INT: return (int) mLongs[id];
+            case KIND_LONG: return mLongs[id];
+            case KIND_BOOLEAN: return mBooleans[id] != 0;
+            case KIND_STRING:
+            case KIND_OBJECT: return mObjects[id];
+            default: return null;
+        }
+    }
+
+    /**
+     * Takes a consistent copy of all values, or returns the given snapshot if nothing changed
+     * since it was taken.
+     */
+    public synchronized MeasurementSnapshot snapshot(MeasurementSnapshot previous) {
+        if (previous != null && previous.getVersion() == mSequence) {
+            return previous;
+        }
+        Map<String, Object> values = new HashMap<>(mSize * 2);
+        copyTo(values);
+        return new MeasurementSnapshot(mSequence, values);
+    }
+
+    /**
+     * Copies all slots that have a value into the given map.
+     */
+    public void copyTo(Map<String, Object> target) {
+        int size = mSize;
+        for (int id = 0; id < size; id++) {
+            Object value = getValue(id);
+            if (value != null) {
+                target.put(mKeys[id], value);
+            }
+        }
+    }
+}
@@ -26,23 +26,28 @@ import android.widget.TextView;
 import com.github.martoreto.aauto.vex.FieldSchema;
 import com.google.android.apps.auto.sdk.StatusBarController;
 
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 
 public class ReadingsViewFragment extends CarFragment {
     private final String TAG = "ReadingsViewFragment";
     public static final String PREF_OMIT_EMPTY_ENTRIES = "omitEmptyEntries";
     private CarStatsClientTweaked mStatsClient;
-    private Map<String, Object> mLastMeasurements = new HashMap<>();
+    private CarStatsService.CarStatsBinder mStatsBinder;
+    private MeasurementSnapshot mSnapshot = MeasurementSnapshot.EMPTY;
     private HashMap<String, FieldSchema> mSchema = new HashMap<>();
     private Handler mHandler;
-    private Runnable updateTimerRunnable;
     private HashMapAdapter adapter = new HashMapAdapter();
-    private Timer updateTimer;
+    private SamplingRateController mRateController;
+    private final TaskScheduler.PeriodicJob mUpdateJob = TaskScheduler.getInstance().createMainJob(
+            "ReadingsViewFragment.update", TaskScheduler.FIXED_RATE, 250, new Runnable() {
+                @Override
+                public void run() {
+                    updateReadings();
+                }
+            });
     private HashMap<String, String> translationsMap;
     private boolean mOmitEmptyEntries;
 
@@ -134,15 +139,24 @@ public class ReadingsViewFragment extends CarFragment {
         Intent serviceIntent = new Intent(getContext(), CarStatsService.class);
         getContext().bindService(serviceIntent, mServiceConnection, Context.BIND_AUTO_CREATE);
 
-        createAndStartUpdateTimer();
+        mUpdateJob.start();
+    }
+
+    private void detachRateController() {
+        if (mRateController != null) {
+            mRateController.detach(mUpdateJob);
+            mRateController = null;
+        }
     }
 
     @Override
     public void onPause() {
         Log.i(TAG, "onDeactivate");
-        mStatsClient.unregisterListener(mCarStatsListener);
+        mStatsClient.unregisterFrameListener(mCarStatsListener);
+        mStatsBinder = null;
         getContext().unbindService(mServiceConnection);
-        updateTimer.cancel();
+        mUpdateJob.stop();
+        detachRateController();
         super.onPause();
     }
 
@@ -173,7 +187,7 @@ public class ReadingsViewFragment extends CarFragment {
         tempMap.put("batteryVoltage3", "0");
         mSchema.putAll(schemaItem1);
 
-        mCarStatsListener.onNewMeasurements("DUPA", new Date(), tempMap);
+        adapter.putAll(tempMap);
 
         return rootView;
     }
@@ -194,26 +208,6 @@ public class ReadingsViewFragment extends CarFragment {
 
     }
 
-    private void createAndStartUpdateTimer() {
-        updateTimer = new Timer();
-        updateTimer.schedule(new TimerTask() {
-
-            @Override
-            public void run() {
-                updateTimerRunnable = new Runnable() {
-                    public void run() {
-                        adapter.putAll(mLastMeasurements);
-                        adapter.putSchema(mSchema);
-                    }
-                };
-                //experimental delay
-                if (mHandler != null)
-                    mHandler.postDelayed(updateTimerRunnable, 1);
-            }
-
-        }, 0, 250);//Update display 0,25 second
-    }
-
     private HashMap<String, String> generateTranslationsMap(Context context) {
         HashMap<String, String> translationsMap = new HashMap<>();
 
@@ -237,25 +231,43 @@ public class ReadingsViewFragment extends CarFragment {
         mOmitEmptyEntries = preferences.getBoolean(PREF_OMIT_EMPTY_ENTRIES, true);
     }
 
-    private final CarStatsClientTweaked.Listener mCarStatsListener = new CarStatsClientTweaked.Listener() {
-        @Override
-        public void onNewMeasurements(String provider, Date timestamp, final Map<String, Object> values) {
-            if (mOmitEmptyEntries) {
-                for (Map.Entry<String, Object> item : values.entrySet()) {
-                    if (item.getValue() != null && !item.getValue().toString().isEmpty()) {
-                        mLastMeasurements.put(item.getKey(), item.getValue());
+    private final CarStatsListener mCarStatsListener = new CarStatsListener();
+
+    private void updateReadings() {
+        if (mStatsBinder != null) {
+            MeasurementSnapshot snapshot = mStatsBinder.getSnapshot();
+            if (snapshot != mSnapshot) {
+                mSnapshot = snapshot;
+                if (mOmitEmptyEntries) {
+                    Map<String, Object> values = new HashMap<>();
+                    for (Map.Entry<String, Object> item : snapshot.getValues().entrySet()) {
+                        if (item.getValue() != null && !item.getValue().toString().isEmpty()) {
+                            values.put(item.getKey(), item.getValue());
+                        }
                     }
+                    adapter.putAll(values);
+                } else {
+                    adapter.putAll(snapshot.getValues());
                 }
-            } else {
-                mLastMeasurements.putAll(values);
             }
         }
+        adapter.putSchema(mSchema);
+    }
 
+    // Only registered for schema changes, values are read from the service snapshot.
+    private class CarStatsListener implements CarStatsClientTweaked.FrameListener {
         @Override
-        public void onSchemaChanged() {
-            mSchema.putAll(mStatsClient.getSchema());
+        public void onNewFrame(long elapsedRealtimeNanos, long timestamp, MeasurementFrame frame) {
+            // not called, no keys subscribed
         }
-    };
+
+        @Override
+        public void onSchemaChanged(SchemaDelta delta) {
+            mSchema.putAll(delta.getAdded());
+            mSchema.putAll(delta.getChanged());
+            mSchema.keySet().removeAll(delta.getRemoved());
+        }
+    }
 
 
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
@@ -264,14 +276,21 @@ public class ReadingsViewFragment extends CarFragment {
             Log.i(TAG, "ServiceConnected");
             CarStatsService.CarStatsBinder carStatsBinder = (CarStatsService.CarStatsBinder) iBinder;
             mStatsClient = carStatsBinder.getStatsClient();
-            mLastMeasurements.putAll(mStatsClient.getMergedMeasurements());
-            mStatsClient.registerListener(mCarStatsListener);
+            mRateController = carStatsBinder.getSamplingRateController();
+            // A list of values doesn't need more than the normal rate.
+            mRateController.attach(mUpdateJob, SamplingRateController.Mode.CRUISE);
+            mStatsBinder = carStatsBinder;
+            mSchema.putAll(mStatsClient.getSchema());
+            mStatsClient.registerFrameListener(mCarStatsListener, Collections.<String>emptySet());
+            updateReadings();
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
             Log.i(TAG, "ServiceDisconnected");
-            mStatsClient.unregisterListener(mCarStatsListener);
+            mStatsClient.unregisterFrameListener(mCarStatsListener);
+            mStatsBinder = null;
+            detachRateController();
         }
     };
 
@@ -0,0 +1,267 @@
+package com.mqbcoding.stats;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.github.martoreto.aauto.vex.FieldSchema;
+import com.github.martoreto.aauto.vex.ICarStats;
+import com.github.martoreto.aauto.vex.ICarStatsListener;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a log written by {@link CarStatsLogger} back as a car stats provider, so the dashboard,
+ * logger and monitors can be exercised without a car.
+ *
+ * Attach it with {@link CarStatsClientTweaked#addProvider(String, ICarStats)}; it runs in-process
+ * and needs no binding, which also makes it usable from JVM and Robolectric tests. Rows are
+ * played at their recorded pace multiplied by the speed factor, or back to back with
+ * {@link #SPEED_UNLIMITED}.
+ *
+ * Columns that are not in {@code schema.json}, like the values the dashboard adds to the logger,
+ * are added to the schema from the first rows of the log, or the client would drop them.
+ */
+public class ReplayCarStatsProvider extends ICarStats.Stub {
+    private static final String TAG = "ReplayCarStats";
+
+    public static final float SPEED_REALTIME = 1.0f;
+    public static final float SPEED_UNLIMITED = 0.0f;
+
+    // Rows read up front for columns missing from the schema.
+    private static final int SCHEMA_SCAN_ROWS = 100;
+
+    private final File mLogFile;
+    private final float mSpeed;
+    private final Gson mGson = new Gson();
+    private final Map<String, FieldSchema> mSchema;
+    // Log keys are mangled by CarStatsLogger.makeJsonKey(), map them back to schema keys.
+    private final Map<String, String> mKeysByJsonKey = new HashMap<>();
+    private final List<ICarStatsListener> mListeners = new CopyOnWriteArrayList<>();
+    private final Map<String, Object> mMeasurements = new ConcurrentHashMap<>();
+    private final CountDownLatch mFinished = new CountDownLatch(1);
+    // Columns seen after the schema scan, reported once.
+    private final Set<String> mSkippedKeys = new HashSet<>();
+    private Thread mThread;
+    private volatile boolean mStopped = false;
+    private volatile long mRowCount = 0;
+
+    /**
+     * @param logFile a {@code .log.gz} or {@code .clog} file written by {@link CarStatsLogger}.
+     * @param schemaFile the {@code schema.json} written next to it.
+     * @param speed playback speed factor, {@link #SPEED_REALTIME}, any multiple of it, or
+     *              {@link #SPEED_UNLIMITED}.
+     */
+    public ReplayCarStatsProvider(File logFile, File schemaFile, float speed) throws IOException {
+        if (speed < 0 || Float.isNaN(speed)) {
+            throw new IllegalArgumentException("Invalid speed: " + speed);
+        }
+        mLogFile = logFile;
+        mSpeed = speed;
+        Type type = new TypeToken<Map<String, FieldSchema>>(){}.getType();
+        Map<String, FieldSchema> schema = mGson.fromJson(
+                Files.asCharSource(schemaFile, StandardCharsets.UTF_8).read(), type);
+        mSchema = schema != null ? new HashMap<>(schema) : new HashMap<String, FieldSchema>();
+        for (String key : mSchema.keySet()) {
+            mKeysByJsonKey.put(CarStatsLogger.makeJsonKey(key), key);
+        }
+        addUnknownColumns();
+    }
+
+    private void addUnknownColumns() throws IOException {
+        Set<String> added = new TreeSet<>();
+        try (IndexedLogReader reader = new IndexedLogReader(mLogFile)) {
+            for (int row = 0; row < SCHEMA_SCAN_ROWS && reader.next(); row++) {
+                for (Map.Entry<String, Object> e : reader.getValues().entrySet()) {
+                    String key = getSchemaKey(e.getKey());
+                    if (mSchema.containsKey(key) || e.getValue() == null) {
+                        continue;
+                    }
+                    mSchema.put(key, new FieldSchema(guessType(e.getValue()),
+                            "Replayed column not in schema.json", "", 0, 0, 0));
+                    added.add(key);
+                }
+            }
+        }
+        if (!added.isEmpty()) {
+            Log.i(TAG, "Columns not in schema.json: " + added);
+        }
+    }
+
+    private static int guessType(Object value) {
+        if (value instanceof Boolean) {
+            return FieldSchema.TYPE_BOOLEAN;
+        } else if (value instanceof Integer || value instanceof Long) {
+            return FieldSchema.TYPE_INTEGER;
+        } else if (value instanceof Number) {
+            return FieldSchema.TYPE_FLOAT;
+        } else {
+            return FieldSchema.TYPE_STRING;
+        }
+    }
+
+    private String getSchemaKey(String logKey) {
+        String key = mKeysByJsonKey.get(logKey);
+        return key != null ? key : logKey;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error replaying " + mLogFile, e);
+                } catch (InterruptedException e) {
+                    // stopped
+                } finally {
+                    mFinished.countDown();
+                }
+            }
+        }, "CarStatsReplay");
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        mStopped = true;
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+    }
+
+    /**
+     * Waits until all rows have been played or the replay was stopped.
+     *
+     * @return false if the timeout elapsed first.
+     */
+    public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        return mFinished.await(timeout, unit);
+    }
+
+    public long getRowCount() {
+        return mRowCount;
+    }
+
+    private void replay() throws IOException, InterruptedException {
+        long firstTimestamp = -1;
+        long startNanos = System.nanoTime();
+        // Reads JSON, delta encoded and binary logs alike, skipping malformed rows.
+        try (IndexedLogReader reader = new IndexedLogReader(mLogFile)) {
+            while (!mStopped && reader.next()) {
+                long timestamp = reader.getTimestamp();
+                if (firstTimestamp < 0) {
+                    firstTimestamp = timestamp;
+                }
+                waitUntilDue(startNanos, timestamp - firstTimestamp);
+                dispatch(timestamp, convertRow(reader.getValues()));
+                mRowCount++;
+            }
+        }
+        Log.i(TAG, "Replayed " + mRowCount + " rows from " + mLogFile);
+    }
+
+    private void waitUntilDue(long startNanos, long offsetMillis) throws InterruptedException {
+        if (mSpeed == SPEED_UNLIMITED) {
+            return;
+        }
+        long dueNanos = startNanos + (long) (TimeUnit.MILLISECONDS.toNanos(offsetMillis) / mSpeed);
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private Map<String, Object> convertRow(Map<String, Object> row) {
+        Map<String, Object> values = new HashMap<>(row.size() * 2);
+        for (Map.Entry<String, Object> e : row.entrySet()) {
+            if (e.getValue() == null) {
+                continue;
+            }
+            String key = getSchemaKey(e.getKey());
+            FieldSchema field = mSchema.get(key);
+            if (field == null && mSkippedKeys.add(key)) {
+                Log.w(TAG, key + ": column not in the schema, the client drops it");
+            }
+            values.put(key, convertValue(field, e.getValue()));
+        }
+        return values;
+    }
+
+    /**
+     * Gson reads every number as Double, restore the types providers send. Binary logs keep the
+     * original types.
+     */
+    private static Object convertValue(FieldSchema field, Object value) {
+        if (field == null || !(value instanceof Number)) {
+            return value;
+        }
+        Number number = (Number) value;
+        switch (field.getType()) {
+            case FieldSchema.TYPE_INTEGER:
+                return number.intValue();
+            case FieldSchema.TYPE_FLOAT:
+                return number.floatValue();
+            default:
+                return value;
+        }
+    }
+
+    private void dispatch(long timestamp, Map<String, Object> values) {
+        mMeasurements.putAll(values);
+        for (ICarStatsListener listener : mListeners) {
+            try {
+                listener.onNewMeasurements(timestamp, values);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Error calling listener", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean needsPermissions() {
+        return false;
+    }
+
+    @Override
+    public void requestPermissions() {
+    }
+
+    @Override
+    public void registerListener(ICarStatsListener listener) {
+        mListeners.add(listener);
+    }
+
+    @Override
+    public void unregisterListener(ICarStatsListener listener) {
+        mListeners.remove(listener);
+    }
+
+    @Override
+    public Map getMergedMeasurements() {
+        return new HashMap<>(mMeasurements);
+    }
+
+    @Override
+    public Map getSchema() {
+        return mSchema;
+    }
+}
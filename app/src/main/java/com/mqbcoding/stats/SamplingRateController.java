@@ -0,0 +1,121 @@
+package com.mqbcoding.stats;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses how often the visible screen refreshes from the driving state: slowly while parked,
+ * at the usual rate while cruising and fast under load.
+ *
+ * Screens attach their update job while they are visible, together with the fastest mode that
+ * makes sense for them, so the rate follows both the car and which fragment is shown.
+ */
+class SamplingRateController implements CarStatsClientTweaked.FrameListener {
+    private static final String TAG = "SamplingRateController";
+
+    public enum Mode {
+        IDLE(2),
+        CRUISE(4),
+        PERFORMANCE(20);
+
+        private final int mRateHz;
+
+        Mode(int rateHz) {
+            mRateHz = rateHz;
+        }
+
+        public long getPeriodMs() {
+            return 1000 / mRateHz;
+        }
+    }
+
+    private static final String KEY_SPEED = "vehicleSpeed";
+    private static final String KEY_ENGINE_SPEED = "engineSpeed";
+    private static final String KEY_ACCEL_POS = "acceleratorPosition";
+
+    public static final Set<String> KEYS = ImmutableSet.of(KEY_SPEED, KEY_ENGINE_SPEED, KEY_ACCEL_POS);
+
+    private static final float IDLE_MAX_SPEED = 2.0f;
+    private static final float PERFORMANCE_MIN_ENGINE_SPEED = 4000.0f;
+    private static final float PERFORMANCE_MIN_ACCEL_POS = 0.6f;
+    // Stay fast for a while after the last trigger, so lifting briefly doesn't drop the rate.
+    private static final long PERFORMANCE_HOLD_MS = 5000;
+
+    private final MeasurementStore mStore;
+    private final int mSpeedId, mEngineSpeedId, mAccelPosId;
+    private final Map<TaskScheduler.PeriodicJob, Mode> mJobs = new ConcurrentHashMap<>();
+    private volatile Mode mMode = Mode.CRUISE;
+    private long mPerformanceUntil = 0;
+
+    SamplingRateController(MeasurementStore store) {
+        mStore = store;
+        mSpeedId = store.getOrCreateId(KEY_SPEED);
+        mEngineSpeedId = store.getOrCreateId(KEY_ENGINE_SPEED);
+        mAccelPosId = store.getOrCreateId(KEY_ACCEL_POS);
+    }
+
+    /**
+     * Lets the controller set the period of the job until it is detached.
+     *
+     * @param maxMode the fastest mode the job should run at.
+     */
+    public void attach(TaskScheduler.PeriodicJob job, Mode maxMode) {
+        mJobs.put(job, maxMode);
+        apply(job, maxMode, mMode);
+    }
+
+    public void detach(TaskScheduler.PeriodicJob job) {
+        mJobs.remove(job);
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    @Override
+    public void onNewFrame(long elapsedRealtimeNanos, long timestamp, MeasurementFrame frame) {
+        Mode mode = evaluate(SystemClock.elapsedRealtime());
+        if (mode == mMode) {
+            return;
+        }
+        Log.d(TAG, "Sampling mode " + mMode + " -> " + mode);
+        mMode = mode;
+        for (Map.Entry<TaskScheduler.PeriodicJob, Mode> e : mJobs.entrySet()) {
+            apply(e.getKey(), e.getValue(), mode);
+        }
+    }
+
+    @Override
+    public void onSchemaChanged(SchemaDelta delta) {
+        // do nothing
+    }
+
+    private Mode evaluate(long now) {
+        float speed = mStore.getFloat(mSpeedId);
+        float engineSpeed = mStore.getFloat(mEngineSpeedId);
+        float accelPos = mStore.getFloat(mAccelPosId);
+
+        // NaN compares false, keys without a value don't trigger anything.
+        if (engineSpeed >= PERFORMANCE_MIN_ENGINE_SPEED || accelPos >= PERFORMANCE_MIN_ACCEL_POS) {
+            mPerformanceUntil = now + PERFORMANCE_HOLD_MS;
+        }
+        if (now < mPerformanceUntil) {
+            return Mode.PERFORMANCE;
+        }
+        if (speed <= IDLE_MAX_SPEED && !(accelPos > 0)) {
+            return Mode.IDLE;
+        }
+        return Mode.CRUISE;
+    }
+
+    private static void apply(TaskScheduler.PeriodicJob job, Mode maxMode, Mode mode) {
+        Mode effective = mode.compareTo(maxMode) <= 0 ? mode : maxMode;
+        job.setPeriod(effective.getPeriodMs());
+    }
+}
@@ -0,0 +1,128 @@
+package com.mqbcoding.stats;
+
+import com.github.martoreto.aauto.vex.FieldSchema;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Difference between two versions of the merged schema of {@link CarStatsClientTweaked}.
+ */
+public class SchemaDelta {
+    private final long mVersion;
+    private final Map<String, FieldSchema> mAdded;
+    private final Set<String> mRemoved;
+    private final Map<String, FieldSchema> mChanged;
+
+    private SchemaDelta(long version, Map<String, FieldSchema> added, Set<String> removed,
+                        Map<String, FieldSchema> changed) {
+        mVersion = version;
+        mAdded = Collections.unmodifiableMap(added);
+        mRemoved = Collections.unmodifiableSet(removed);
+        mChanged = Collections.unmodifiableMap(changed);
+    }
+
+    public static SchemaDelta compute(long version, Map<String, FieldSchema> oldSchema,
+                                      Map<String, FieldSchema> newSchema) {
+        Map<String, FieldSchema> added = new HashMap<>();
+        Set<String> removed = new HashSet<>();
+        Map<String, FieldSchema> changed = new HashMap<>();
+        for (Map.Entry<String, FieldSchema> e : newSchema.entrySet()) {
+            FieldSchema oldField = oldSchema.get(e.getKey());
+            if (oldField == null) {
+                added.put(e.getKey(), e.getValue());
+            } else if (!fieldEquals(oldField, e.getValue())) {
+                changed.put(e.getKey(), e.getValue());
+            }
+        }
+        for (String key : oldSchema.keySet()) {
+            if (!newSchema.containsKey(key)) {
+                removed.add(key);
+            }
+        }
+        return new SchemaDelta(version, added, removed, changed);
+    }
+
+    /**
+     * @return whether both schemas have the same keys with equal field definitions.
+     */
+    public static boolean equals(Map<String, FieldSchema> a, Map<String, FieldSchema> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (Map.Entry<String, FieldSchema> e : a.entrySet()) {
+            if (!b.containsKey(e.getKey()) || !fieldEquals(e.getValue(), b.get(e.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hash over all field definitions that does not depend on iteration order, a quick check
+     * before {@link #equals(Map, Map)} when a provider reports its schema again.
+     */
+    public static int hash(Map<String, FieldSchema> schema) {
+        int hash = 0;
+        for (Map.Entry<String, FieldSchema> e : schema.entrySet()) {
+            hash += e.getKey().hashCode() * 31 + fieldHash(e.getValue());
+        }
+        return hash;
+    }
+
+    private static int fieldHash(FieldSchema field) {
+        if (field == null) {
+            return 0;
+        }
+        return Objects.hash(field.getType(), field.getDescription(), field.getUnit(),
+                field.getMin(), field.getMax(), field.getResolution());
+    }
+
+    private static boolean fieldEquals(FieldSchema a, FieldSchema b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.getType() == b.getType()
+                && Objects.equals(a.getDescription(), b.getDescription())
+                && Objects.equals(a.getUnit(), b.getUnit())
+                && a.getMin() == b.getMin()
+                && a.getMax() == b.getMax()
+                && a.getResolution() == b.getResolution();
+    }
+
+    /**
+     * @return the schema version this delta leads to.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public Map<String, FieldSchema> getAdded() {
+        return mAdded;
+    }
+
+    public Set<String> getRemoved() {
+        return mRemoved;
+    }
+
+    /**
+     * @return fields that exist in both versions but whose type, unit or range changed.
+     */
+    public Map<String, FieldSchema> getChanged() {
+        return mChanged;
+    }
+
+    public boolean isEmpty() {
+        return mAdded.isEmpty() && mRemoved.isEmpty() && mChanged.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "SchemaDelta{version=" + mVersion + ", added=" + mAdded.keySet()
+                + ", removed=" + mRemoved + ", changed=" + mChanged.keySet() + "}";
+    }
+}
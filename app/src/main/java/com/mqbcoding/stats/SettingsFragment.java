@@ -150,7 +150,13 @@ public class SettingsFragment extends PreferenceFragment {
             public boolean onPreferenceClick(Preference preference) {
                 JobScheduler scheduler = (JobScheduler) getActivity().getSystemService(Context.JOB_SCHEDULER_SERVICE);
                 assert scheduler != null;
-                List<JobInfo> jobs = scheduler.getAllPendingJobs();
+                List<JobInfo> jobs = new ArrayList<>();
+                for (JobInfo job : scheduler.getAllPendingJobs()) {
+                    // Leave the periodic compaction job alone.
+                    if (job.getService().getClassName().equals(LogUploadService.class.getName())) {
+                        jobs.add(job);
+                    }
+                }
                 if (jobs.isEmpty()) {
                     Toast.makeText(getActivity(), R.string.kick_uploads_nothing_to_do,
                             Toast.LENGTH_SHORT).show();
@@ -176,7 +182,11 @@ public class SettingsFragment extends PreferenceFragment {
             public boolean onPreferenceClick(Preference preference) {
                 JobScheduler scheduler = (JobScheduler) getActivity().getSystemService(Context.JOB_SCHEDULER_SERVICE);
                 assert scheduler != null;
-                scheduler.cancelAll();
+                for (JobInfo job : scheduler.getAllPendingJobs()) {
+                    if (job.getService().getClassName().equals(LogUploadService.class.getName())) {
+                        scheduler.cancel(job.getId());
+                    }
+                }
                 Toast.makeText(getActivity(), R.string.cancel_uploads_done,
                         Toast.LENGTH_SHORT).show();
                 return true;
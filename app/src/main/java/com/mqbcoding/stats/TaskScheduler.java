@@ -0,0 +1,222 @@
+package com.mqbcoding.stats;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Runs the app's periodic work as named jobs on a {@link Looper}, either the main looper for UI
+ * updates or a single shared background thread, instead of one {@link java.util.Timer} thread
+ * per component.
+ *
+ * Jobs are created once and started/stopped with the lifecycle of their owner. Each job keeps
+ * run-time statistics, and its period can be changed while it runs.
+ */
+public class TaskScheduler {
+    private static final String TAG = "TaskScheduler";
+
+    /** Runs are spaced by the period measured from the start of the previous run. */
+    public static final int FIXED_RATE = 0;
+    /** Runs are spaced by the period measured from the end of the previous run. */
+    public static final int FIXED_DELAY = 1;
+
+    private static TaskScheduler sInstance;
+
+    private final HandlerThread mBackgroundThread;
+    private final List<PeriodicJob> mRunningJobs = new CopyOnWriteArrayList<>();
+
+    private TaskScheduler() {
+        mBackgroundThread = new HandlerThread("TaskScheduler");
+        mBackgroundThread.start();
+    }
+
+    public static synchronized TaskScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new TaskScheduler();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Looper of the shared background thread. Jobs on it must not block for long, they delay
+     * every other background job.
+     */
+    public Looper getBackgroundLooper() {
+        return mBackgroundThread.getLooper();
+    }
+
+    public PeriodicJob createJob(String name, Looper looper, int mode, long periodMs, Runnable task) {
+        return new PeriodicJob(name, looper, mode, periodMs, task);
+    }
+
+    public PeriodicJob createMainJob(String name, int mode, long periodMs, Runnable task) {
+        return createJob(name, Looper.getMainLooper(), mode, periodMs, task);
+    }
+
+    public PeriodicJob createBackgroundJob(String name, int mode, long periodMs, Runnable task) {
+        return createJob(name, getBackgroundLooper(), mode, periodMs, task);
+    }
+
+    /**
+     * @return the jobs that are currently started.
+     */
+    public List<PeriodicJob> getRunningJobs() {
+        return new ArrayList<>(mRunningJobs);
+    }
+
+    public void logStats() {
+        for (PeriodicJob job : mRunningJobs) {
+            Log.i(TAG, job.toString());
+        }
+    }
+
+    public class PeriodicJob implements Runnable {
+        private final String mName;
+        private final Handler mHandler;
+        private final int mMode;
+        private final Runnable mTask;
+        private volatile long mPeriodMs;
+        private volatile boolean mRunning = false;
+        private long mNextRunUptime;
+
+        private long mRunCount;
+        private long mSkippedCount;
+        private long mTotalRunNanos;
+        private long mMaxRunNanos;
+
+        PeriodicJob(String name, Looper looper, int mode, long periodMs, Runnable task) {
+            mName = name;
+            mHandler = new Handler(looper);
+            mMode = mode;
+            mPeriodMs = periodMs;
+            mTask = task;
+        }
+
+        public void start() {
+            start(0);
+        }
+
+        public synchronized void start(long initialDelayMs) {
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+            mRunningJobs.add(this);
+            mNextRunUptime = SystemClock.uptimeMillis() + initialDelayMs;
+            mHandler.postAtTime(this, mNextRunUptime);
+        }
+
+        /**
+         * Stops the job; a run that is in progress completes. It can be started again later.
+         */
+        public synchronized void stop() {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            mRunningJobs.remove(this);
+            mHandler.removeCallbacks(this);
+            Log.v(TAG, toString());
+        }
+
+        public boolean isRunning() {
+            return mRunning;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getPeriod() {
+            return mPeriodMs;
+        }
+
+        /**
+         * Changes the period, effective from the next run.
+         */
+        public synchronized void setPeriod(long periodMs) {
+            if (periodMs == mPeriodMs) {
+                return;
+            }
+            long previous = mPeriodMs;
+            mPeriodMs = periodMs;
+            if (mRunning && periodMs < previous) {
+                // Don't wait out the remainder of a long period.
+                mHandler.removeCallbacks(this);
+                mNextRunUptime = Math.min(mNextRunUptime, SystemClock.uptimeMillis() + periodMs);
+                mHandler.postAtTime(this, mNextRunUptime);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!mRunning) {
+                return;
+            }
+            long start = SystemClock.elapsedRealtimeNanos();
+            try {
+                mTask.run();
+            } catch (Exception e) {
+                Log.e(TAG, mName + ": Error running job", e);
+            }
+            long runNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            synchronized (this) {
+                mRunCount++;
+                mTotalRunNanos += runNanos;
+                mMaxRunNanos = Math.max(mMaxRunNanos, runNanos);
+                if (!mRunning) {
+                    return;
+                }
+                long now = SystemClock.uptimeMillis();
+                if (mMode == FIXED_DELAY) {
+                    mNextRunUptime = now + mPeriodMs;
+                } else {
+                    mNextRunUptime += mPeriodMs;
+                    if (mNextRunUptime <= now) {
+                        // Overran one or more periods: skip them instead of running back to back.
+                        long missed = (now - mNextRunUptime) / mPeriodMs + 1;
+                        mSkippedCount += missed;
+                        mNextRunUptime += missed * mPeriodMs;
+                    }
+                }
+                // Restarted while running? Then start() already posted a run.
+                mHandler.removeCallbacks(this);
+                mHandler.postAtTime(this, mNextRunUptime);
+            }
+        }
+
+        public synchronized long getRunCount() {
+            return mRunCount;
+        }
+
+        /**
+         * @return how many fixed-rate runs were dropped because the previous run overran.
+         */
+        public synchronized long getSkippedCount() {
+            return mSkippedCount;
+        }
+
+        public synchronized long getAverageRunNanos() {
+            return mRunCount > 0 ? mTotalRunNanos / mRunCount : 0;
+        }
+
+        public synchronized long getMaxRunNanos() {
+            return mMaxRunNanos;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.US, "%s: period %d ms, %d runs, %d skipped, avg %.2f ms, max %.2f ms",
+                    mName, mPeriodMs, mRunCount, mSkippedCount,
+                    getAverageRunNanos() / 1e6, mMaxRunNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.mqbcoding.stats;
+
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Running statistics of a trip, fed the rows {@link CarStatsLogger} writes: count, min, max, mean
+ * and variance of every numeric key, time spent in engine speed and vehicle speed bands, and the
+ * distance and fuel used, integrated from speed and current consumption. Speed in mph is converted
+ * to km/h; with other units than those and l/100km the affected values are left out. Keys with a
+ * {@link #setRange range} in the schema also get the time spent in ten bands of it. Takes
+ * constant time and memory per key and row.
+ *
+ * The logger writes the summary next to the logs whenever a segment of the trip is finished, and
+ * {@link LogRecovery} for the logs it recovers, so trips can be listed without reading their logs.
+ *
+ * Only for use from one thread.
+ */
+class TripSummary {
+    static final String SUFFIX = ".summary.json";
+
+    // Keys the derived values are taken from, the first one present in a row is used.
+    static final String[] SPEED_KEYS = {"vehicleSpeed", "speed"};
+    static final String[] ENGINE_SPEED_KEYS = {"engineSpeed", "rpm"};
+    static final String[] CONSUMPTION_KEYS = {"currentConsumptionPrimary"};
+    // Appended to the keys above for their unit, km/h and l/100km if missing.
+    static final String UNIT_SUFFIX = ".unit";
+
+    private static final float KM_PER_MILE = 1.609344f;
+
+    private static final float ENGINE_SPEED_BAND = 1000;
+    private static final int ENGINE_SPEED_BANDS = 8;
+    private static final float SPEED_BAND = 20;
+    private static final int SPEED_BANDS = 10;
+    private static final int KEY_BANDS = 10;
+    // Longer pauses between rows don't count as time spent at the last value.
+    private static final long MAX_ROW_GAP_MS = 5000;
+
+    private final Gson mGson = new GsonBuilder().setPrettyPrinting().create();
+    private final Map<String, KeyStats> mStats = new TreeMap<>();
+    // {min, max} by key, kept across trips.
+    private final Map<String, float[]> mRanges = new HashMap<>();
+    private final List<String> mSegments = new ArrayList<>();
+    private long mTripStart = -1;
+    private long mStart = -1;
+    private long mEnd = -1;
+    private long mRows = 0;
+    private double mDistanceKm = 0;
+    private double mFuelUsedL = 0;
+    private Histogram mEngineSpeedBands;
+    private Histogram mSpeedBands;
+    private float mLastSpeed = Float.NaN;
+    private float mLastEngineSpeed = Float.NaN;
+    private float mLastConsumption = Float.NaN;
+    // Kept across trips, as the car doesn't change them.
+    private String mSpeedUnit;
+    private String mConsumptionUnit;
+    private boolean mUnknownSpeedUnit = false;
+    private boolean mUnknownConsumptionUnit = false;
+
+    /**
+     * Welford's running mean and variance, with min, max and the last value.
+     */
+    static class KeyStats {
+        long count;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double mean;
+        double variance;
+        double last;
+        // Null without a range in the schema.
+        Histogram histogram;
+        transient double m2;
+
+        void add(double value) {
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+            variance = m2 / count;
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+            last = value;
+        }
+    }
+
+    /**
+     * Milliseconds spent in bands of equal width from {@code min}, the last band is open ended.
+     */
+    static class Histogram {
+        final float min;
+        final float bandWidth;
+        final long[] ms;
+
+        Histogram(float min, float bandWidth, int bands) {
+            this.min = min;
+            this.bandWidth = bandWidth;
+            this.ms = new long[bands];
+        }
+
+        void add(float value, long durationMs) {
+            if (Float.isNaN(value) || value < min) {
+                return;
+            }
+            ms[(int) Math.min(ms.length - 1, (value - min) / bandWidth)] += durationMs;
+        }
+    }
+
+    // Written with Gson.
+    private static class Summary {
+        long trip;
+        long start;
+        long end;
+        long durationMs;
+        long rows;
+        // Left out if speed or consumption came in a unit that can't be converted.
+        Double distanceKm;
+        Double fuelUsedL;
+        // l/100km over the trip.
+        Double averageConsumption;
+        Histogram engineSpeedBands;
+        Histogram speedBands;
+        List<String> segments;
+        Map<String, KeyStats> keys;
+    }
+
+    /**
+     * Starts a new trip.
+     */
+    void reset(long tripStart) {
+        mTripStart = tripStart;
+        mStats.clear();
+        mSegments.clear();
+        mStart = -1;
+        mEnd = -1;
+        mRows = 0;
+        mDistanceKm = 0;
+        mFuelUsedL = 0;
+        mEngineSpeedBands = new Histogram(0, ENGINE_SPEED_BAND, ENGINE_SPEED_BANDS);
+        mSpeedBands = new Histogram(0, SPEED_BAND, SPEED_BANDS);
+        mLastSpeed = Float.NaN;
+        mLastEngineSpeed = Float.NaN;
+        mLastConsumption = Float.NaN;
+        mUnknownSpeedUnit = false;
+        mUnknownConsumptionUnit = false;
+    }
+
+    /**
+     * Sets the range from the schema of {@code key}, from the next trip on if the key already has
+     * values in this one.
+     */
+    void setRange(String key, float min, float max) {
+        if (max > min && !Float.isInfinite(max - min)) {
+            mRanges.put(key, new float[] {min, max});
+        } else {
+            mRanges.remove(key);
+        }
+    }
+
+    long getTripStart() {
+        return mTripStart;
+    }
+
+    void addRow(long timestamp, String[] keys, Object[] values, int size) {
+        if (mTripStart < 0) {
+            reset(timestamp);
+        }
+        // The time since the last row is spent at the values of the last row.
+        long durationMs = 0;
+        if (mEnd >= 0 && timestamp > mEnd) {
+            durationMs = Math.min(timestamp - mEnd, MAX_ROW_GAP_MS);
+            mEngineSpeedBands.add(mLastEngineSpeed, durationMs);
+            mSpeedBands.add(mLastSpeed, durationMs);
+            if (!Float.isNaN(mLastSpeed) && mLastSpeed > 0) {
+                double km = mLastSpeed * durationMs / 3600000.0;
+                mDistanceKm += km;
+                if (!Float.isNaN(mLastConsumption) && mLastConsumption > 0) {
+                    mFuelUsedL += mLastConsumption * km / 100;
+                }
+            }
+        }
+        if (mStart < 0) {
+            mStart = timestamp;
+        }
+        mEnd = timestamp;
+        mRows++;
+
+        float speed = Float.NaN;
+        float engineSpeed = Float.NaN;
+        float consumption = Float.NaN;
+        for (int i = 0; i < size; i++) {
+            if (values[i] instanceof String) {
+                if (isUnitKey(SPEED_KEYS, keys[i])) {
+                    mSpeedUnit = (String) values[i];
+                } else if (isUnitKey(CONSUMPTION_KEYS, keys[i])) {
+                    mConsumptionUnit = (String) values[i];
+                }
+                continue;
+            }
+            if (!(values[i] instanceof Number)) {
+                continue;
+            }
+            double value = ((Number) values[i]).doubleValue();
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                continue;
+            }
+            String key = keys[i];
+            KeyStats stats = mStats.get(key);
+            if (stats == null) {
+                stats = new KeyStats();
+                float[] range = mRanges.get(key);
+                if (range != null) {
+                    stats.histogram = new Histogram(range[0], (range[1] - range[0]) / KEY_BANDS,
+                            KEY_BANDS);
+                }
+                mStats.put(key, stats);
+            } else if (stats.histogram != null) {
+                stats.histogram.add((float) stats.last, durationMs);
+            }
+            stats.add(value);
+            speed = pick(speed, SPEED_KEYS, key, value);
+            engineSpeed = pick(engineSpeed, ENGINE_SPEED_KEYS, key, value);
+            consumption = pick(consumption, CONSUMPTION_KEYS, key, value);
+        }
+        // Units are read above, they may come after the values in the row.
+        float speedFactor = getSpeedFactor(mSpeedUnit);
+        if (Float.isNaN(speedFactor) && !Float.isNaN(speed)) {
+            mUnknownSpeedUnit = true;
+        }
+        if (mConsumptionUnit != null && !"l/100km".equalsIgnoreCase(mConsumptionUnit)
+                && !Float.isNaN(consumption)) {
+            // mpg and km/l don't add up per km.
+            mUnknownConsumptionUnit = true;
+            consumption = Float.NaN;
+        }
+        mLastSpeed = speed * speedFactor;
+        mLastEngineSpeed = engineSpeed;
+        mLastConsumption = consumption;
+    }
+
+    private static boolean isUnitKey(String[] candidates, String key) {
+        if (!key.endsWith(UNIT_SUFFIX)) {
+            return false;
+        }
+        for (String candidate : candidates) {
+            if (key.length() == candidate.length() + UNIT_SUFFIX.length() && key.startsWith(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the factor to km/h, NaN for an unknown unit.
+     */
+    private static float getSpeedFactor(String unit) {
+        if (unit == null || "kmh".equalsIgnoreCase(unit) || "km/h".equalsIgnoreCase(unit)) {
+            return 1;
+        }
+        if ("mph".equalsIgnoreCase(unit)) {
+            return KM_PER_MILE;
+        }
+        return Float.NaN;
+    }
+
+    private static float pick(float current, String[] candidates, String key, double value) {
+        if (!Float.isNaN(current)) {
+            return current;
+        }
+        for (String candidate : candidates) {
+            if (candidate.equals(key)) {
+                return (float) value;
+            }
+        }
+        return Float.NaN;
+    }
+
+    void addSegment(String fileName) {
+        mSegments.add(fileName);
+    }
+
+    /**
+     * Writes the summary of the trip so far.
+     */
+    void write(File file) throws IOException {
+        Summary summary = new Summary();
+        summary.trip = mTripStart;
+        summary.start = mStart;
+        summary.end = mEnd;
+        summary.durationMs = mEnd - mStart;
+        summary.rows = mRows;
+        if (!mUnknownSpeedUnit) {
+            summary.distanceKm = mDistanceKm;
+            summary.speedBands = mSpeedBands;
+            if (!mUnknownConsumptionUnit) {
+                summary.fuelUsedL = mFuelUsedL;
+                if (mDistanceKm > 0 && mFuelUsedL > 0) {
+                    summary.averageConsumption = mFuelUsedL / mDistanceKm * 100;
+                }
+            }
+        }
+        summary.engineSpeedBands = mEngineSpeedBands;
+        summary.segments = mSegments;
+        summary.keys = mStats;
+        Files.asCharSink(file, StandardCharsets.UTF_8).write(mGson.toJson(summary));
+    }
+}
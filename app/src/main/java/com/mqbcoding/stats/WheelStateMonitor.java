@@ -5,17 +5,26 @@ import android.content.SharedPreferences;
 import android.os.Handler;
 import android.preference.PreferenceManager;
 
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import com.google.common.collect.ImmutableSet;
 
-class WheelStateMonitor implements CarStatsClientTweaked.Listener {
+import java.util.Set;
+
+class WheelStateMonitor implements CarStatsClientTweaked.FrameListener {
     public static final float WHEEL_DRIVING_THRESHOLD_KPH = 10.0f;
     public static final float WHEEL_DRIVING_THRESHOLD_ACCEL_POS = 0.3f;
     public static final float WHEEL_CENTER_THRESHOLD_DEG = 45.0f;
 
     public static final String PREF_ENABLED = "wheelStateMonitoringActive";
 
+    private static final String KEY_SPEED = "vehicleSpeed";
+    private static final String KEY_SPEED_UNIT = "vehicleSpeed.unit";
+    private static final String KEY_ACCEL_POS = "acceleratorPosition";
+    private static final String KEY_WHEEL_ANGLE = "wheelAngle";
+    private static final String KEY_REVERSE_GEAR = "reverseGear.engaged";
+
+    public static final Set<String> KEYS = ImmutableSet.of(KEY_SPEED, KEY_SPEED_UNIT,
+            KEY_ACCEL_POS, KEY_WHEEL_ANGLE, KEY_REVERSE_GEAR);
+
     public enum WheelState {
         WHEEL_UNKNOWN,
         WHEEL_DRIVING,
@@ -26,12 +35,19 @@ class WheelStateMonitor implements CarStatsClientTweaked.Listener {
 
     private boolean mIsEnabled;
     private WheelState mWheelState = WheelState.WHEEL_UNKNOWN;
-    private Map<String, Object> mLastMeasurements = new HashMap<>();
+    private final MeasurementStore mStore;
+    private final int mSpeedId, mSpeedUnitId, mAccelPosId, mWheelAngleId, mReverseGearId;
     private final Handler mHandler;
     private CarNotificationSoundPlayer mNotificationPlayer;
 
-    public WheelStateMonitor(Context context, Handler handler) {
+    public WheelStateMonitor(Context context, Handler handler, MeasurementStore store) {
         mHandler = handler;
+        mStore = store;
+        mSpeedId = store.getOrCreateId(KEY_SPEED);
+        mSpeedUnitId = store.getOrCreateId(KEY_SPEED_UNIT);
+        mAccelPosId = store.getOrCreateId(KEY_ACCEL_POS);
+        mWheelAngleId = store.getOrCreateId(KEY_WHEEL_ANGLE);
+        mReverseGearId = store.getOrCreateId(KEY_REVERSE_GEAR);
         mNotificationPlayer = new CarNotificationSoundPlayer(context, R.raw.beep);
 
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
@@ -50,49 +66,40 @@ class WheelStateMonitor implements CarStatsClientTweaked.Listener {
         }
     };
 
-    private void postUpdate() {
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                doUpdate();
-            }
-        });
-    }
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            doUpdate();
+        }
+    };
 
     @Override
-    public void onNewMeasurements(String provider, Date timestamp, Map<String, Object> values) {
-        mLastMeasurements.putAll(values);
-        postUpdate();
+    public void onNewFrame(long elapsedRealtimeNanos, long timestamp, MeasurementFrame frame) {
+        mHandler.post(mUpdateRunnable);
     }
 
     @Override
-    public void onSchemaChanged() {
+    public void onSchemaChanged(SchemaDelta delta) {
         // do nothing
     }
 
     private void doUpdate() {
-        Float lastSpeed = (Float) mLastMeasurements.get("vehicleSpeed");
-        String speedUnit = (String) mLastMeasurements.get("vehicleSpeed.unit");
-        if (lastSpeed != null && speedUnit != null) {
-            switch (speedUnit) {
-                case "mph":
-                    lastSpeed *= 1.60934f;
-                    break;
-            }
+        float lastSpeedKmh = mStore.getFloat(mSpeedId);
+        if ("mph".equals(mStore.getString(mSpeedUnitId))) {
+            lastSpeedKmh *= 1.60934f;
         }
-        Float lastSpeedKmh = lastSpeed;
-        Float accelPos = (Float) mLastMeasurements.get("acceleratorPosition");
-        Float currentWheelAngle = (Float) mLastMeasurements.get("wheelAngle");
-        Boolean reverseGear = (Boolean) mLastMeasurements.get("reverseGear.engaged");
+        float accelPos = mStore.getFloat(mAccelPosId);
+        float currentWheelAngle = mStore.getFloat(mWheelAngleId);
+        boolean reverseGear = mStore.getBoolean(mReverseGearId);
 
-        if (lastSpeedKmh == null || currentWheelAngle == null) {
+        if (Float.isNaN(lastSpeedKmh) || Float.isNaN(currentWheelAngle)) {
             mWheelState = WheelState.WHEEL_UNKNOWN;
         } else {
             if (mWheelState == WheelState.WHEEL_UNKNOWN ||
                     lastSpeedKmh > WHEEL_DRIVING_THRESHOLD_KPH ||
-                    (accelPos != null && accelPos > WHEEL_DRIVING_THRESHOLD_ACCEL_POS)) {
+                    accelPos > WHEEL_DRIVING_THRESHOLD_ACCEL_POS) {
                 mWheelState = WheelState.WHEEL_DRIVING;
-            } else if (mWheelState == WheelState.WHEEL_DRIVING && reverseGear != null && reverseGear) {
+            } else if (mWheelState == WheelState.WHEEL_DRIVING && reverseGear) {
                 mWheelState = WheelState.WHEEL_CENTER;
             } else if ((mWheelState == WheelState.WHEEL_RIGHT && currentWheelAngle < 0)
                     || (mWheelState == WheelState.WHEEL_LEFT && currentWheelAngle > 0)) {
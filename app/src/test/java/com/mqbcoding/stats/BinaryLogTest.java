@@ -0,0 +1,141 @@
+package com.mqbcoding.stats;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryLogTest {
+    private static final long START = 1567332000000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final List<Long> mTimestamps = new ArrayList<>();
+    private final List<Map<String, Object>> mRows = new ArrayList<>();
+
+    private void addRow(BinaryLogWriter writer, long timestamp, Map<String, Object> row)
+            throws IOException {
+        String[] keys = row.keySet().toArray(new String[0]);
+        Object[] values = row.values().toArray();
+        writer.writeRow(timestamp, keys, values, keys.length);
+        mTimestamps.add(timestamp);
+        // Integers are read back as Long.
+        Map<String, Object> expected = new HashMap<>();
+        for (Map.Entry<String, Object> value : row.entrySet()) {
+            expected.put(value.getKey(), value.getValue() instanceof Integer
+                    ? (Object) ((Integer) value.getValue()).longValue() : value.getValue());
+        }
+        mRows.add(expected);
+    }
+
+    // Every value type, a column changing type, keys coming and going, and a key first used in a
+    // later block.
+    private byte[] writeLog(int rows) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryLogWriter writer = new BinaryLogWriter(out, "{}");
+        Map<String, Object> row = new LinkedHashMap<>();
+        for (int i = 0; i < rows; i++) {
+            row.clear();
+            row.put("speed", i * 0.5f);
+            row.put("distance", i * 1.25d);
+            row.put("rpm", 800 + i % 7);
+            row.put("odometer", 123456789012L + i / 10);
+            row.put("braking", i % 3 == 0);
+            row.put("street", "Street " + i / 50);
+            row.put("gear", i % 20 < 10 ? (Object) (i % 6) : "N");
+            if (i % 40 < 25) {
+                row.put("tyrePressure", 2.4f);
+            }
+            if (i >= BinaryLogWriter.ROWS_PER_BLOCK + 10) {
+                row.put("outsideTemperature", 21.5f);
+            }
+            addRow(writer, START + i * 250L, row);
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private void assertRows(BinaryLogReader reader, int from, int count) throws IOException {
+        for (int i = from; i < from + count; i++) {
+            assertTrue("row " + i, reader.next());
+            assertEquals((long) mTimestamps.get(i), reader.getTimestamp());
+            assertEquals("row " + i, mRows.get(i), reader.getValues());
+        }
+    }
+
+    @Test
+    public void roundTripsAllRows() throws IOException {
+        int rows = BinaryLogWriter.ROWS_PER_BLOCK * 2 + 100;
+        byte[] log = writeLog(rows);
+        try (BinaryLogReader reader = new BinaryLogReader(new ByteArrayInputStream(log))) {
+            assertEquals("{}", reader.getSchemaJson());
+            assertRows(reader, 0, rows);
+            assertFalse(reader.next());
+            assertFalse(reader.isTruncated());
+        }
+    }
+
+    @Test
+    public void writesEveryKeyOnce() throws IOException {
+        String log = new String(writeLog(BinaryLogWriter.ROWS_PER_BLOCK * 3), StandardCharsets.ISO_8859_1);
+        for (String key : Arrays.asList("speed", "tyrePressure", "outsideTemperature")) {
+            assertEquals(key, log.indexOf(key), log.lastIndexOf(key));
+        }
+    }
+
+    @Test
+    public void readsCompleteBlocksOfTruncatedLog() throws IOException {
+        int rows = BinaryLogWriter.ROWS_PER_BLOCK * 2 + 100;
+        byte[] log = writeLog(rows);
+        File file = mFolder.newFile("car-20190901100000" + CarStatsLogger.BINARY_LOG_SUFFIX);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(log, 0, log.length - 20);
+        }
+        try (BinaryLogReader reader = new BinaryLogReader(file)) {
+            assertRows(reader, 0, BinaryLogWriter.ROWS_PER_BLOCK * 2);
+            assertFalse(reader.next());
+            assertTrue(reader.isTruncated());
+        }
+    }
+
+    @Test
+    public void skipsToBlockWithKeysDeclaredBefore() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryLogWriter writer = new BinaryLogWriter(out, "{}");
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("speed", 50f);
+        addRow(writer, START, row);
+        writer.flushBlock();
+        row.put("rpm", 2000);
+        addRow(writer, START + 250, row);
+        writer.flushBlock();
+        long offset = out.size();
+        row.put("gear", 3);
+        addRow(writer, START + 500, row);
+        writer.close();
+
+        try (BinaryLogReader reader = new BinaryLogReader(new ByteArrayInputStream(out.toByteArray()))) {
+            reader.skipToBlock(offset);
+            assertRows(reader, 2, 1);
+            assertFalse(reader.next());
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.mqbcoding.stats;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaRowEncoderTest {
+    private static final long START = 1567332000000L;
+
+    private final String[] mKeys = new String[8];
+    private final Object[] mValues = new Object[8];
+
+    // Encodes a row of alternating keys and values, returns what is left of it.
+    private Map<String, Object> encode(DeltaRowEncoder encoder, long timestamp, boolean dropUnchanged,
+                                       Object... row) {
+        int size = row.length / 2;
+        for (int i = 0; i < size; i++) {
+            mKeys[i] = (String) row[i * 2];
+            mValues[i] = row[i * 2 + 1];
+        }
+        boolean keyframe = encoder.startRow(timestamp);
+        int count = encoder.encode(mKeys, mValues, size, keyframe, dropUnchanged);
+        Map<String, Object> encoded = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            encoded.put(mKeys[i], mValues[i]);
+        }
+        for (int i = count; i < size; i++) {
+            assertNull(mKeys[i]);
+            assertNull(mValues[i]);
+        }
+        return encoded;
+    }
+
+    private static Map<String, Object> row(Object... row) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < row.length; i += 2) {
+            map.put((String) row[i], row[i + 1]);
+        }
+        return map;
+    }
+
+    @Test
+    public void keepsOnlyChangedValues() {
+        DeltaRowEncoder encoder = new DeltaRowEncoder();
+        assertEquals(row("speed", 50f, "gear", 3, "street", "Main"),
+                encode(encoder, START, true, "speed", 50f, "gear", 3, "street", "Main"));
+        assertEquals(row("gear", 4),
+                encode(encoder, START + 250, true, "speed", 50f, "gear", 4, "street", "Main"));
+        assertEquals(row("street", "High", "rpm", 2000),
+                encode(encoder, START + 500, true, "speed", 50f, "gear", 4, "street", "High", "rpm", 2000));
+    }
+
+    @Test
+    public void writesKeyframes() {
+        DeltaRowEncoder encoder = new DeltaRowEncoder(1000);
+        assertTrue(encoder.startRow(START));
+        assertFalse(encoder.startRow(START + 999));
+        assertTrue(encoder.startRow(START + 1000));
+        // The clock going back starts over.
+        assertTrue(encoder.startRow(START));
+        encoder.requestKeyframe();
+        assertTrue(encoder.startRow(START + 250));
+
+        encoder.reset();
+        encode(encoder, START, true, "speed", 50f);
+        assertEquals(row(), encode(encoder, START + 250, true, "speed", 50f));
+        assertEquals(row("speed", 50f), encode(encoder, START + 1250, true, "speed", 50f));
+    }
+
+    @Test
+    public void ignoresChangesWithinEpsilon() {
+        DeltaRowEncoder encoder = new DeltaRowEncoder();
+        encoder.setSchemaResolution("speed", 0.2f);
+        encoder.setSchemaResolution("rpm", 100);
+        encoder.setEpsilon("rpm", 10);
+        encode(encoder, START, true, "speed", 50f, "rpm", 2000, "temp", 90.0);
+        // Within half the resolution of the last written value, and the override for rpm.
+        assertEquals(row("rpm", 2020, "temp", 90.01),
+                encode(encoder, START + 250, true, "speed", 50.09f, "rpm", 2020, "temp", 90.01));
+        // Drift adds up against the last written value.
+        assertEquals(row("speed", 50.11f),
+                encode(encoder, START + 500, true, "speed", 50.11f, "rpm", 2025, "temp", 90.01));
+    }
+
+    @Test
+    public void repeatsLastWrittenValueIfNotDropping() {
+        DeltaRowEncoder encoder = new DeltaRowEncoder();
+        encoder.setEpsilon("speed", 1);
+        encode(encoder, START, false, "speed", 50f, "gear", 3);
+        assertEquals(row("speed", 50f, "gear", 3),
+                encode(encoder, START + 250, false, "speed", 50.5f, "gear", 3));
+    }
+
+    @Test
+    public void treatsRemovedValueAsChange() {
+        DeltaRowEncoder encoder = new DeltaRowEncoder();
+        encode(encoder, START, true, "street", "Main");
+        Map<String, Object> encoded = encode(encoder, START + 250, true, "street", null);
+        assertEquals(Arrays.asList("street"), Arrays.asList(encoded.keySet().toArray()));
+        assertNull(encoded.get("street"));
+    }
+
+    @Test
+    public void decoderRebuildsFullRows() {
+        Gson gson = new Gson();
+        DeltaRowEncoder encoder = new DeltaRowEncoder();
+        DeltaRowEncoder.Decoder decoder = new DeltaRowEncoder.Decoder();
+
+        Map<String, Object> first = encode(encoder, START, true, "speed", 50f, "gear", 3);
+        first.put(DeltaRowEncoder.KEYFRAME_KEY, true);
+        String keyframe = gson.toJson(first);
+        assertTrue(DeltaRowEncoder.isKeyframe(keyframe));
+        String second = gson.toJson(encode(encoder, START + 250, true, "speed", 50f, "gear", 4));
+        assertFalse(DeltaRowEncoder.isKeyframe(second));
+
+        // Nothing to build on before the first keyframe.
+        assertNull(decoder.decode(second));
+        assertNull(decoder.decode("not json"));
+        assertEquals(parse("{\"speed\":50.0,\"gear\":3}"), parse(decoder.decode(keyframe)));
+        assertEquals(parse("{\"speed\":50.0,\"gear\":4}"), parse(decoder.decode(second)));
+    }
+
+    private static JsonObject parse(String json) {
+        return new JsonParser().parse(json).getAsJsonObject();
+    }
+}
@@ -0,0 +1,42 @@
+package com.mqbcoding.stats;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class JsonKeyCacheTest {
+    @Test
+    public void replacesCharactersJsonKeysCantHave() {
+        JsonKeyCache cache = new JsonKeyCache();
+        assertEquals("exlap_vehicleSpeed", cache.get("exlap-vehicleSpeed"));
+        assertEquals("tyrePressures.pressureFrontLeft", cache.get("tyrePressures.pressureFrontLeft"));
+        assertEquals("torque_rpm_0x0c", cache.get("torque-rpm_0x0c"));
+        assertEquals("a_b_c_", cache.get("a b/c:"));
+    }
+
+    @Test
+    public void matchesMakeJsonKey() {
+        JsonKeyCache cache = new JsonKeyCache();
+        for (String key : Arrays.asList("exlap-oilTemperature", "Nav_CurrentPosition.City", "x:y")) {
+            assertEquals(CarStatsLogger.makeJsonKey(key), cache.get(key));
+        }
+    }
+
+    @Test
+    public void keepsKeysOnce() {
+        JsonKeyCache cache = new JsonKeyCache();
+        cache.addAll(Arrays.asList("exlap-engineSpeed", "exlap-vehicleSpeed"));
+        assertEquals(2, cache.size());
+        String jsonKey = cache.get("exlap-engineSpeed");
+        assertSame(jsonKey, cache.get("exlap-engineSpeed"));
+        cache.addAll(Arrays.asList("exlap-engineSpeed", "gear"));
+        assertEquals(3, cache.size());
+        assertSame(jsonKey, cache.get("exlap-engineSpeed"));
+        // Keys outside the schema are added on first use.
+        cache.get("rpm");
+        assertEquals(4, cache.size());
+    }
+}
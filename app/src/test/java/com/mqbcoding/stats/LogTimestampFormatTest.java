@@ -0,0 +1,81 @@
+package com.mqbcoding.stats;
+
+import org.junit.Test;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class LogTimestampFormatTest {
+    // 1582-10-15 00:00:00 UTC, the first day SimpleDateFormat formats as Gregorian.
+    private static final long GREGORIAN_CUTOVER = -12219292800000L;
+    // 9999-12-31 23:59:59.999 UTC
+    private static final long LAST = 253402300799999L;
+
+    private static DateFormat createDateFormat() {
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSSSS", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return dateFormat;
+    }
+
+    @Test
+    public void formatsLikeSimpleDateFormat() {
+        DateFormat dateFormat = createDateFormat();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long timestamp = GREGORIAN_CUTOVER + (long) (random.nextDouble() * (LAST - GREGORIAN_CUTOVER));
+            assertEquals(dateFormat.format(new Date(timestamp)), LogTimestampFormat.format(timestamp));
+        }
+    }
+
+    @Test
+    public void formatsEdgesOfValidRange() {
+        DateFormat dateFormat = createDateFormat();
+        long[] timestamps = {GREGORIAN_CUTOVER, LAST, 0, -1, 951782400000L /* 2000-02-29 */};
+        for (long timestamp : timestamps) {
+            assertEquals(dateFormat.format(new Date(timestamp)), LogTimestampFormat.format(timestamp));
+        }
+        assertEquals("1582-10-15 00:00:00.000000", LogTimestampFormat.format(GREGORIAN_CUTOVER));
+        assertEquals("9999-12-31 23:59:59.000999", LogTimestampFormat.format(LAST));
+    }
+
+    @Test
+    public void parsesWhatItFormats() throws ParseException {
+        Random random = new Random(7);
+        for (int i = 0; i < 100000; i++) {
+            long timestamp = GREGORIAN_CUTOVER + (long) (random.nextDouble() * (LAST - GREGORIAN_CUTOVER));
+            assertEquals(timestamp, LogTimestampFormat.parse(LogTimestampFormat.format(timestamp)));
+        }
+        assertEquals(GREGORIAN_CUTOVER, LogTimestampFormat.parse("1582-10-15 00:00:00.000000"));
+        assertEquals(LAST, LogTimestampFormat.parse("9999-12-31 23:59:59.000999"));
+    }
+
+    @Test
+    public void formatsIntoBuffer() {
+        char[] buffer = new char[LogTimestampFormat.LENGTH + 4];
+        Arrays.fill(buffer, '#');
+        assertEquals(LogTimestampFormat.LENGTH, LogTimestampFormat.format(1567332000250L, buffer, 2));
+        assertEquals("##2019-09-01 10:00:00.000250##", new String(buffer));
+    }
+
+    @Test
+    public void rejectsMalformedTimestamps() {
+        String[] malformed = {"", "2019-09-01 10:00:00", "2019-09-01T10:00:00.000250",
+                "2019-09-01 10:00:00.00025x", "2019/09/01 10:00:00.000250"};
+        for (String text : malformed) {
+            try {
+                LogTimestampFormat.parse(text);
+                fail("Parsed " + text);
+            } catch (ParseException expected) {
+            }
+        }
+    }
+}
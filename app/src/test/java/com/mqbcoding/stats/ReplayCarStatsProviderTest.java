@@ -0,0 +1,106 @@
+package com.mqbcoding.stats;
+
+import com.github.martoreto.aauto.vex.FieldSchema;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class ReplayCarStatsProviderTest {
+    // Not a valid JSON key, logged as "exlap_speed".
+    private static final String SPEED_KEY = "exlap-speed";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mLogFile;
+    private File mSchemaFile;
+    private CarStatsClientTweaked mClient;
+
+    @Before
+    public void setUp() throws IOException {
+        Map<String, FieldSchema> schema = new HashMap<>();
+        schema.put(SPEED_KEY, new FieldSchema(FieldSchema.TYPE_FLOAT, "Speed", "km/h", 0, 300, 0.1f));
+        schema.put("gear", new FieldSchema(FieldSchema.TYPE_INTEGER, "Gear", "", 0, 8, 1));
+        mSchemaFile = mFolder.newFile("schema.json");
+        Files.asCharSink(mSchemaFile, StandardCharsets.UTF_8).write(new Gson().toJson(schema));
+
+        // "rpm" is added to the logger by the dashboard and not in the schema.
+        mLogFile = mFolder.newFile("car-20190901100000.log.gz");
+        try (Writer writer = new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(mLogFile)), StandardCharsets.UTF_8)) {
+            writer.write("{\"timestamp\":\"2019-09-01 10:00:00.000000\",\"exlap_speed\":50.5,\"gear\":3,\"rpm\":2000.0}\n");
+            writer.write("{\"timestamp\":\"2019-09-01 10:00:00.250000\",\"exlap_speed\":51.0,\"gear\":3,\"rpm\":2100.0}\n");
+            writer.write("{\"timestamp\":\"2019-09-01 10:00:00.500000\",\"exlap_speed\":52.5,\"gear\":4,\"rpm\":1500.0}\n");
+            // The last row of a log that was not closed properly.
+            writer.write("{\"timestamp\":\"2019-09-01 10:00:00.750000\",\"exlap_sp");
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (mClient != null) {
+            mClient.stop();
+        }
+    }
+
+    @Test
+    public void replaysAllCompleteRows() throws Exception {
+        ReplayCarStatsProvider provider = new ReplayCarStatsProvider(
+                mLogFile, mSchemaFile, ReplayCarStatsProvider.SPEED_UNLIMITED);
+        provider.start();
+        assertTrue(provider.awaitFinished(5, TimeUnit.SECONDS));
+        assertEquals(3, provider.getRowCount());
+    }
+
+    @Test
+    public void addsColumnsMissingFromSchema() throws Exception {
+        ReplayCarStatsProvider provider = new ReplayCarStatsProvider(
+                mLogFile, mSchemaFile, ReplayCarStatsProvider.SPEED_UNLIMITED);
+        @SuppressWarnings("unchecked")
+        Map<String, FieldSchema> schema = provider.getSchema();
+        assertTrue(schema.containsKey(SPEED_KEY));
+        assertEquals(FieldSchema.TYPE_FLOAT, schema.get("rpm").getType());
+    }
+
+    @Test
+    public void clientReceivesLastValues() throws Exception {
+        ReplayCarStatsProvider provider = new ReplayCarStatsProvider(
+                mLogFile, mSchemaFile, ReplayCarStatsProvider.SPEED_UNLIMITED);
+        mClient = new CarStatsClientTweaked(RuntimeEnvironment.application);
+        mClient.addProvider("replay", provider);
+        provider.start();
+        assertTrue(provider.awaitFinished(5, TimeUnit.SECONDS));
+
+        MeasurementStore store = mClient.getMeasurementStore();
+        assertEquals(52.5f, store.getFloat(store.getId(SPEED_KEY)), 0.001f);
+        assertEquals(4, store.getValue(store.getId("gear")));
+        assertEquals(1500f, store.getFloat(store.getId("rpm")), 0.001f);
+    }
+}
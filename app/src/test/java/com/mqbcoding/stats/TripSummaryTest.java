@@ -0,0 +1,139 @@
+package com.mqbcoding.stats;
+
+import com.google.common.io.Files;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TripSummaryTest {
+    private static final long START = 1567332000000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static void addRow(TripSummary summary, long timestamp, Object... row) {
+        String[] keys = new String[row.length / 2];
+        Object[] values = new Object[row.length / 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = (String) row[i * 2];
+            values[i] = row[i * 2 + 1];
+        }
+        summary.addRow(timestamp, keys, values, keys.length);
+    }
+
+    private JsonObject write(TripSummary summary) throws IOException {
+        File file = mFolder.newFile();
+        summary.write(file);
+        return new JsonParser().parse(Files.asCharSource(file, StandardCharsets.UTF_8).read())
+                .getAsJsonObject();
+    }
+
+    @Test
+    public void keepsRunningStats() throws IOException {
+        TripSummary summary = new TripSummary();
+        addRow(summary, START, "oilTemperature", 80, "street", "Main");
+        addRow(summary, START + 1000, "oilTemperature", 90.0);
+        addRow(summary, START + 2000, "oilTemperature", 100f);
+        JsonObject json = write(summary);
+        assertEquals(START, json.get("trip").getAsLong());
+        assertEquals(2000, json.get("durationMs").getAsLong());
+        assertEquals(3, json.get("rows").getAsLong());
+        JsonObject keys = json.getAsJsonObject("keys");
+        assertFalse(keys.has("street"));
+        JsonObject stats = keys.getAsJsonObject("oilTemperature");
+        assertEquals(3, stats.get("count").getAsLong());
+        assertEquals(80, stats.get("min").getAsDouble(), 0);
+        assertEquals(100, stats.get("max").getAsDouble(), 0);
+        assertEquals(90, stats.get("mean").getAsDouble(), 1e-9);
+        assertEquals(200 / 3.0, stats.get("variance").getAsDouble(), 1e-9);
+        assertFalse(stats.has("histogram"));
+    }
+
+    @Test
+    public void integratesDistanceAndBands() throws IOException {
+        TripSummary summary = new TripSummary();
+        addRow(summary, START, "vehicleSpeed", 90f, "engineSpeed", 2500,
+                "currentConsumptionPrimary", 6f);
+        addRow(summary, START + 4000, "vehicleSpeed", 90f, "engineSpeed", 2500,
+                "currentConsumptionPrimary", 6f);
+        // Gaps longer than 5 seconds only count 5.
+        addRow(summary, START + 64000, "vehicleSpeed", 0f);
+        JsonObject json = write(summary);
+        assertEquals(90 * 9 / 3600.0, json.get("distanceKm").getAsDouble(), 1e-9);
+        assertEquals(6 * 90 * 9 / 3600.0 / 100, json.get("fuelUsedL").getAsDouble(), 1e-9);
+        assertEquals(6, json.get("averageConsumption").getAsDouble(), 1e-9);
+        assertEquals(9000, json.getAsJsonObject("speedBands").getAsJsonArray("ms").get(4).getAsLong());
+        assertEquals(9000,
+                json.getAsJsonObject("engineSpeedBands").getAsJsonArray("ms").get(2).getAsLong());
+    }
+
+    @Test
+    public void convertsMph() throws IOException {
+        TripSummary summary = new TripSummary();
+        // The unit may come after the value.
+        addRow(summary, START, "vehicleSpeed", 50f, "vehicleSpeed.unit", "mph",
+                "currentConsumptionPrimary", 8f, "currentConsumptionPrimary.unit", "l/100km");
+        addRow(summary, START + 3600, "vehicleSpeed", 50f, "vehicleSpeed.unit", "mph");
+        JsonObject json = write(summary);
+        double km = 50 * 1.609344 * 3.6 / 3600;
+        assertEquals(km, json.get("distanceKm").getAsDouble(), 1e-6);
+        assertEquals(8 * km / 100, json.get("fuelUsedL").getAsDouble(), 1e-6);
+        // 80.5 km/h
+        assertEquals(3600, json.getAsJsonObject("speedBands").getAsJsonArray("ms").get(4).getAsLong());
+        // The raw values stay in the car's unit.
+        assertEquals(50, json.getAsJsonObject("keys").getAsJsonObject("vehicleSpeed")
+                .get("max").getAsDouble(), 0);
+    }
+
+    @Test
+    public void leavesOutValuesInUnknownUnits() throws IOException {
+        TripSummary summary = new TripSummary();
+        addRow(summary, START, "vehicleSpeed", 80f,
+                "currentConsumptionPrimary", 30f, "currentConsumptionPrimary.unit", "mpg");
+        addRow(summary, START + 1000, "vehicleSpeed", 80f);
+        JsonObject json = write(summary);
+        assertEquals(80 / 3600.0, json.get("distanceKm").getAsDouble(), 1e-9);
+        assertFalse(json.has("fuelUsedL"));
+        assertFalse(json.has("averageConsumption"));
+
+        summary = new TripSummary();
+        addRow(summary, START, "vehicleSpeed", 80f, "vehicleSpeed.unit", "knots");
+        addRow(summary, START + 1000, "vehicleSpeed", 80f, "vehicleSpeed.unit", "knots");
+        json = write(summary);
+        assertFalse(json.has("distanceKm"));
+        assertFalse(json.has("fuelUsedL"));
+        assertFalse(json.has("speedBands"));
+    }
+
+    @Test
+    public void keepsBandsOfSchemaRange() throws IOException {
+        TripSummary summary = new TripSummary();
+        summary.setRange("boostPressure", 0, 2.5f);
+        summary.setRange("oilTemperature", 50, 50);
+        addRow(summary, START, "boostPressure", 0.1f, "oilTemperature", 90f);
+        addRow(summary, START + 1000, "boostPressure", 1.3f, "oilTemperature", 90f);
+        addRow(summary, START + 3000, "boostPressure", 3f);
+        // Time since the last row the key was in counts at its last value.
+        addRow(summary, START + 4000, "boostPressure", 0.1f);
+        JsonObject keys = write(summary).getAsJsonObject("keys");
+        JsonArray ms = keys.getAsJsonObject("boostPressure").getAsJsonObject("histogram")
+                .getAsJsonArray("ms");
+        assertEquals(10, ms.size());
+        assertEquals(1000, ms.get(0).getAsLong());
+        assertEquals(2000, ms.get(5).getAsLong());
+        // Above the range counts in the last band.
+        assertEquals(1000, ms.get(9).getAsLong());
+        assertFalse(keys.getAsJsonObject("oilTemperature").has("histogram"));
+    }
+}